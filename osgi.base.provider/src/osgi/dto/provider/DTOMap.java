@@ -1,10 +1,10 @@
 package osgi.dto.provider;
 
-import java.lang.reflect.Field;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.osgi.dto.DTO;
@@ -13,22 +13,22 @@ public class DTOMap extends AbstractMap<String,Object> {
 
 	private final DTOsProvider	dtos;
 	private final Object		dto;
-	private final Field[]		fields;
+	private final DTOShape		shape;
 
 	public DTOMap(DTOsProvider dtOsProvider, Object dto) {
 		this.dtos = dtOsProvider;
 		this.dto = dto;
-		this.fields = dtos.getFields(dto);
+		this.shape = DTOShape.shape(dto);
 	}
 
 	@Override
 	public int size() {
-		return fields.length;
+		return shape.size();
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return fields.length == 0;
+		return shape.isEmpty();
 	}
 
 	@Override
@@ -36,22 +36,19 @@ public class DTOMap extends AbstractMap<String,Object> {
 		if (!(key instanceof String))
 			return false;
 
-		return dtos.bsearch(fields, 0, fields.length, (String) key) >= 0;
+		return shape.index((String) key) >= 0;
 	}
 
 	@Override
 	public boolean containsValue(Object value) {
-		for (Field f : fields) {
-			Object o;
+		for (int i = 0; i < shape.size(); i++) {
 			try {
-				o = f.get(dto);
+				Object o = shape.get(dto, i);
 
 				if (o == value)
 					return true;
-				if (o == null)
-					return false;
-
-				return o.equals(value);
+				if (o != null && o.equals(value))
+					return true;
 			}
 			catch (IllegalArgumentException | IllegalAccessException e) {
 				// Ignore since we only have public fields
@@ -66,11 +63,11 @@ public class DTOMap extends AbstractMap<String,Object> {
 			if (!(key instanceof String))
 				return null;
 
-			Field field = dtos.getField(fields, (String) key);
-			if (field == null)
+			int index = shape.index((String) key);
+			if (index < 0)
 				return null;
 
-			Object o = field.get(dto);
+			Object o = shape.get(dto, index);
 			if (o instanceof DTO) {
 				return new DTOMap(dtos, o);
 			} else
@@ -93,23 +90,26 @@ public class DTOMap extends AbstractMap<String,Object> {
 
 					@Override
 					public boolean hasNext() {
-						return n < fields.length;
+						return n < shape.size();
 					}
 
 					@Override
 					public java.util.Map.Entry<String,Object> next() {
-						final Field field = fields[n];
+						if (!hasNext())
+							throw new NoSuchElementException();
+
+						final int index = n++;
 						return new Map.Entry<String,Object>() {
 
 							@Override
 							public String getKey() {
-								return field.getName();
+								return shape.names[index];
 							}
 
 							@Override
 							public Object getValue() {
 								try {
-									return field.get(dto);
+									return shape.get(dto, index);
 								}
 								catch (IllegalArgumentException | IllegalAccessException e) {
 									throw new RuntimeException(e);
@@ -119,8 +119,8 @@ public class DTOMap extends AbstractMap<String,Object> {
 							@Override
 							public Object setValue(Object value) {
 								try {
-									Object old = field.get(dto);
-									field.set(dto,value);
+									Object old = shape.get(dto, index);
+									shape.set(dto, index, value);
 									return old;
 								}
 								catch (IllegalArgumentException | IllegalAccessException e) {
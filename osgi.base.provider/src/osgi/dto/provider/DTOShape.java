@@ -0,0 +1,219 @@
+package osgi.dto.provider;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The shape of a DTO class: its public instance fields sorted by name, an
+ * index on the hash of the names, the field types and method handles to get
+ * and set the fields and to create an instance. A shape is calculated once
+ * per class and held in a {@link ClassValue}, so it lives as long as the class
+ * does and is released with the class loader of the bundle that owns the DTO.
+ * <p>
+ * Classes without public instance fields have an empty shape, they are not
+ * treated as DTOs.
+ */
+class DTOShape {
+	final static ClassValue<DTOShape>	shapes	= new ClassValue<DTOShape>() {
+
+													@Override
+													protected DTOShape computeValue(Class< ? > type) {
+														return new DTOShape(type);
+													}
+												};
+
+	final static MethodType				GETTER	= MethodType.methodType(Object.class, Object.class);
+	final static MethodType				SETTER	= MethodType.methodType(void.class, Object.class, Object.class);
+	final static MethodType				FACTORY	= MethodType.methodType(Object.class);
+
+	final Class< ? >					type;
+	final Field[]						fields;
+	final String[]						names;
+	final Class< ? >[]					types;
+	final Type[]						generics;
+	final MethodHandle[]				getters;
+	final MethodHandle[]				setters;
+	final MethodHandle					factory;
+
+	//
+	// Open addressing table on the hash of the names, holds index + 1
+	//
+
+	final int[]							index;
+	final int							mask;
+
+	static DTOShape shape(Class< ? > type) {
+		return shapes.get(type);
+	}
+
+	static DTOShape shape(Object o) {
+		return shapes.get(o == null ? Object.class : o.getClass());
+	}
+
+	DTOShape(Class< ? > type) {
+		this.type = type;
+		List<Field> publicFields = new ArrayList<>();
+		if (!type.isArray() && !type.isPrimitive())
+			for (Field field : type.getFields()) {
+				if (field.isEnumConstant() || field.isSynthetic() || Modifier.isStatic(field.getModifiers()))
+					continue;
+				publicFields.add(field);
+			}
+
+		Collections.sort(publicFields, new Comparator<Field>() {
+
+			@Override
+			public int compare(Field o1, Field o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+
+		int n = publicFields.size();
+		fields = publicFields.toArray(new Field[n]);
+		names = new String[n];
+		types = new Class< ? >[n];
+		generics = new Type[n];
+		getters = new MethodHandle[n];
+		setters = new MethodHandle[n];
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for (int i = 0; i < n; i++) {
+			Field field = fields[i];
+			names[i] = field.getName();
+			types[i] = field.getType();
+			generics[i] = field.getGenericType();
+			try {
+				field.setAccessible(true);
+			}
+			catch (SecurityException e) {
+				// only public fields, the handles can still be created
+			}
+			try {
+				getters[i] = lookup.unreflectGetter(field).asType(GETTER);
+			}
+			catch (IllegalAccessException e) {
+				getters[i] = null;
+			}
+			try {
+				if (!Modifier.isFinal(field.getModifiers()))
+					setters[i] = lookup.unreflectSetter(field).asType(SETTER);
+			}
+			catch (IllegalAccessException e) {
+				setters[i] = null;
+			}
+		}
+
+		int size = Integer.highestOneBit(Math.max(1, n * 2 - 1)) << 1;
+		index = new int[size];
+		mask = size - 1;
+		for (int i = 0; i < n; i++) {
+			int slot = hash(names[i]) & mask;
+			while (index[slot] != 0)
+				slot = (slot + 1) & mask;
+			index[slot] = i + 1;
+		}
+
+		factory = type.isArray() || type.isPrimitive() ? null : factory(lookup, type);
+	}
+
+	private static MethodHandle factory(MethodHandles.Lookup lookup, Class< ? > type) {
+		if (type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+			return null;
+		try {
+			Constructor< ? > constructor = type.getConstructor();
+			return lookup.unreflectConstructor(constructor).asType(FACTORY);
+		}
+		catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	private static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	boolean isEmpty() {
+		return fields.length == 0;
+	}
+
+	int size() {
+		return fields.length;
+	}
+
+	/*
+	 * The index of the field with the given name or -1
+	 */
+	int index(String name) {
+		if (fields.length == 0)
+			return -1;
+
+		int slot = hash(name) & mask;
+		int i;
+		while ((i = index[slot]) != 0) {
+			if (names[i - 1].equals(name))
+				return i - 1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	Object get(Object dto, int i) throws IllegalAccessException {
+		MethodHandle getter = getters[i];
+		if (getter == null)
+			throw new IllegalAccessException("Cannot read " + fields[i]);
+		try {
+			return getter.invokeExact(dto);
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void set(Object dto, int i, Object value) throws IllegalAccessException {
+		MethodHandle setter = setters[i];
+		if (setter == null)
+			throw new IllegalAccessException("Cannot write " + fields[i]);
+		try {
+			setter.invokeExact(dto, value);
+		}
+		catch (ClassCastException | NullPointerException e) {
+			throw new IllegalArgumentException("Cannot set " + fields[i] + " to " + value, e);
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Create an instance through the public no-arg constructor
+	 */
+	Object newInstance() throws Exception {
+		if (factory == null)
+			throw new InstantiationException("No public no-arg constructor for " + type);
+		try {
+			return factory.invokeExact();
+		}
+		catch (Exception | Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
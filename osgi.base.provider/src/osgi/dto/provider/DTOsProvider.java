@@ -1,22 +1,23 @@
 package osgi.dto.provider;
 
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Formatter;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.osgi.dto.DTO;
@@ -24,7 +25,6 @@ import org.osgi.dto.DTO;
 import osgi.enroute.dto.api.DTOs;
 import osgi.enroute.dto.api.IDTO;
 import osgi.enroute.dto.api.TypeReference;
-import aQute.lib.json.Decoder;
 import aQute.lib.json.Encoder;
 import aQute.lib.json.JSONCodec;
 
@@ -32,12 +32,9 @@ import aQute.lib.json.JSONCodec;
  * This class provides utility functions for DTOs
  */
 public class DTOsProvider implements DTOs {
-	private final static Field[]					EMPTY_FIELDS	= new Field[0];
-	private final static JSONCodec					codec			= new JSONCodec();
-	private final static Map<Class< ? >,Field[]>	cache			= Collections
-																			.synchronizedMap(new WeakHashMap<Class< ? >,Field[]>());
+	private final static JSONCodec	codec	= new JSONCodec();
 
-	private final Link								root			= new Link(null, null, null);
+	private final Link				root	= new Link(null, null, null);
 
 	//
 	// The link class is to keep track of cycles traversing and to
@@ -148,14 +145,14 @@ public class DTOsProvider implements DTOs {
 		if (dto == null)
 			return null + "";
 
-		Field[] fields = getFields(dto);
-		if (fields.length == 0)
+		DTOShape shape = DTOShape.shape(dto);
+		if (shape.isEmpty())
 			return dto.toString();
 
 		try {
 			try (Formatter format = new Formatter()) {
-				for (Field f : fields) {
-					format.format("%s: %s%n", f.getName(), f.get(dto));
+				for (int i = 0; i < shape.size(); i++) {
+					format.format("%s: %s%n", shape.names[i], shape.get(dto, i));
 				}
 				return format.toString();
 			}
@@ -178,13 +175,13 @@ public class DTOsProvider implements DTOs {
 			return false;
 
 		try {
-			Field fields[] = getFields(a);
-			if (fields.length == 0)
+			DTOShape shape = DTOShape.shape(ac);
+			if (shape.isEmpty())
 				return a.equals(b);
 
-			for (Field f : getFields(a)) {
-				Object aa = f.get(a);
-				Object bb = f.get(b);
+			for (int i = 0; i < shape.size(); i++) {
+				Object aa = shape.get(a, i);
+				Object bb = shape.get(b, i);
 				if (!equals(aa, bb))
 					return false;
 			}
@@ -200,17 +197,17 @@ public class DTOsProvider implements DTOs {
 		if (dto instanceof IDTO)
 			return dto.hashCode();
 
-		Field[] fields = getFields(dto);
-		if (fields.length == 0)
+		DTOShape shape = DTOShape.shape(dto);
+		if (shape.isEmpty())
 			return dto.hashCode();
 
 		int prime = 31;
 		int result = 1;
 		try {
 
-			for (Field f : fields) {
-				Object a = f.get(this);
-				result = prime * result + (a == null ? 0 : hashCode(dto));
+			for (int i = 0; i < shape.size(); i++) {
+				Object a = shape.get(dto, i);
+				result = prime * result + (a == null ? 0 : hashCode(a));
 			}
 
 			return result;
@@ -275,14 +272,10 @@ public class DTOsProvider implements DTOs {
 			return get(value, path, i + 1, max);
 		}
 
-		Field fields[] = getFields(dto);
-		if (fields.length > 0) {
-			for (Field field : fields) {
-				if (field.getName().equals(name)) {
-					return get(field.get(dto), path, i + 1, max);
-				}
-			}
-		}
+		DTOShape shape = DTOShape.shape(dto);
+		int index = shape.index(name);
+		if (index >= 0)
+			return get(shape.get(dto, index), path, i + 1, max);
 
 		return new Answer(null, "Unknown type to traverse " + dto.getClass() + " for " + name);
 	}
@@ -346,14 +339,11 @@ public class DTOsProvider implements DTOs {
 				return new Answer(dto, null);
 			}
 
-			Field fields[] = getFields(dto);
-			if (fields.length > 0) {
-				for (Field field : fields) {
-					if (field.getName().equals(name)) {
-						field.set(dto, value);
-						return new Answer(dto, null);
-					}
-				}
+			DTOShape shape = DTOShape.shape(dto);
+			int index = shape.index(name);
+			if (index >= 0) {
+				shape.set(dto, index, value);
+				return new Answer(dto, null);
 			}
 			return new Answer(null, "Unknown type to set value for " + dto.getClass());
 		}
@@ -487,12 +477,12 @@ public class DTOsProvider implements DTOs {
 			return true;
 		}
 
-		Field[] fields = getFields(older);
-		if (fields.length > 0) {
-			for (Field field : fields) {
-				Object o = field.get(older);
-				Object n = field.get(older);
-				diff(diffs, new Link(link, field.getName(), older), o, n);
+		DTOShape shape = DTOShape.shape(oc);
+		if (!shape.isEmpty()) {
+			for (int i = 0; i < shape.size(); i++) {
+				Object o = shape.get(older, i);
+				Object n = shape.get(newer, i);
+				diff(diffs, new Link(link, shape.names[i], older), o, n);
 			}
 			return true;
 		}
@@ -514,16 +504,22 @@ public class DTOsProvider implements DTOs {
 
 	public boolean isComplex(Object a) {
 		return a != null
-				&& (a instanceof Map || a instanceof Collection || a instanceof DTO || a.getClass().isArray() || getFields(a).length > 0);
+				&& (a instanceof Map || a instanceof Collection || a instanceof DTO || a.getClass().isArray() || !DTOShape.shape(a).isEmpty());
 	}
 
 	public boolean isDTO(Object o) {
-		return getFields(o).length != 0;
+		return !DTOShape.shape(o).isEmpty();
 	}
 
+	//
+	// The streaming writer handles the common DTO types, for anything else,
+	// pretty printing or another charset the generic codec is used
+	//
+
 	class EncImpl implements Enc {
-		private Encoder	enc	= codec.enc();
-		private Object	source;
+		private final Object	source;
+		private boolean			pretty;
+		private boolean			ignoreNull;
 
 		public EncImpl(Object source) {
 			this.source = source;
@@ -531,64 +527,100 @@ public class DTOsProvider implements DTOs {
 
 		@Override
 		public void put(OutputStream out) throws Exception {
-			codec.enc().charset("UTF-8").to(out).put(source);
+			put(out, "UTF-8");
 		}
 
 		@Override
 		public void put(OutputStream out, String charset) throws Exception {
-			enc.charset(charset).put(out);
+			if (!pretty && Charset.forName(charset) == StandardCharsets.UTF_8) {
+				JSONWriter w = JSONWriter.get();
+				try {
+					if (w.write(source, ignoreNull)) {
+						w.writeTo(out);
+						return;
+					}
+				}
+				finally {
+					w.release();
+				}
+			}
+			encoder().charset(charset).to(out).put(source);
 		}
 
 		@Override
 		public void put(Appendable out) throws Exception {
-			enc.put(out);
+			out.append(put());
 		}
 
 		@Override
 		public String put() throws Exception {
-			return enc.to().put(source).toString();
+			if (!pretty) {
+				JSONWriter w = JSONWriter.get();
+				try {
+					if (w.write(source, ignoreNull))
+						return w.toString();
+				}
+				finally {
+					w.release();
+				}
+			}
+			return encoder().to().put(source).toString();
 		}
 
 		@Override
 		public Enc pretty() {
-			enc.indent("\t");
+			pretty = true;
 			return this;
 		}
 
 		@Override
 		public Enc ignoreNull() {
+			ignoreNull = true;
 			return this;
 		}
 
+		private Encoder encoder() {
+			Encoder enc = codec.enc();
+			if (pretty)
+				enc.indent("\t");
+			return enc;
+		}
 	}
 
 	@SuppressWarnings("unchecked")
 	class DecImpl<T> implements Dec<T> {
-		private Decoder	dec	= codec.dec();
-		private Type	type;
+		private final Type		type;
+		private final boolean	streaming;
 
 		public DecImpl(Type type) {
 			this.type = type;
+			this.streaming = JSONReader.supports(type);
 		}
 
 		@Override
 		public T get(InputStream in) throws Exception {
-			return (T) dec.charset("UTF-8").from(in).get(type);
+			return get(in, "UTF-8");
 		}
 
 		@Override
 		public T get(InputStream in, String charset) throws Exception {
-			return (T) dec.charset(charset).from(in).get(type);
+			if (streaming)
+				return get(new InputStreamReader(in, charset));
+			return (T) codec.dec().charset(charset).from(in).get(type);
 		}
 
 		@Override
 		public T get(Reader in) throws Exception {
-			return (T) dec.from(in).get(type);
+			if (streaming)
+				return (T) new JSONReader(in).read(type);
+			return (T) codec.dec().from(in).get(type);
 		}
 
 		@Override
 		public T get(CharSequence in) throws Exception {
-			return (T) dec.charset("UTF-8").from(in.toString()).get(type);
+			if (streaming)
+				return (T) new JSONReader(in).read(type);
+			return (T) codec.dec().charset("UTF-8").from(in.toString()).get(type);
 		}
 
 	}
@@ -613,52 +645,32 @@ public class DTOsProvider implements DTOs {
 		return new DecImpl<Object>(type);
 	}
 
-	Field[] getFields(Object o) {
-		if (o == null)
-			return EMPTY_FIELDS;
-		return getFields(o.getClass());
+	@Override
+	public <T> Comparator<T> getComparator(Class<T> dtoClass) {
+		return getComparator(dtoClass, new HashSet<Class< ? >>());
 	}
 
-	Field[] getFields(Class< ? > c) {
-		Field fields[] = cache.get(c);
-		if (fields == null) {
-			List<Field> publicFields = new ArrayList<>();
-
-			for (Field field : getClass().getFields()) {
-				if (field.isEnumConstant() || field.isSynthetic() || Modifier.isStatic(field.getModifiers()))
-					continue;
-				publicFields.add(field);
-			}
-			Collections.sort(publicFields, new Comparator<Field>() {
-
-				@Override
-				public int compare(Field o1, Field o2) {
-					return o1.getName().compareTo(o2.getName());
-				}
-			});
-
-			cache.put(getClass(), fields = publicFields.toArray(new Field[publicFields.size()]));
-		}
-		return fields;
-	}
+	//
+	// A DTO can refer to its own type, those fields are skipped
+	//
 
 	@SuppressWarnings("unchecked")
-	@Override
-	public <T> Comparator<T> getComparator(Class<T> dtoClass) {
-		Field[] fields = getFields(dtoClass);
-		if (fields.length == 0)
+	<T> Comparator<T> getComparator(Class<T> dtoClass, Set<Class< ? >> visiting) {
+		final DTOShape shape = DTOShape.shape(dtoClass);
+		if (shape.isEmpty() || !visiting.add(dtoClass))
 			return null;
 
 		List<Comparator<T>> comparables = new ArrayList<>();
 
-		for (final Field f : fields) {
-			if (Comparable.class.isAssignableFrom(f.getType())) {
+		for (int i = 0; i < shape.size(); i++) {
+			final int f = i;
+			if (shape.types[f].isPrimitive() || Comparable.class.isAssignableFrom(shape.types[f])) {
 				comparables.add(new Comparator<T>() {
 					@Override
 					public int compare(T o1, T o2) {
 						try {
-							Comparable<Object> oo1 = (Comparable<Object>) f.get(o1);
-							Comparable<Object> oo2 = (Comparable<Object>) f.get(o2);
+							Comparable<Object> oo1 = (Comparable<Object>) shape.get(o1, f);
+							Comparable<Object> oo2 = (Comparable<Object>) shape.get(o2, f);
 							return oo1.compareTo(oo2);
 						}
 						catch (Exception e) {
@@ -669,14 +681,14 @@ public class DTOsProvider implements DTOs {
 
 				});
 			} else {
-				final Comparator<Object> comparator = (Comparator<Object>) getComparator(f.getType());
+				final Comparator<Object> comparator = (Comparator<Object>) getComparator(shape.types[f], visiting);
 				if (comparator != null) {
 					comparables.add(new Comparator<T>() {
 						@Override
 						public int compare(T o1, T o2) {
 							try {
-								Object oo1 = f.get(o1);
-								Object oo2 = f.get(o2);
+								Object oo1 = shape.get(o1, f);
+								Object oo2 = shape.get(o2, f);
 								return comparator.compare(oo1, oo2);
 							}
 							catch (Exception e) {
@@ -691,6 +703,8 @@ public class DTOsProvider implements DTOs {
 			}
 		}
 
+		visiting.remove(dtoClass);
+
 		//
 		// Check if we found any fields to sort on
 		//
@@ -717,32 +731,6 @@ public class DTOsProvider implements DTOs {
 		};
 	}
 
-	Field getField(Field[] fields, String name) {
-		int index = bsearch(fields, 0, fields.length, name);
-		if (index < 0)
-			return null;
-		else
-			return fields[index];
-	}
-
-	int bsearch(Field[] a, int fromIndex, int toIndex, String key) {
-		int low = fromIndex;
-		int high = toIndex - 1;
-
-		while (low <= high) {
-			int mid = (low + high) >>> 1;
-			Field midVal = a[mid];
-			int cmp = midVal.getName().compareTo(key);
-			if (cmp < 0)
-				low = mid + 1;
-			else if (cmp > 0)
-				high = mid - 1;
-			else
-				return mid; // key found
-		}
-		return -(low + 1); // key not found.
-	}
-
 	/**
 	 * Shallow copy
 	 */
@@ -764,20 +752,22 @@ public class DTOsProvider implements DTOs {
 			return dest;
 		}
 
-		T dest = c.newInstance();
-
 		if (source instanceof Map) {
+			T dest = c.newInstance();
 			((Map) dest).putAll((Map) source);
 			return dest;
 		}
 
 		if (source instanceof Collection) {
+			T dest = c.newInstance();
 			((Collection) dest).addAll((Collection) source);
 			return dest;
 		}
 
-		for (Field field : getFields(c)) {
-			field.set(dest, field.get(source));
+		DTOShape shape = DTOShape.shape(c);
+		T dest = (T) shape.newInstance();
+		for (int i = 0; i < shape.size(); i++) {
+			shape.set(dest, i, shape.get(source, i));
 		}
 		return dest;
 	}
@@ -812,9 +802,8 @@ public class DTOsProvider implements DTOs {
 			return dest;
 		}
 
-		T dest = c.newInstance();
-
 		if (source instanceof Map) {
+			T dest = c.newInstance();
 			Map<Object,Object> d = (Map<Object,Object>) dest;
 			Map<Object,Object> s = (Map<Object,Object>) source;
 			for (Entry< ? , ? > entry : s.entrySet()) {
@@ -825,6 +814,7 @@ public class DTOsProvider implements DTOs {
 		}
 
 		if (source instanceof Collection) {
+			T dest = c.newInstance();
 			Collection s = (Collection) source;
 			Collection d = (Collection) dest;
 			int i = 0;
@@ -835,9 +825,11 @@ public class DTOsProvider implements DTOs {
 			return dest;
 		}
 
-		for (Field field : getFields(c)) {
-			Link next = new Link(link, field.getName(), source);
-			field.set(dest, deepCopy(field.get(source), next));
+		DTOShape shape = DTOShape.shape(c);
+		T dest = (T) shape.newInstance();
+		for (int i = 0; i < shape.size(); i++) {
+			Link next = new Link(link, shape.names[i], source);
+			shape.set(dest, i, deepCopy(shape.get(source, i), next));
 		}
 		return dest;
 	}
@@ -0,0 +1,497 @@
+package osgi.dto.provider;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Array;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A pull parser that reads JSON directly into the requested type. DTO fields
+ * are looked up through the name index of their {@link DTOShape} and set as
+ * they are parsed, no intermediate maps are created for them.
+ * <p>
+ * The target types must be supported as a whole, see {@link #supports(Type)}.
+ * The answer is calculated once per class. For the other types the caller
+ * must use the generic codec.
+ */
+class JSONReader {
+	final static ClassValue<Boolean>	supported	= new ClassValue<Boolean>() {
+
+														@Override
+														protected Boolean computeValue(Class< ? > type) {
+															return supports(type, new HashSet<Class< ? >>());
+														}
+													};
+
+	final Reader						in;
+	final StringBuilder					text		= new StringBuilder();
+	char[]								buffer;
+	int									position;
+	int									limit;
+	long								offset;
+
+	JSONReader(Reader in) {
+		this.in = in;
+		this.buffer = new char[4096];
+	}
+
+	JSONReader(CharSequence in) {
+		this.in = null;
+		this.buffer = in.toString().toCharArray();
+		this.limit = buffer.length;
+	}
+
+	static boolean supports(Type type) {
+		if (type instanceof Class)
+			return supported.get((Class< ? >) type);
+		return supports(type, new HashSet<Class< ? >>());
+	}
+
+	/*
+	 * A DTO class that is already being checked is assumed to be supported,
+	 * DTOs can refer to their own type
+	 */
+	private static boolean supports(Type type, Set<Class< ? >> visiting) {
+		if (type instanceof GenericArrayType)
+			return supports(((GenericArrayType) type).getGenericComponentType(), visiting);
+
+		if (type instanceof ParameterizedType) {
+			ParameterizedType p = (ParameterizedType) type;
+			Class< ? > raw = (Class< ? >) p.getRawType();
+			Type[] arguments = p.getActualTypeArguments();
+			if (Collection.class.isAssignableFrom(raw))
+				return container(raw) && supports(arguments[0], visiting);
+			if (Map.class.isAssignableFrom(raw))
+				return container(raw) && arguments[0] == String.class && supports(arguments[1], visiting);
+			return false;
+		}
+
+		if (!(type instanceof Class))
+			return false;
+
+		Class< ? > c = (Class< ? >) type;
+		if (c.isPrimitive())
+			return c != void.class;
+
+		if (c == String.class || c == Object.class || c == Boolean.class || c == Character.class
+				|| c == Number.class || c == Integer.class || c == Long.class || c == Short.class
+				|| c == Byte.class || c == Double.class || c == Float.class || c == BigDecimal.class
+				|| c == BigInteger.class || c.isEnum())
+			return true;
+
+		if (c.isArray())
+			return c != byte[].class && c != char[].class && supports(c.getComponentType(), visiting);
+
+		if (Collection.class.isAssignableFrom(c) || Map.class.isAssignableFrom(c))
+			return container(c);
+
+		DTOShape shape = DTOShape.shape(c);
+		if (shape.isEmpty() || shape.factory == null)
+			return false;
+
+		if (!visiting.add(c))
+			return true;
+
+		for (int i = 0; i < shape.size(); i++)
+			if (shape.setters[i] == null || !supports(shape.generics[i], visiting))
+				return false;
+		return true;
+	}
+
+	private static boolean container(Class< ? > c) {
+		if (c.isInterface())
+			return c == Collection.class || c == List.class || c == Set.class
+					|| c == SortedSet.class || c == Queue.class || c == Map.class || c == SortedMap.class;
+
+		if (Modifier.isAbstract(c.getModifiers()))
+			return false;
+
+		try {
+			c.getConstructor();
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Read the next value as the given type
+	 */
+	Object read(Type type) throws Exception {
+		int c = peek();
+		if (c == 'n') {
+			literal("null");
+			return null;
+		}
+
+		if (type instanceof ParameterizedType) {
+			ParameterizedType p = (ParameterizedType) type;
+			Class< ? > raw = (Class< ? >) p.getRawType();
+			if (Map.class.isAssignableFrom(raw))
+				return map(raw, p.getActualTypeArguments()[1]);
+			return collection(raw, p.getActualTypeArguments()[0]);
+		}
+
+		if (type instanceof GenericArrayType)
+			return array(((GenericArrayType) type).getGenericComponentType());
+
+		Class< ? > t = (Class< ? >) type;
+
+		if (t == String.class)
+			return string();
+
+		if (t == Object.class)
+			return any();
+
+		if (t == boolean.class || t == Boolean.class) {
+			if (c == 't') {
+				literal("true");
+				return Boolean.TRUE;
+			}
+			literal("false");
+			return Boolean.FALSE;
+		}
+
+		if (t == char.class || t == Character.class) {
+			String s = string();
+			if (s.length() != 1)
+				throw error("Expected a single character but got " + s);
+			return s.charAt(0);
+		}
+
+		if (t.isEnum())
+			return enumeration(t, string());
+
+		if (t.isPrimitive() || Number.class.isAssignableFrom(t))
+			return number(t);
+
+		if (t.isArray())
+			return array(t.getComponentType());
+
+		if (Map.class.isAssignableFrom(t))
+			return map(t, Object.class);
+
+		if (Collection.class.isAssignableFrom(t))
+			return collection(t, Object.class);
+
+		return dto(DTOShape.shape(t));
+	}
+
+	private Object dto(DTOShape shape) throws Exception {
+		Object dto = shape.newInstance();
+		expect('{');
+		if (peek() == '}') {
+			position++;
+			return dto;
+		}
+
+		do {
+			String name = string();
+			expect(':');
+			int index = shape.index(name);
+			if (index < 0) {
+				any();
+				continue;
+			}
+
+			Object value = read(shape.generics[index]);
+			if (value != null || !shape.types[index].isPrimitive())
+				shape.set(dto, index, value);
+		} while (more('}'));
+		return dto;
+	}
+
+	private Map<String,Object> map(Class< ? > type, Type value) throws Exception {
+		Map<String,Object> map = newMap(type);
+		expect('{');
+		if (peek() == '}') {
+			position++;
+			return map;
+		}
+
+		do {
+			String name = string();
+			expect(':');
+			map.put(name, read(value));
+		} while (more('}'));
+		return map;
+	}
+
+	private Collection<Object> collection(Class< ? > type, Type member) throws Exception {
+		Collection<Object> collection = newCollection(type);
+		expect('[');
+		if (peek() == ']') {
+			position++;
+			return collection;
+		}
+
+		do {
+			collection.add(read(member));
+		} while (more(']'));
+		return collection;
+	}
+
+	private Object array(Type component) throws Exception {
+		Collection<Object> list = collection(ArrayList.class, component);
+		Class< ? > c = component instanceof Class ? (Class< ? >) component : erasure(component);
+		Object array = Array.newInstance(c, list.size());
+		int i = 0;
+		for (Object o : list) {
+			if (o != null || !c.isPrimitive())
+				Array.set(array, i, o);
+			i++;
+		}
+		return array;
+	}
+
+	/*
+	 * Read a value without a target type, objects become maps and numbers
+	 * become Long or Double
+	 */
+	private Object any() throws Exception {
+		int c = peek();
+		switch (c) {
+			case '{' :
+				return map(LinkedHashMap.class, Object.class);
+			case '[' :
+				return collection(ArrayList.class, Object.class);
+			case '"' :
+				return string();
+			case 't' :
+				literal("true");
+				return Boolean.TRUE;
+			case 'f' :
+				literal("false");
+				return Boolean.FALSE;
+			case 'n' :
+				literal("null");
+				return null;
+			default :
+				return number(Number.class);
+		}
+	}
+
+	private Object number(Class< ? > type) throws Exception {
+		peek();
+		text.setLength(0);
+		boolean decimal = false;
+		while (true) {
+			if (position == limit && !fill())
+				break;
+			char c = buffer[position];
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+')
+				text.append(c);
+			else if (c == '.' || c == 'e' || c == 'E') {
+				text.append(c);
+				decimal = true;
+			} else
+				break;
+			position++;
+		}
+
+		if (text.length() == 0)
+			throw error("Expected a number");
+
+		String s = text.toString();
+		try {
+			if (type == int.class || type == Integer.class)
+				return Integer.valueOf(s);
+			if (type == long.class || type == Long.class)
+				return Long.valueOf(s);
+			if (type == short.class || type == Short.class)
+				return Short.valueOf(s);
+			if (type == byte.class || type == Byte.class)
+				return Byte.valueOf(s);
+			if (type == double.class || type == Double.class)
+				return Double.valueOf(s);
+			if (type == float.class || type == Float.class)
+				return Float.valueOf(s);
+			if (type == BigDecimal.class)
+				return new BigDecimal(s);
+			if (type == BigInteger.class)
+				return new BigInteger(s);
+
+			if (decimal)
+				return Double.valueOf(s);
+			if (s.length() < 19)
+				return Long.valueOf(s);
+			return new BigInteger(s);
+		}
+		catch (NumberFormatException e) {
+			throw error("Invalid number " + s + " for " + type.getSimpleName());
+		}
+	}
+
+	private String string() throws Exception {
+		expect('"');
+		text.setLength(0);
+		while (true) {
+			int start = position;
+			while (position < limit) {
+				char c = buffer[position];
+				if (c == '"' || c == '\\')
+					break;
+				position++;
+			}
+			text.append(buffer, start, position - start);
+
+			if (position == limit) {
+				if (!fill())
+					throw error("Unterminated string");
+				continue;
+			}
+
+			char c = buffer[position++];
+			if (c == '"')
+				return text.toString();
+
+			text.append(escape(next()));
+		}
+	}
+
+	private char escape(char c) throws Exception {
+		switch (c) {
+			case 'n' :
+				return '\n';
+			case 'r' :
+				return '\r';
+			case 't' :
+				return '\t';
+			case 'b' :
+				return '\b';
+			case 'f' :
+				return '\f';
+			case 'u' :
+				int n = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(next(), 16);
+					if (digit < 0)
+						throw error("Invalid unicode escape");
+					n = n * 16 + digit;
+				}
+				return (char) n;
+			default :
+				return c;
+		}
+	}
+
+	@SuppressWarnings({
+			"unchecked", "rawtypes"
+	})
+	private Object enumeration(Class< ? > type, String name) throws Exception {
+		try {
+			return Enum.valueOf((Class) type, name);
+		}
+		catch (IllegalArgumentException e) {
+			throw error("No " + name + " in " + type.getName());
+		}
+	}
+
+	private void literal(String literal) throws Exception {
+		peek();
+		for (int i = 0; i < literal.length(); i++)
+			if (next() != literal.charAt(i))
+				throw error("Expected " + literal);
+	}
+
+	/*
+	 * After a member, true if another member follows
+	 */
+	private boolean more(char close) throws Exception {
+		int c = peek();
+		position++;
+		if (c == ',')
+			return true;
+		if (c == close)
+			return false;
+		throw error("Expected , or " + close);
+	}
+
+	private void expect(char expected) throws Exception {
+		if (peek() != expected)
+			throw error("Expected " + expected);
+		position++;
+	}
+
+	/*
+	 * The next character that is not white space, it is not consumed
+	 */
+	private int peek() throws Exception {
+		while (true) {
+			if (position == limit && !fill())
+				throw error("Unexpected end of input");
+			char c = buffer[position];
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+				return c;
+			position++;
+		}
+	}
+
+	private char next() throws Exception {
+		if (position == limit && !fill())
+			throw error("Unexpected end of input");
+		return buffer[position++];
+	}
+
+	private boolean fill() throws IOException {
+		if (in == null)
+			return false;
+		offset += limit;
+		position = 0;
+		limit = Math.max(0, in.read(buffer));
+		return limit > 0;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at " + (offset + position));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String,Object> newMap(Class< ? > type) throws Exception {
+		if (type.isInterface())
+			return type == SortedMap.class ? new TreeMap<String,Object>() : new LinkedHashMap<String,Object>();
+		return (Map<String,Object>) type.newInstance();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Collection<Object> newCollection(Class< ? > type) throws Exception {
+		if (type.isInterface()) {
+			if (type == SortedSet.class)
+				return new TreeSet<>();
+			if (type == Set.class)
+				return new LinkedHashSet<>();
+			if (type == Queue.class)
+				return new ArrayDeque<>();
+			return new ArrayList<>();
+		}
+		return (Collection<Object>) type.newInstance();
+	}
+
+	private static Class< ? > erasure(Type type) {
+		if (type instanceof ParameterizedType)
+			return (Class< ? >) ((ParameterizedType) type).getRawType();
+		if (type instanceof GenericArrayType)
+			return Array.newInstance(erasure(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+		return Object.class;
+	}
+}
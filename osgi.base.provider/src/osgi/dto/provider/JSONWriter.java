@@ -0,0 +1,375 @@
+package osgi.dto.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes DTOs as compact JSON in UTF-8 straight into a byte buffer that is
+ * reused per thread. The names of the fields are encoded once per DTO class
+ * and then copied as bytes, ASCII text is copied without the charset encoder.
+ * <p>
+ * Only the types with an unambiguous JSON form are handled here: null,
+ * strings, booleans, numbers, characters, enums, maps with string keys,
+ * collections, arrays other than {@code byte[]} and {@code char[]}, and
+ * objects with public fields. For anything else, or a structure that is too
+ * deep, {@link #write(Object, boolean)} returns false and the caller must
+ * use the generic codec instead. Nothing is written to the stream until the
+ * whole value is encoded so the fallback is always possible.
+ */
+class JSONWriter {
+	final static int						SIZE		= 4096;
+	final static int						RETAIN		= 64 * 1024;
+	final static int						DEPTH		= 64;
+	final static byte[]						NULL		= bytes("null");
+	final static byte[]						TRUE		= bytes("true");
+	final static byte[]						FALSE		= bytes("false");
+	final static byte[]						HEX			= bytes("0123456789abcdef");
+
+	final static ThreadLocal<JSONWriter>	writers		= new ThreadLocal<JSONWriter>() {
+															@Override
+															protected JSONWriter initialValue() {
+																return new JSONWriter();
+															}
+														};
+
+	//
+	// The encoded keys ("name":) of the fields of a DTO class, in the order
+	// of the shape
+	//
+
+	final static ClassValue<byte[][]>		keys		= new ClassValue<byte[][]>() {
+
+															@Override
+															protected byte[][] computeValue(Class< ? > type) {
+																DTOShape shape = DTOShape.shape(type);
+																byte[][] keys = new byte[shape.size()][];
+																JSONWriter w = new JSONWriter();
+																for (int i = 0; i < keys.length; i++) {
+																	w.length = 0;
+																	w.string(shape.names[i]);
+																	w.put((byte) ':');
+																	keys[i] = w.toByteArray();
+																}
+																return keys;
+															}
+														};
+
+	byte[]									buffer		= new byte[SIZE];
+	int										length;
+	boolean									ignoreNull;
+
+	/*
+	 * The writer of the current thread, it must be released after use
+	 */
+	static JSONWriter get() {
+		JSONWriter w = writers.get();
+		w.length = 0;
+		return w;
+	}
+
+	void release() {
+		length = 0;
+		if (buffer.length > RETAIN)
+			buffer = new byte[SIZE];
+	}
+
+	/*
+	 * Encode a value in the buffer, false if the value contains types we do
+	 * not handle
+	 */
+	boolean write(Object value, boolean ignoreNull) {
+		this.length = 0;
+		this.ignoreNull = ignoreNull;
+		return value(value, 0);
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+	}
+
+	byte[] toByteArray() {
+		byte[] result = new byte[length];
+		System.arraycopy(buffer, 0, result, 0, length);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private boolean value(Object value, int depth) {
+		if (value == null) {
+			put(NULL);
+			return true;
+		}
+
+		if (depth > DEPTH)
+			return false;
+
+		if (value instanceof String) {
+			string((String) value);
+			return true;
+		}
+
+		if (value instanceof Boolean) {
+			put((Boolean) value ? TRUE : FALSE);
+			return true;
+		}
+
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			number(((Number) value).longValue());
+			return true;
+		}
+
+		if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				return false;
+			ascii(value.toString());
+			return true;
+		}
+
+		if (value instanceof BigDecimal || value instanceof BigInteger) {
+			ascii(value.toString());
+			return true;
+		}
+
+		if (value instanceof Character) {
+			string(value.toString());
+			return true;
+		}
+
+		if (value instanceof Enum) {
+			string(((Enum< ? >) value).name());
+			return true;
+		}
+
+		if (value instanceof Map)
+			return map((Map< ? , ? >) value, depth);
+
+		if (value instanceof Collection) {
+			put((byte) '[');
+			boolean first = true;
+			for (Object member : (Collection< ? >) value) {
+				if (!first)
+					put((byte) ',');
+				first = false;
+				if (!value(member, depth + 1))
+					return false;
+			}
+			put((byte) ']');
+			return true;
+		}
+
+		Class< ? > type = value.getClass();
+		if (type.isArray()) {
+			if (type == byte[].class || type == char[].class)
+				return false;
+
+			put((byte) '[');
+			if (type == int[].class) {
+				int[] array = (int[]) value;
+				for (int i = 0; i < array.length; i++) {
+					if (i > 0)
+						put((byte) ',');
+					number(array[i]);
+				}
+			} else if (type == long[].class) {
+				long[] array = (long[]) value;
+				for (int i = 0; i < array.length; i++) {
+					if (i > 0)
+						put((byte) ',');
+					number(array[i]);
+				}
+			} else {
+				int n = Array.getLength(value);
+				for (int i = 0; i < n; i++) {
+					if (i > 0)
+						put((byte) ',');
+					if (!value(Array.get(value, i), depth + 1))
+						return false;
+				}
+			}
+			put((byte) ']');
+			return true;
+		}
+
+		DTOShape shape = DTOShape.shape(type);
+		if (shape.isEmpty())
+			return false;
+
+		return dto(value, shape, keys.get(type), depth);
+	}
+
+	private boolean dto(Object dto, DTOShape shape, byte[][] keys, int depth) {
+		put((byte) '{');
+		boolean first = true;
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				Object value = shape.get(dto, i);
+				if (value == null && ignoreNull)
+					continue;
+
+				if (!first)
+					put((byte) ',');
+				first = false;
+				put(keys[i]);
+				if (!value(value, depth + 1))
+					return false;
+			}
+		}
+		catch (IllegalAccessException e) {
+			return false;
+		}
+		put((byte) '}');
+		return true;
+	}
+
+	private boolean map(Map< ? , ? > map, int depth) {
+		put((byte) '{');
+		boolean first = true;
+		for (Map.Entry< ? , ? > e : map.entrySet()) {
+			if (!(e.getKey() instanceof String))
+				return false;
+
+			Object value = e.getValue();
+			if (value == null && ignoreNull)
+				continue;
+
+			if (!first)
+				put((byte) ',');
+			first = false;
+			string((String) e.getKey());
+			put((byte) ':');
+			if (!value(value, depth + 1))
+				return false;
+		}
+		put((byte) '}');
+		return true;
+	}
+
+	private void number(long n) {
+		if (n >= 0 && n < 10) {
+			put((byte) ('0' + n));
+			return;
+		}
+		ascii(Long.toString(n));
+	}
+
+	/*
+	 * A string known to be ASCII without characters to escape
+	 */
+	private void ascii(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++)
+			buffer[length++] = (byte) s.charAt(i);
+	}
+
+	private void string(String s) {
+		int n = s.length();
+		ensure(n + 2);
+		buffer[length++] = '"';
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+				if (length == buffer.length)
+					ensure(n - i + 1);
+				buffer[length++] = (byte) c;
+			} else
+				special(s, i, c);
+		}
+		put((byte) '"');
+	}
+
+	/*
+	 * Escapes and the multi byte sequences of UTF-8
+	 */
+	private void special(String s, int i, char c) {
+		ensure(12);
+		switch (c) {
+			case '"' :
+			case '\\' :
+				buffer[length++] = '\\';
+				buffer[length++] = (byte) c;
+				return;
+			case '\n' :
+				buffer[length++] = '\\';
+				buffer[length++] = 'n';
+				return;
+			case '\r' :
+				buffer[length++] = '\\';
+				buffer[length++] = 'r';
+				return;
+			case '\t' :
+				buffer[length++] = '\\';
+				buffer[length++] = 't';
+				return;
+			case '\b' :
+				buffer[length++] = '\\';
+				buffer[length++] = 'b';
+				return;
+			case '\f' :
+				buffer[length++] = '\\';
+				buffer[length++] = 'f';
+				return;
+		}
+
+		if (c < 0x20) {
+			buffer[length++] = '\\';
+			buffer[length++] = 'u';
+			buffer[length++] = '0';
+			buffer[length++] = '0';
+			buffer[length++] = HEX[c >> 4];
+			buffer[length++] = HEX[c & 0xF];
+		} else if (c < 0x800) {
+			buffer[length++] = (byte) (0xC0 | (c >> 6));
+			buffer[length++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			// the low surrogate is then skipped below
+			int cp = Character.toCodePoint(c, s.charAt(i + 1));
+			buffer[length++] = (byte) (0xF0 | (cp >> 18));
+			buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+		} else if (Character.isSurrogate(c)) {
+			if (Character.isLowSurrogate(c) && i > 0 && Character.isHighSurrogate(s.charAt(i - 1)))
+				return;
+			buffer[length++] = '?';
+		} else {
+			buffer[length++] = (byte) (0xE0 | (c >> 12));
+			buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[length++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		buffer[length++] = b;
+	}
+
+	private void put(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void ensure(int n) {
+		if (length + n > buffer.length) {
+			byte[] larger = new byte[Math.max(buffer.length * 2, length + n)];
+			System.arraycopy(buffer, 0, larger, 0, length);
+			buffer = larger;
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
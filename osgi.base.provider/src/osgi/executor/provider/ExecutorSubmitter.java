@@ -37,7 +37,7 @@ public class ExecutorSubmitter implements Executor {
 		try {
 			limiter.acquire();
 			try {
-				executor.execute(command);
+				executor.execute(MDCContext.wrap(command));
 			}
 			finally {
 				limiter.release();
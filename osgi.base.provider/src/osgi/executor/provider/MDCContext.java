@@ -0,0 +1,47 @@
+package osgi.executor.provider;
+
+import java.util.Map;
+
+import org.slf4j.MDC;
+
+/**
+ * Carries the SLF4J Mapped Diagnostic Context of the submitting thread over to
+ * the thread that runs the task, so log messages of the task can be correlated
+ * with the request that submitted it. The context of the pool thread is
+ * restored afterwards since pool threads are reused.
+ */
+class MDCContext implements Runnable {
+	final Runnable				command;
+	final Map<String,String>	context;
+
+	MDCContext(Runnable command, Map<String,String> context) {
+		this.command = command;
+		this.context = context;
+	}
+
+	/*
+	 * Wrap the command if the current thread has a context
+	 */
+	static Runnable wrap(Runnable command) {
+		Map<String,String> context = MDC.getCopyOfContextMap();
+		if (context == null || context.isEmpty())
+			return command;
+
+		return new MDCContext(command, context);
+	}
+
+	@Override
+	public void run() {
+		Map<String,String> previous = MDC.getCopyOfContextMap();
+		MDC.setContextMap(context);
+		try {
+			command.run();
+		}
+		finally {
+			if (previous == null)
+				MDC.clear();
+			else
+				MDC.setContextMap(previous);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package osgi.enroute.logging.messages.api;
+
+import java.util.List;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * A service that receives the messages of the typed {@link LogBook}
+ * interfaces as events instead of text, in batches. The events are only
+ * created when the structured mode of the log admin is enabled, the messages
+ * are then not formatted and not sent to the Log Service.
+ */
+@ConsumerType
+public interface LogEventSink {
+
+	/**
+	 * A call on a log book interface
+	 */
+	class Event {
+		/**
+		 * The time the event was created, in milliseconds since the epoch
+		 */
+		public long		time;
+
+		/**
+		 * The OSGi Log Service level, trace is LOG_DEBUG + 1
+		 */
+		public int		level;
+
+		/**
+		 * The symbolic name of the bundle that logged
+		 */
+		public String	bundle;
+
+		/**
+		 * The scope of the log book, can be null
+		 */
+		public String	scope;
+
+		/**
+		 * The fully qualified name of the log book interface
+		 */
+		public String	type;
+
+		/**
+		 * The name of the method, identifies the message within the type
+		 */
+		public String	id;
+
+		/**
+		 * The format the message would have been rendered with
+		 */
+		public String	format;
+
+		/**
+		 * The arguments of the call as given, they are not copied
+		 */
+		public Object[]	arguments;
+	}
+
+	/**
+	 * Receive a batch of events. The list is only valid during the call.
+	 * 
+	 * @param batch
+	 *            the events in the order they were logged
+	 */
+	void events(List< ? extends Event> batch) throws Exception;
+}
@@ -0,0 +1,97 @@
+package osgi.enroute.logging.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import osgi.enroute.logging.messages.api.LogEventSink;
+import osgi.enroute.logging.messages.api.LogEventSink.Event;
+
+/**
+ * Delivers the structured log book events to the event sinks in batches on
+ * its own thread. The callers only create the event and put it in a bounded
+ * queue, when the queue is full the event is dropped and counted. The
+ * number of dropped events is shown by the logbook:events command.
+ */
+class EventDispatcher extends Thread {
+	final static int				BATCH		= 256;
+
+	final BlockingQueue<Event>		queue;
+	final int						capacity;
+	final List<LogEventSink>		sinks;
+	final AtomicLong				dropped		= new AtomicLong();
+	volatile boolean				closed;
+
+	EventDispatcher(List<LogEventSink> sinks, int capacity) {
+		super("enRoute :: Log Book :: Events");
+		setDaemon(true);
+		this.sinks = sinks;
+		this.capacity = Math.max(1, capacity);
+		this.queue = new ArrayBlockingQueue<>(this.capacity);
+	}
+
+	/*
+	 * Called on the caller's thread
+	 */
+	void offer(Event event) {
+		if (!queue.offer(event))
+			dropped.incrementAndGet();
+	}
+
+	@Override
+	public void run() {
+		List<Event> batch = new ArrayList<>(BATCH);
+		while (!closed)
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch, BATCH - 1);
+				deliver(batch);
+			}
+			catch (InterruptedException e) {
+				// closed
+			}
+	}
+
+	private void deliver(List<Event> batch) {
+		for (LogEventSink sink : sinks)
+			try {
+				sink.events(batch);
+			}
+			catch (Exception e) {
+				System.err.println("Log event sink " + sink + " failed: " + e);
+			}
+		batch.clear();
+	}
+
+	/*
+	 * Stop the thread and deliver the queued events on the calling thread.
+	 * At most a queue full is delivered, callers that still log cannot keep
+	 * us here. If the thread is still in a sink the events are not delivered
+	 * concurrently, they are dropped and counted.
+	 */
+	void close() {
+		closed = true;
+		interrupt();
+		try {
+			join(TimeUnit.SECONDS.toMillis(1));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		boolean alive = isAlive();
+		List<Event> batch = new ArrayList<>(BATCH);
+		int left = capacity;
+		while (left > 0 && queue.drainTo(batch, Math.min(BATCH, left)) > 0) {
+			left -= batch.size();
+			if (alive) {
+				dropped.addAndGet(batch.size());
+				batch.clear();
+			} else
+				deliver(batch);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package osgi.enroute.logging.provider;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import osgi.enroute.logging.messages.api.LogEventSink;
+import osgi.enroute.logging.util.StackTraceRenderer;
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.ConfigurationPolicy;
+import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta.AD;
+import aQute.bnd.annotation.metatype.Meta.OCD;
+
+/**
+ * Writes the log book events to a file as JSON, one object per line. A batch
+ * is written and flushed at once. Numbers and booleans are kept as is, arrays
+ * and collections become JSON arrays, throwables their stack trace and all
+ * other arguments their string.
+ */
+@Component(designate = JsonLinesEventSink.Config.class, name = "osgi.enroute.logging.events", configurationPolicy = ConfigurationPolicy.require, provide = LogEventSink.class)
+public class JsonLinesEventSink implements LogEventSink {
+	final static int			DEPTH		= 8;
+
+	final StackTraceRenderer	stackTraces	= new StackTraceRenderer();
+	Writer						out;
+
+	@OCD(description = "Writes the structured log book events as JSON lines")
+	interface Config {
+		@AD(description = "The file to append the events to")
+		String file();
+	}
+
+	@Activate
+	void activate(Map<String,Object> map) throws IOException {
+		Config config = Configurable.createConfigurable(Config.class, map);
+		File file = new File(config.file()).getAbsoluteFile();
+		file.getParentFile().mkdirs();
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+
+	@Deactivate
+	synchronized void deactivate() throws IOException {
+		out.close();
+	}
+
+	@Override
+	public synchronized void events(List< ? extends Event> batch) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Event event : batch) {
+			sb.setLength(0);
+			write(sb, event);
+			out.append(sb).append('\n');
+		}
+		out.flush();
+	}
+
+	void write(StringBuilder sb, Event event) {
+		sb.append("{\"time\":").append(event.time);
+		sb.append(",\"level\":").append(event.level);
+		sb.append(",\"bundle\":");
+		string(sb, event.bundle);
+		sb.append(",\"scope\":");
+		string(sb, event.scope);
+		sb.append(",\"type\":");
+		string(sb, event.type);
+		sb.append(",\"id\":");
+		string(sb, event.id);
+		sb.append(",\"format\":");
+		string(sb, event.format);
+		sb.append(",\"arguments\":");
+		value(sb, event.arguments, 0);
+		sb.append('}');
+	}
+
+	private void value(StringBuilder sb, Object value, int depth) {
+		if (value == null)
+			sb.append("null");
+		else if (value instanceof Boolean || value instanceof Number && finite((Number) value))
+			sb.append(value);
+		else if (value instanceof Throwable) {
+			StringBuilder trace = new StringBuilder();
+			stackTraces.render(trace, (Throwable) value);
+			string(sb, trace.toString());
+		}
+		else if (depth < DEPTH && value.getClass().isArray()) {
+			sb.append('[');
+			for (int i = 0; i < Array.getLength(value); i++) {
+				if (i > 0)
+					sb.append(',');
+				value(sb, Array.get(value, i), depth + 1);
+			}
+			sb.append(']');
+		} else if (depth < DEPTH && value instanceof Collection) {
+			sb.append('[');
+			String del = "";
+			for (Object o : (Collection< ? >) value) {
+				sb.append(del);
+				value(sb, o, depth + 1);
+				del = ",";
+			}
+			sb.append(']');
+		} else
+			string(sb, value.toString());
+	}
+
+	private static boolean finite(Number n) {
+		if (n instanceof Double || n instanceof Float)
+			return !Double.isNaN(n.doubleValue()) && !Double.isInfinite(n.doubleValue());
+		return true;
+	}
+
+	private static void string(StringBuilder sb, String s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"' :
+					sb.append("\\\"");
+					break;
+				case '\\' :
+					sb.append("\\\\");
+					break;
+				case '\n' :
+					sb.append("\\n");
+					break;
+				case '\r' :
+					sb.append("\\r");
+					break;
+				case '\t' :
+					sb.append("\\t");
+					break;
+				default :
+					if (c < 0x20)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
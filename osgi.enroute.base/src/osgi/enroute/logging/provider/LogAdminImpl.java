@@ -1,40 +1,108 @@
 package osgi.enroute.logging.provider;
 
-import java.io.IOException;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.io.Writer;
 import java.lang.reflect.Array;
-import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Formatter;
 import java.util.Hashtable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.log.LogService;
 
-import osgi.enroute.logging.messages.api.Format;
 import osgi.enroute.logging.messages.api.LogBook;
+import osgi.enroute.logging.messages.api.LogEventSink;
+import osgi.enroute.logging.messages.api.LogEventSink.Event;
+import osgi.enroute.logging.util.StackTraceRenderer;
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
 import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.component.Modified;
 import aQute.bnd.annotation.component.Reference;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta.AD;
+import aQute.bnd.annotation.metatype.Meta.OCD;
 
 /**
- * 
+ * Provides the {@link LogBook} service to each bundle and formats the
+ * messages for the Log Service.
+ * <p>
+ * The levels are set per bundle and per scope prefix from the configuration
+ * and can be changed at runtime with the gogo commands in the logbook scope.
+ * A rule is {@code [bsn][/scope]=level}, the most specific rule wins: a rule
+ * for the bundle over a rule for all bundles ({@code *}), then the longest
+ * scope prefix. A change is pushed into the flags of the log books so a
+ * disabled level costs a single volatile read.
+ * <p>
+ * In the structured mode the calls on typed log book interfaces are not
+ * formatted, they are queued as events for the {@link LogEventSink} services.
+ * <p>
+ * The formatted messages are queued per bundle and delivered to the Log
+ * Service on a separate thread, see {@link LogBookImpl}.
  */
-@Component
+@Component(designate = LogAdminImpl.Config.class, name = "osgi.enroute.logging.provider")
 public class LogAdminImpl {
 	final static int				LOG_TRACE		= LogService.LOG_DEBUG + 1;
-	final static Pattern			CUSTOM_CLASSES	= Pattern
-															.compile("(?!com\\.sun|sun|java\\.|osgi\\.enroute\\.logging\\.provider)(.+\\.)+(.*)");
+	final static String[]			SKIP			= {
+			"com.sun.", "sun.", "java.", "jdk.", "osgi.enroute.logging.provider."
+													};
+	final static int				SITES			= 1024;
+	final static Object[]			NO_ARGUMENTS	= new Object[0];
+	final static Site[]				sites			= new Site[SITES];
+	final static String[]			LEVELS			= {
+			"OFF", "ERROR", "WARN", "INFO", "DEBUG", "TRACE"
+													};
+
+	@OCD(description = "Configuration for the enRoute Log Book")
+	interface Config {
+		@AD(description = "The level for the log books without a matching rule", deflt = "INFO", optionValues = {
+				"OFF", "ERROR", "WARN", "INFO", "DEBUG", "TRACE"
+		})
+		String level();
+
+		@AD(description = "Levels per bundle and scope prefix, [bsn][/scope]=level, the bsn can be *", required = false)
+		String[] levels();
+
+		@AD(description = "Prefix the messages with the class, method and line that logged them", deflt = "true")
+		boolean where();
+
+		@AD(description = "Comma separated prefixes of the frames to elide from the stack traces", required = false)
+		String traceFilters();
+
+		@AD(description = "Send the calls on typed log book interfaces as events to the Log Event Sinks instead of formatting them for the Log Service", deflt = "false")
+		boolean structured();
+
+		@AD(description = "The maximum number of events waiting for the Log Event Sinks", deflt = "4096")
+		int eventQueue();
+	}
+
+	/*
+	 * A call site and its rendered location
+	 */
+	static class Site {
+		final StackTraceElement	frame;
+		final String			location;
+
+		Site(StackTraceElement frame, String location) {
+			this.frame = frame;
+			this.location = location;
+		}
+	}
 
 	ComponentContext				ctx;
 	ServiceRegistration< ? >		registration;
@@ -42,11 +110,51 @@ public class LogAdminImpl {
 	boolean							printStackTraces;
 	PrintStream						out				= System.err;
 	LogService						logService;
+	boolean							where			= true;
+	StackTraceRenderer				stackTraces		= new StackTraceRenderer();
+	ServiceRegistration< ? >		commands;
+
+	final Set<LogBookImpl>			books			= Collections
+															.newSetFromMap(new ConcurrentHashMap<LogBookImpl,Boolean>());
+	final Map<String,Integer>		overrides		= new LinkedHashMap<>();
+	Map<String,Integer>				configured		= Collections.emptyMap();
+	volatile Map<String,Integer>	rules			= Collections.emptyMap();
+	volatile int					level			= LogService.LOG_INFO;
+	volatile boolean				structured;
+	final List<LogEventSink>		eventSinks		= new CopyOnWriteArrayList<>();
+	EventDispatcher					events;
+	final LogDelivery				delivery		= new LogDelivery();
+
+	/*
+	 * The log books hold on to the Log Service, they must get it again when
+	 * it goes away or changes
+	 */
+	final ServiceListener			listener		= new ServiceListener() {
+
+														@Override
+														public void serviceChanged(ServiceEvent event) {
+															if (event.getType() == ServiceEvent.REGISTERED)
+																return;
+															for (LogBookImpl book : books)
+																book.invalidate();
+														}
+													};
 
 	@Activate
-	void activate(ComponentContext ctx) throws Exception {
+	void activate(ComponentContext ctx, Map<String,Object> map) throws Exception {
 		this.ctx = ctx;
+		Config config = Configurable.createConfigurable(Config.class, map);
+		this.where = config.where();
+		if (config.traceFilters() != null)
+			stackTraces = new StackTraceRenderer(config.traceFilters(), StackTraceRenderer.CACHE);
+		events = new EventDispatcher(eventSinks, config.eventQueue());
+		events.start();
+		configure(config);
+
 		logService = ctx.getBundleContext().getService(log);
+		ctx.getBundleContext().addServiceListener(listener,
+				"(" + Constants.OBJECTCLASS + "=" + LogService.class.getName() + ")");
+		delivery.start();
 		Hashtable<String,Object> properties = new Hashtable<>();
 
 		//
@@ -59,45 +167,262 @@ public class LogAdminImpl {
 
 			@Override
 			public LogBook getService(Bundle bundle, ServiceRegistration<LogBook> registration) {
-				return new LogBookImpl(LogAdminImpl.this, bundle, bundle.getSymbolicName());
+				LogBookImpl book = new LogBookImpl(LogAdminImpl.this, bundle, bundle.getSymbolicName());
+				books.add(book);
+				book.setLevel(level(book));
+				return book;
 			}
 
 			@Override
 			public void ungetService(Bundle bundle, ServiceRegistration<LogBook> registration, LogBook service) {
+				books.remove(service);
 				((LogBookImpl) service).close();
 			}
 		}, properties);
+
+		Hashtable<String,Object> command = new Hashtable<>();
+		command.put("command.scope", "logbook");
+		command.put("command.function", new String[] {
+				"level", "levels", "rules", "reset", "dropped", "events"
+		});
+		commands = ctx.getBundleContext().registerService(Object.class.getName(), this, command);
+	}
+
+	@Modified
+	void modified(Map<String,Object> map) throws Exception {
+		configure(Configurable.createConfigurable(Config.class, map));
 	}
 
 	@Deactivate
 	void deactivate() {
+		commands.unregister();
 		registration.unregister();
+		ctx.getBundleContext().removeServiceListener(listener);
+		events.close();
+		delivery.close();
+	}
+
+	/**
+	 * Set the level for a rule at runtime, it overrides the configuration until
+	 * reset.
+	 * 
+	 * @param rule
+	 *            [bsn][/scope], the bsn can be *
+	 * @param level
+	 *            OFF, ERROR, WARN, INFO, DEBUG or TRACE
+	 */
+	public String level(String rule, String level) {
+		int n = parse(level);
+		synchronized (overrides) {
+			overrides.put(rule, n);
+		}
+		update();
+		return rule + "=" + LEVELS[n];
+	}
+
+	/**
+	 * The effective level of each log book
+	 */
+	public Map<String,String> levels() {
+		Map<String,String> map = new TreeMap<>();
+		for (LogBookImpl book : books) {
+			String bsn = book.bundle.getSymbolicName();
+			map.put(bsn, LEVELS[level(book)]);
+			synchronized (book) {
+				if (book.handlers != null)
+					for (LogBookHandler handler : book.handlers)
+						map.put(bsn + "/" + scope(handler), LEVELS[level(handler)]);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * The rules in effect, configured and set at runtime
+	 */
+	public Map<String,String> rules() {
+		Map<String,String> map = new LinkedHashMap<>();
+		map.put("*", LEVELS[level]);
+		for (Map.Entry<String,Integer> e : rules.entrySet())
+			map.put(e.getKey(), LEVELS[e.getValue()]);
+		return map;
+	}
+
+	/**
+	 * Remove the levels set at runtime
+	 */
+	public void reset() {
+		synchronized (overrides) {
+			overrides.clear();
+		}
+		update();
+	}
+
+	/**
+	 * The messages each log book dropped, because its queue was full or the
+	 * Log Service was not available
+	 */
+	public Map<String,Long> dropped() {
+		Map<String,Long> map = new TreeMap<>();
+		for (LogBookImpl book : books)
+			map.put(book.bundle.getSymbolicName(), book.dropped.get());
+		return map;
+	}
+
+	/**
+	 * The state of the queue of the structured events
+	 */
+	public Map<String,Object> events() {
+		Map<String,Object> map = new LinkedHashMap<>();
+		map.put("structured", structured);
+		map.put("sinks", eventSinks.size());
+		map.put("queued", events.queue.size());
+		map.put("dropped", events.dropped.get());
+		return map;
+	}
+
+	private synchronized void configure(Config config) {
+		Map<String,Integer> configured = new LinkedHashMap<>();
+		if (config.levels() != null)
+			for (String rule : config.levels()) {
+				int n = rule.lastIndexOf('=');
+				if (n > 0)
+					configured.put(rule.substring(0, n).trim(), parse(rule.substring(n + 1)));
+			}
+		this.level = parse(config.level());
+		this.structured = config.structured();
+		this.configured = configured;
+		update();
+	}
+
+	/*
+	 * Merge the configured and runtime rules and push the levels into the
+	 * flags of all log books
+	 */
+	private synchronized void update() {
+		Map<String,Integer> rules = new LinkedHashMap<>(configured);
+		synchronized (overrides) {
+			rules.putAll(overrides);
+		}
+		this.rules = rules;
+
+		for (LogBookImpl book : books) {
+			book.setLevel(level(book));
+			synchronized (book) {
+				if (book.handlers != null)
+					for (LogBookHandler handler : book.handlers)
+						handler.setLevel(level(handler));
+			}
+		}
+	}
+
+	/*
+	 * Find the most specific rule for a log book. The scope of the bundle's
+	 * log book itself is empty.
+	 */
+	int level(MessageFormatter msf) {
+		String bsn = msf.bundle == null ? null : msf.bundle.getSymbolicName();
+		String scope = msf instanceof LogBookHandler ? scope((LogBookHandler) msf) : "";
+
+		int result = level;
+		int best = -1;
+		for (Map.Entry<String,Integer> e : rules.entrySet()) {
+			String rule = e.getKey();
+			int slash = rule.indexOf('/');
+			String bundle = slash < 0 ? rule : rule.substring(0, slash);
+			String prefix = slash < 0 ? "" : rule.substring(slash + 1);
+
+			int score;
+			if (bundle.isEmpty() || bundle.equals("*"))
+				score = 0;
+			else if (bundle.equals(bsn))
+				score = 1 << 16;
+			else
+				continue;
+
+			if (!scope.startsWith(prefix))
+				continue;
+
+			score += prefix.length();
+			if (score > best) {
+				best = score;
+				result = e.getValue();
+			}
+		}
+		return result;
+	}
+
+	private static String scope(LogBookHandler handler) {
+		return handler.scope == null ? "" : handler.scope;
+	}
+
+	/*
+	 * A level by name or Log Service number, WARNING is accepted for WARN
+	 */
+	static int parse(String level) {
+		if (level == null)
+			return LogService.LOG_INFO;
+		String name = level.trim().toUpperCase();
+		if (name.equals("WARNING"))
+			return LogService.LOG_WARNING;
+		for (int i = 0; i < LEVELS.length; i++)
+			if (LEVELS[i].equals(name))
+				return i;
+		try {
+			return Math.max(0, Math.min(LOG_TRACE, Integer.parseInt(name)));
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unknown level " + level + ", must be one of OFF, ERROR, WARN, INFO, DEBUG, TRACE");
+		}
 	}
 
 	void message(MessageFormatter msf, int level, String format, Object[] arguments) {
+		message(msf, level, format, arguments, -1, -1, true);
+	}
+
+	/*
+	 * A call on a log book interface, the level, format and argument roles
+	 * were calculated once for the method. In the structured mode the call
+	 * becomes an event and is not formatted.
+	 */
+	Object message(MessageFormatter msf, LogBookHandler.Call call, Object[] args) {
+		if (structured && !eventSinks.isEmpty()) {
+			Event event = new Event();
+			event.time = System.currentTimeMillis();
+			event.level = call.level;
+			event.bundle = msf.bundle.getSymbolicName();
+			event.scope = msf.scope;
+			event.type = call.type;
+			event.id = call.id;
+			event.format = call.format;
+			event.arguments = args == null ? NO_ARGUMENTS : args;
+			events.offer(event);
+			return null;
+		}
+
+		message(msf, call.level, call.format, args == null ? NO_ARGUMENTS : args, call.reference, call.exception,
+				call.scan);
+		return null;
+	}
+
+	private void message(MessageFormatter msf, int level, String format, Object[] arguments, int reference,
+			int exception, boolean scan) {
 		try {
-			ServiceReference< ? > ref = null;
-			Throwable throwable = null;
-			int n = 0;
+			ServiceReference< ? > ref = reference < 0 ? null : (ServiceReference< ? >) arguments[reference];
+			Throwable throwable = exception < 0 ? null : (Throwable) arguments[exception];
 
 			//
 			// Adjust the arguments since arrays print badly and we can do
-			// better
-			// for
-			// some other objects as well.
+			// better for some other objects as well.
 			//
 
 			for (int i = 0; i < arguments.length; i++)
-				if (arguments[i] != null) {
+				if (arguments[i] != null && i != reference && i != exception) {
 
-					if (ref == null && arguments[i] instanceof ServiceReference< ? >) {
+					if (scan && ref == null && arguments[i] instanceof ServiceReference< ? >) {
 						ref = (ServiceReference< ? >) arguments[i];
-						n++;
-					}
-
-					else if (throwable == null && arguments[i] instanceof Throwable) {
+					} else if (scan && throwable == null && arguments[i] instanceof Throwable) {
 						throwable = (Throwable) arguments[i];
-						n += 2;
 					} else if (!(arguments[i] instanceof String))
 						arguments[i] = toString(arguments[i]);
 				}
@@ -115,41 +440,18 @@ public class LogAdminImpl {
 				sb.append(msf.scope).append(":: ");
 			}
 
-			where(sb);
+			if (where)
+				where(sb);
 
 			try (Formatter formatter = new Formatter(sb)) {
 				formatter.format(format, nargs);
 			}
 
-			LogService log = msf.log;
-			if (log == null)
-				log = msf.bundle.getBundleContext().getService(this.log);
-
-			if (log != null) {
-
-				switch (n) {
+			msf.book().enqueue(new LogBookImpl.Message(level, ref, sb.toString(), throwable), delivery);
 
-					case 1 :
-						log.log(ref, level, sb.toString());
-						break;
-					case 2 :
-						log.log(level, sb.toString(), throwable);
-						break;
-					case 3 :
-						log.log(ref, level, sb.toString(), throwable);
-						break;
-
-					case 0 :
-					default :
-						log.log(level, sb.toString());
-						break;
-				}
-			}
 			if (throwable != null && printStackTraces) {
 				sb.append("\n");
-				try (PrintWriter sw = getWriter(sb)) {
-					throwable.printStackTrace(sw);
-				}
+				stackTraces.render(sb, throwable);
 				out.println(sb.toString());
 			}
 		}
@@ -158,24 +460,6 @@ public class LogAdminImpl {
 		}
 	}
 
-	private PrintWriter getWriter(final StringBuilder sb) {
-		return new PrintWriter(new Writer() {
-
-			@Override
-			public void write(char[] cbuf, int off, int len) throws IOException {
-				for (int i = 0; i < len; i++)
-					sb.append(cbuf[i + off]);
-			}
-
-			@Override
-			public void flush() throws IOException {}
-
-			@Override
-			public void close() throws IOException {}
-
-		});
-	}
-
 	/**
 	 * Create a more suitable text presentation for array objects
 	 * 
@@ -197,40 +481,43 @@ public class LogAdminImpl {
 	}
 
 	/**
-	 * Get the current location of where the error was reported.
+	 * Get the current location of where the error was reported. This is the
+	 * first frame that is not part of the logging code or the VM. The same call
+	 * sites log over and over again so the rendered location is cached, the
+	 * cache is direct mapped on the hash of the frame.
 	 */
 	private void where(StringBuilder sb) {
-		try {
-			throw new Exception();
-		}
-		catch (Exception e) {
-			StackTraceElement[] stackTrace = e.getStackTrace();
-			for (int i = 2; i < stackTrace.length; i++) {
-				Matcher matcher = CUSTOM_CLASSES.matcher(stackTrace[i].getClassName());
-
-				if (matcher.matches()) {
-					String logMethod = stackTrace[i].getMethodName();
-					String logClass = matcher.group(2);
-					int line = stackTrace[i].getLineNumber();
-					sb.append("[").append(logClass).append(".").append(logMethod);
-					if (line != 0)
-						sb.append(":").append(line);
-					sb.append("] ");
-				}
+		StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+		for (int i = 2; i < stackTrace.length; i++) {
+			StackTraceElement frame = stackTrace[i];
+			String className = frame.getClassName();
+			if (skip(className))
+				continue;
+
+			int index = frame.hashCode() & (SITES - 1);
+			Site site = sites[index];
+			if (site == null || !site.frame.equals(frame)) {
+				StringBuilder location = new StringBuilder();
+				location.append("[").append(className, className.lastIndexOf('.') + 1, className.length())
+						.append(".").append(frame.getMethodName());
+				if (frame.getLineNumber() > 0)
+					location.append(":").append(frame.getLineNumber());
+				location.append("] ");
+				site = new Site(frame, location.toString());
+				sites[index] = site;
 			}
+			sb.append(site.location);
+			return;
 		}
 	}
 
-	Object message(MessageFormatter msf, int level, Method method, Object[] args) {
-		Format f = method.getAnnotation(Format.class);
-		String format;
-		if (f == null)
-			format = makeup(method.getName(), args.length);
-		else
-			format = f.value();
-
-		message(msf, level, format, args);
-		return null;
+	private static boolean skip(String className) {
+		if (className.indexOf('.') < 0)
+			return true;
+		for (String prefix : SKIP)
+			if (className.startsWith(prefix))
+				return true;
+		return false;
 	}
 
 	/**
@@ -240,7 +527,7 @@ public class LogAdminImpl {
 	 * @param length
 	 * @return
 	 */
-	private String makeup(String id, int length) {
+	static String makeup(String id, int length) {
 		StringBuilder sb = new StringBuilder();
 		sb.append(Character.toUpperCase(id.charAt(0)));
 
@@ -268,6 +555,7 @@ public class LogAdminImpl {
 					sb.append(c);
 				}
 			}
+			i++;
 		}
 		while (length > 0) {
 			sb.append(" %s ");
@@ -278,6 +566,7 @@ public class LogAdminImpl {
 
 	<T> T scoped(LogBookImpl book, Class<T> type, String prefix) {
 		LogBookHandler handler = new LogBookHandler(this, prefix, book);
+		handler.setLevel(level(handler));
 		synchronized (book) {
 			if (book.handlers == null)
 				book.handlers = new ArrayList<>();
@@ -288,6 +577,15 @@ public class LogAdminImpl {
 		}, handler));
 	}
 
+	@Reference(type = '*')
+	void addLogEventSink(LogEventSink sink) {
+		eventSinks.add(sink);
+	}
+
+	void removeLogEventSink(LogEventSink sink) {
+		eventSinks.remove(sink);
+	}
+
 	@Reference(service = LogService.class)
 	void setLogService(ServiceReference< LogService > ref) {
 		this.log = ref;
@@ -2,14 +2,88 @@ package osgi.enroute.logging.provider;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
 
+import osgi.enroute.logging.messages.api.Format;
 import osgi.enroute.logging.messages.api.LogBook;
 
+/**
+ * The invocation handler of the scoped log book proxies. What a method of a
+ * log book interface does is calculated once per interface and cached in a
+ * {@link ClassValue}: the level from the return type, the format from the
+ * {@link Format} annotation or the method name, and which arguments are the
+ * service reference and the exception.
+ */
 public class LogBookHandler extends MessageFormatter implements InvocationHandler {
+	final static ClassValue<Map<Method,Call>>	calls	= new ClassValue<Map<Method,Call>>() {
 
-	final LogBookImpl	parent;
+															@Override
+															protected Map<Method,Call> computeValue(Class< ? > type) {
+																Map<Method,Call> map = new HashMap<>();
+																for (Method m : type.getDeclaredMethods())
+																	map.put(m, new Call(m));
+																return map;
+															}
+														};
+
+	final LogBookImpl							parent;
+
+	/*
+	 * The precompiled dispatch of a log book method. The reference and
+	 * exception are the indexes of the arguments with that role, -1 if none.
+	 * If an argument is declared as a super type of these (Object) we must
+	 * still look at the arguments when logging.
+	 */
+	static class Call {
+		final String	type;
+		final String	id;
+		final int		level;
+		final String	format;
+		final int		reference;
+		final int		exception;
+		final boolean	scan;
+
+		Call(Method method) {
+			this.type = method.getDeclaringClass().getName();
+			this.id = method.getName();
+
+			Class< ? > type = method.getReturnType();
+			if (type == DEBUG.class)
+				level = LogService.LOG_DEBUG;
+			else if (type == TRACE.class)
+				level = LogAdminImpl.LOG_TRACE;
+			else if (type == WARN.class)
+				level = LogService.LOG_WARNING;
+			else if (type == ERROR.class)
+				level = LogService.LOG_ERROR;
+			else
+				level = LogService.LOG_INFO; // treat as info
+
+			Class< ? >[] parameters = method.getParameterTypes();
+			Format f = method.getAnnotation(Format.class);
+			format = f == null ? LogAdminImpl.makeup(method.getName(), parameters.length) : f.value();
+
+			int reference = -1;
+			int exception = -1;
+			boolean scan = false;
+			for (int i = 0; i < parameters.length; i++) {
+				Class< ? > p = parameters[i];
+				if (reference < 0 && ServiceReference.class.isAssignableFrom(p))
+					reference = i;
+				else if (exception < 0 && Throwable.class.isAssignableFrom(p))
+					exception = i;
+				else if (p.isAssignableFrom(Throwable.class) || p.isAssignableFrom(ServiceReference.class))
+					scan = true;
+			}
+			this.reference = reference;
+			this.exception = exception;
+			this.scan = scan;
+		}
+	}
 
 	public LogBookHandler(LogAdminImpl admin, String scope, LogBookImpl parent) {
 		super(admin, parent.bundle, scope);
@@ -18,28 +92,41 @@ public class LogBookHandler extends MessageFormatter implements InvocationHandle
 
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-		
+
 		if (method.getDeclaringClass() == LogBook.class)
 			return method.invoke(this, args);
-		else {
-			Class< ? > type = method.getReturnType();
-			if (type == DEBUG.class && isDebugEnabled())
-				return admin.message(this, LogService.LOG_DEBUG, method, args);
-			if (type == TRACE.class && isTraceEnabled())
-				return admin.message(this, LogAdminImpl.LOG_TRACE, method, args);
-			if (type == WARN.class && isWarnEnabled())
-				return admin.message(this, LogService.LOG_WARNING, method, args);
-			if (type == ERROR.class && isErrorEnabled())
-				return admin.message(this, LogService.LOG_ERROR, method, args);
-
-			// method without a proper return type
-			// treat as info
 
-			if (isInfoEnabled())
-				return admin.message(this, LogService.LOG_INFO, method, args);
+		Call call = calls.get(method.getDeclaringClass()).get(method);
+		if (call == null)
+			call = new Call(method);
 
-			return null;
+		switch (call.level) {
+			case LogService.LOG_DEBUG :
+				if (!isDebugEnabled())
+					return null;
+				break;
+			case LogAdminImpl.LOG_TRACE :
+				if (!isTraceEnabled())
+					return null;
+				break;
+			case LogService.LOG_WARNING :
+				if (!isWarnEnabled())
+					return null;
+				break;
+			case LogService.LOG_ERROR :
+				if (!isErrorEnabled())
+					return null;
+				break;
+			default :
+				if (!isInfoEnabled())
+					return null;
+				break;
 		}
+		LogAdminImpl admin = this.admin;
+		if (admin == null)
+			return null;
+
+		return admin.message(this, call, args);
 	}
 
 	@Override
@@ -47,5 +134,10 @@ public class LogBookHandler extends MessageFormatter implements InvocationHandle
 		return admin.scoped(parent, type, prefix);
 	}
 
+	@Override
+	LogBookImpl book() {
+		return parent;
+	}
+
 
 }
@@ -1,30 +1,176 @@
 package osgi.enroute.logging.provider;
 
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
 
 import osgi.enroute.logging.messages.api.LogBook;
 
+/**
+ * The log book of a bundle. The formatted messages of the book and its scoped
+ * handlers are put in a small queue and delivered to the Log Service on the
+ * delivery thread of the admin, so the callers never touch the service
+ * registry. The Log Service is got once with the context of the bundle and
+ * held until it is unregistered or modified.
+ */
 public class LogBookImpl extends MessageFormatter {
-	List<LogBookHandler>	handlers;
+	final static int					QUEUE		= 256;
+
+	final BlockingQueue<Message>		queue		= new ArrayBlockingQueue<>(QUEUE);
+	final AtomicBoolean					scheduled	= new AtomicBoolean();
+	final AtomicLong					dropped		= new AtomicLong();
+	List<LogBookHandler>				handlers;
+	ServiceReference<LogService>		reference;
+	LogService							log;
+	volatile boolean					stale;
+
+	/*
+	 * A formatted message waiting for the Log Service
+	 */
+	static class Message {
+		final int					level;
+		final ServiceReference< ? >	reference;
+		final String				text;
+		final Throwable				throwable;
+
+		Message(int level, ServiceReference< ? > reference, String text, Throwable throwable) {
+			this.level = level;
+			this.reference = reference;
+			this.text = text;
+			this.throwable = throwable;
+		}
+	}
 
 	public LogBookImpl(LogAdminImpl impl, Bundle b, String scope) {
 		super(impl, b, scope);
 	}
 
 	public void close() {
-		if (handlers == null)
-			return;
-		
-		for ( LogBookHandler h : handlers) {
-			h.close();
+		release(true);
+
+		synchronized (this) {
+			if (handlers != null) {
+				for (LogBookHandler h : handlers) {
+					h.close();
+				}
+				handlers.clear();
+			}
 		}
-		handlers.clear();
+		super.close();
 	}
 
 	@Override
 	public <T extends LogBook> T scoped(Class<T> type, String prefix) {
 		return admin.scoped(this,type, prefix);
 	}
+
+	@Override
+	LogBookImpl book() {
+		return this;
+	}
+
+	/*
+	 * Called on the caller's thread. When the queue is full the message is
+	 * dropped, logging must not block.
+	 */
+	void enqueue(Message message, LogDelivery delivery) {
+		if (!queue.offer(message))
+			dropped.incrementAndGet();
+		else if (scheduled.compareAndSet(false, true))
+			delivery.schedule(this);
+	}
+
+	/*
+	 * Called on the delivery thread. The flag is cleared first so a message
+	 * queued during the delivery schedules the book again.
+	 */
+	void deliver() {
+		scheduled.set(false);
+
+		Message m;
+		while ((m = queue.poll()) != null) {
+			LogService log = service();
+			if (log == null) {
+				dropped.incrementAndGet();
+				continue;
+			}
+
+			if (m.reference == null) {
+				if (m.throwable == null)
+					log.log(m.level, m.text);
+				else
+					log.log(m.level, m.text, m.throwable);
+			} else {
+				if (m.throwable == null)
+					log.log(m.reference, m.level, m.text);
+				else
+					log.log(m.reference, m.level, m.text, m.throwable);
+			}
+		}
+	}
+
+	/*
+	 * Called when the delivery thread did not stop in time, the queued
+	 * messages are counted as dropped instead of delivered concurrently
+	 */
+	void discard() {
+		scheduled.set(false);
+		while (queue.poll() != null)
+			dropped.incrementAndGet();
+	}
+
+	/*
+	 * Called from the service listener of the admin, the service is got
+	 * again on the next delivery
+	 */
+	void invalidate() {
+		stale = true;
+	}
+
+	private synchronized LogService service() {
+		if (stale) {
+			stale = false;
+			release(false);
+		}
+
+		if (log == null && !closed) {
+			ServiceReference<LogService> reference = admin == null ? null : admin.log;
+			BundleContext context = bundle.getBundleContext();
+			if (reference != null && context != null) {
+				try {
+					this.log = context.getService(reference);
+					this.reference = log == null ? null : reference;
+				}
+				catch (IllegalStateException e) {
+					// bundle is stopping, the messages are dropped
+				}
+			}
+		}
+		return log;
+	}
+
+	private synchronized void release(boolean close) {
+		if (close)
+			closed = true;
+
+		if (reference != null) {
+			try {
+				BundleContext context = bundle.getBundleContext();
+				if (context != null)
+					context.ungetService(reference);
+			}
+			catch (IllegalStateException e) {
+				// bundle is stopping
+			}
+		}
+		reference = null;
+		log = null;
+	}
 }
@@ -0,0 +1,71 @@
+package osgi.enroute.logging.provider;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The thread that delivers the queued messages of the log books to the Log
+ * Service. A log book is scheduled once when its queue goes from empty to
+ * not empty, the books are then served in the order they were scheduled.
+ */
+class LogDelivery extends Thread {
+	final BlockingQueue<LogBookImpl>	ready	= new LinkedBlockingQueue<>();
+	volatile boolean					closed;
+
+	LogDelivery() {
+		super("enRoute :: Log Book :: Delivery");
+		setDaemon(true);
+	}
+
+	void schedule(LogBookImpl book) {
+		ready.add(book);
+	}
+
+	@Override
+	public void run() {
+		while (!closed)
+			try {
+				LogBookImpl book = ready.take();
+				try {
+					book.deliver();
+				}
+				catch (Exception e) {
+					System.err.println("Log book " + book.getName() + " failed to deliver: " + e);
+				}
+			}
+			catch (InterruptedException e) {
+				// closed
+			}
+	}
+
+	/*
+	 * Stop the thread and deliver the books that are still scheduled on the
+	 * calling thread, their messages were already accepted. If the thread is
+	 * still delivering, hung in a Log Service, the books are not delivered
+	 * concurrently, their messages are dropped and counted.
+	 */
+	void close() {
+		closed = true;
+		interrupt();
+		try {
+			join(TimeUnit.SECONDS.toMillis(1));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		boolean alive = isAlive();
+		LogBookImpl book;
+		while ((book = ready.poll()) != null)
+			if (alive)
+				book.discard();
+			else
+				try {
+					book.deliver();
+				}
+				catch (Exception e) {
+					System.err.println("Log book " + book.getName() + " failed to deliver: " + e);
+				}
+	}
+}
@@ -11,7 +11,6 @@ public abstract class MessageFormatter implements LogBook {
 	final String		scope;
 	final Bundle		bundle;
 	LogAdminImpl		admin;
-	LogService			log;
 
 	volatile boolean	info		= true;
 	volatile boolean	trace		= true;
@@ -19,6 +18,7 @@ public abstract class MessageFormatter implements LogBook {
 	volatile boolean	warn		= true;
 	volatile boolean	error		= true;
 	volatile boolean	exceptions	= true;
+	volatile boolean	closed;
 
 	MessageFormatter(LogAdminImpl admin, Bundle bundle, String scope) {
 		this.admin = admin;
@@ -29,35 +29,35 @@ public abstract class MessageFormatter implements LogBook {
 	@Override
 	public INFO info(String format, Object... arguments) {
 		if (info)
-			admin.message(this, LogService.LOG_INFO, format, arguments);
+			message(LogService.LOG_INFO, format, arguments);
 		return null;
 	}
 
 	@Override
 	public DEBUG debug(String format, Object... arguments) {
 		if (debug)
-			admin.message(this, LogService.LOG_DEBUG, format, arguments);
+			message(LogService.LOG_DEBUG, format, arguments);
 		return null;
 	}
 
 	@Override
 	public ERROR error(String format, Object... arguments) {
 		if (error)
-			admin.message(this, LogService.LOG_ERROR, format, arguments);
+			message(LogService.LOG_ERROR, format, arguments);
 		return null;
 	}
 
 	@Override
 	public TRACE trace(String format, Object... arguments) {
 		if (trace)
-			admin.message(this, LogAdminImpl.LOG_TRACE, format, arguments);
+			message(LogAdminImpl.LOG_TRACE, format, arguments);
 		return null;
 	}
 
 	@Override
 	public WARN warn(String format, Object... arguments) {
 		if (warn)
-			admin.message(this, LogService.LOG_WARNING, format, arguments);
+			message(LogService.LOG_WARNING, format, arguments);
 		return null;
 	}
 
@@ -88,14 +88,45 @@ public abstract class MessageFormatter implements LogBook {
 
 	@Override
 	public boolean isWarnEnabled() {
-		return true;
+		return warn;
 	}
 
-	public void close() {
+	/*
+	 * Called by the admin when the levels change. The level is a Log Service
+	 * level, everything at or below it is enabled, 0 disables all.
+	 */
+	synchronized void setLevel(int level) {
+		if (closed)
+			return;
+
+		error = level >= LogService.LOG_ERROR;
+		warn = level >= LogService.LOG_WARNING;
+		info = level >= LogService.LOG_INFO;
+		debug = level >= LogService.LOG_DEBUG;
+		trace = level >= LogAdminImpl.LOG_TRACE;
+	}
+
+	/*
+	 * The log book of the bundle that queues the messages
+	 */
+	abstract LogBookImpl book();
+
+	/*
+	 * Once closed the levels are no longer updated, a call that passed the
+	 * flag before the close finds no admin and is ignored
+	 */
+	public synchronized void close() {
+		closed = true;
 		info = trace = error = warn = debug = false;
 		admin = null;
 	}
 
+	private void message(int level, String format, Object[] arguments) {
+		LogAdminImpl admin = this.admin;
+		if (admin != null)
+			admin.message(this, level, format, arguments);
+	}
+
 	@Override
 	public Runnable wrap(final Runnable r, final String name) {
 		return new Runnable() {
@@ -0,0 +1,207 @@
+package osgi.enroute.logging.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders the stack trace of a throwable directly in a builder. The layout is
+ * that of {@link Throwable#printStackTrace()} but frames that a cause shares
+ * with its enclosing trace are elided ("... N more") as are the frames of the
+ * classes that match the filters, generally reflection and framework frames.
+ * The top frame of a trace is never filtered.
+ * <p>
+ * The same exception tends to be logged in storms. The rendered traces are
+ * therefore kept in a small direct mapped cache keyed by a cheap hash of the
+ * types, the messages, the number of frames and the top frames of the
+ * throwable, its causes and its suppressed throwables. Only when the hash
+ * matches is the whole structure compared.
+ * <p>
+ * This package is not exported, the bundles that render stack traces include
+ * it as a private package.
+ */
+public class StackTraceRenderer {
+	public final static int		CACHE			= 256;
+	final static int			TOP				= 8;
+	public final static String	DEFAULT_FILTERS	= "sun.reflect.,jdk.internal.reflect.,java.lang.reflect.Method.invoke,"
+													+ "org.apache.felix.framework.,org.eclipse.osgi.";
+
+	final String[]		filters;
+	final Trace[]		cache;
+	final int			mask;
+
+	/*
+	 * A rendered trace and the structure it was rendered from
+	 */
+	static class Trace {
+		final int					hash;
+		final String[]				types;
+		final String[]				messages;
+		final StackTraceElement[][]	frames;
+		final String				text;
+
+		Trace(int hash, String[] types, String[] messages, StackTraceElement[][] frames, String text) {
+			this.hash = hash;
+			this.types = types;
+			this.messages = messages;
+			this.frames = frames;
+			this.text = text;
+		}
+	}
+
+	/*
+	 * The filters are a comma separated list of prefixes of the fully
+	 * qualified method names (class name + '.' + method name) to elide.
+	 */
+	public StackTraceRenderer(String filters, int cacheSize) {
+		List<String> list = new ArrayList<>();
+		if (filters != null)
+			for (String filter : filters.split("\\s*,\\s*"))
+				if (!filter.isEmpty())
+					list.add(filter);
+
+		int size = roundUp(Math.max(1, cacheSize));
+		this.filters = list.toArray(new String[list.size()]);
+		this.cache = new Trace[size];
+		this.mask = size - 1;
+	}
+
+	public StackTraceRenderer() {
+		this(DEFAULT_FILTERS, CACHE);
+	}
+
+	/*
+	 * The next power of 2
+	 */
+	static int roundUp(int capacity) {
+		int size = 1;
+		while (size < capacity && size < (1 << 30))
+			size <<= 1;
+		return size;
+	}
+
+	/*
+	 * Append the stack trace of a throwable to a builder
+	 */
+	public void render(StringBuilder sb, Throwable throwable) {
+		List<Throwable> chain = new ArrayList<>();
+		Map<Throwable,StackTraceElement[]> stacks = new IdentityHashMap<>();
+		collect(throwable, chain, stacks);
+
+		int n = chain.size();
+		String[] types = new String[n];
+		String[] messages = new String[n];
+		StackTraceElement[][] frames = new StackTraceElement[n][];
+
+		int hash = 0;
+		for (int i = 0; i < n; i++) {
+			Throwable t = chain.get(i);
+			types[i] = t.getClass().getName();
+			messages[i] = t.getLocalizedMessage();
+			frames[i] = stacks.get(t);
+			hash = 31 * hash + types[i].hashCode();
+			hash = 31 * hash + (messages[i] == null ? 0 : messages[i].hashCode());
+			hash = 31 * hash + frames[i].length;
+			for (int f = 0, top = Math.min(TOP, frames[i].length); f < top; f++)
+				hash = 31 * hash + frames[i][f].hashCode();
+		}
+
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		Trace trace = cache[slot];
+		if (trace != null && trace.hash == hash && Arrays.equals(trace.types, types)
+				&& Arrays.equals(trace.messages, messages) && Arrays.deepEquals(trace.frames, frames)) {
+			sb.append(trace.text);
+			return;
+		}
+
+		int start = sb.length();
+		write(sb, throwable, null, "", "", stacks, Collections.newSetFromMap(new IdentityHashMap<Throwable,Boolean>()));
+		cache[slot] = new Trace(hash, types, messages, frames, sb.substring(start));
+	}
+
+	/*
+	 * The throwables in the order they are rendered and their frames, the
+	 * frames are copied by getStackTrace so they are only fetched once
+	 */
+	private static void collect(Throwable t, List<Throwable> chain, Map<Throwable,StackTraceElement[]> stacks) {
+		if (t == null || stacks.containsKey(t))
+			return;
+
+		stacks.put(t, t.getStackTrace());
+		chain.add(t);
+		for (Throwable suppressed : t.getSuppressed())
+			collect(suppressed, chain, stacks);
+		collect(t.getCause(), chain, stacks);
+	}
+
+	private void write(StringBuilder sb, Throwable t, StackTraceElement[] enclosing, String caption, String prefix,
+			Map<Throwable,StackTraceElement[]> stacks, Set<Throwable> seen) {
+		if (!seen.add(t)) {
+			sb.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(t).append("]\n");
+			return;
+		}
+
+		StackTraceElement[] frames = stacks.get(t);
+
+		//
+		// Frames in common with the enclosing trace are at the bottom
+		//
+
+		int m = frames.length - 1;
+		if (enclosing != null)
+			for (int e = enclosing.length - 1; m >= 0 && e >= 0 && frames[m].equals(enclosing[e]); m--, e--)
+				;
+
+		sb.append(prefix).append(caption).append(t).append('\n');
+
+		int filtered = 0;
+		for (int i = 0; i <= m; i++) {
+			if (i > 0 && filtered(frames[i])) {
+				filtered++;
+				continue;
+			}
+			filtered = filtered(sb, prefix, filtered);
+			sb.append(prefix).append("\tat ").append(frames[i]).append('\n');
+		}
+		filtered(sb, prefix, filtered);
+
+		int common = frames.length - 1 - m;
+		if (common > 0)
+			sb.append(prefix).append("\t... ").append(common).append(" more\n");
+
+		for (Throwable suppressed : t.getSuppressed())
+			write(sb, suppressed, frames, "Suppressed: ", prefix + "\t", stacks, seen);
+
+		Throwable cause = t.getCause();
+		if (cause != null)
+			write(sb, cause, frames, "Caused by: ", prefix, stacks, seen);
+	}
+
+	private static int filtered(StringBuilder sb, String prefix, int filtered) {
+		if (filtered > 0)
+			sb.append(prefix).append("\t... ").append(filtered).append(" filtered\n");
+		return 0;
+	}
+
+	/*
+	 * Check the filters against the class name + '.' + method name without
+	 * creating that string
+	 */
+	boolean filtered(StackTraceElement frame) {
+		String className = frame.getClassName();
+		for (String filter : filters) {
+			if (filter.length() <= className.length()) {
+				if (className.startsWith(filter))
+					return true;
+			} else if (filter.startsWith(className) && filter.charAt(className.length()) == '.'
+					&& frame.getMethodName().regionMatches(0, filter, className.length() + 1,
+							filter.length() - className.length() - 1))
+				return true;
+		}
+		return false;
+	}
+}
@@ -34,6 +34,6 @@ public class StaticMDCBinder {
 	}
 
 	public String getMDCAdapterClassStr() {
-		return StaticLoggerBinder.getSingleton().factory.getClass().getName();
+		return getMDCA().getClass().getName();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package osgi.logger.api;
+
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.dto.DTO;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * A service that receives the log entries of the Logger Admin in batches. A
+ * sink can then write a whole batch at once instead of paying a call and a
+ * flush per entry. Registered Log Services still receive the entries one by
+ * one.
+ */
+@ConsumerType
+public interface LogBatchSink {
+
+	/**
+	 * A log entry
+	 */
+	class Record extends DTO {
+		/**
+		 * The bundle that logged, can be null
+		 */
+		public Bundle					source;
+
+		/**
+		 * The name of the logger
+		 */
+		public String					name;
+
+		/**
+		 * The formatted message
+		 */
+		public String					message;
+
+		/**
+		 * The OSGi Log Service level, trace is LOG_DEBUG + 1
+		 */
+		public int						level;
+
+		/**
+		 * The time the entry was created, in milliseconds since the epoch
+		 */
+		public long						time;
+
+		/**
+		 * A service reference given as argument, can be null
+		 */
+		public ServiceReference< ? >	reference;
+
+		/**
+		 * An exception given as argument, can be null
+		 */
+		public Throwable				exception;
+
+		/**
+		 * The SLF4J Mapped Diagnostic Context of the thread that logged, never
+		 * null. The map must not be modified.
+		 */
+		public Map<String,String>		context;
+	}
+
+	/**
+	 * Log a batch of entries. The list is only valid during the call, it is
+	 * reused for the next batch.
+	 * 
+	 * @param batch
+	 *            the entries in the order they were logged
+	 */
+	void log(List< ? extends Record> batch) throws Exception;
+}
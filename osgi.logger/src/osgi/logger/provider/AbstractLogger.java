@@ -1,12 +1,7 @@
 package osgi.logger.provider;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.Writer;
-import java.lang.reflect.Array;
-import java.util.Formatter;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
@@ -23,133 +18,109 @@ import osgi.enroute.logger.api.LoggerAdmin.Control;
  */
 class AbstractLogger implements org.slf4j.Logger {
 
-	/*
-	 * A pattern to discard classes in a stacktrace that we do not want to see
-	 */
-	// final static Pattern CUSTOM_CLASSES = Pattern
-	// .compile("(?!com\\.sun|sun|java\\.|osgi\\.enroute\\.logger\\.provider)(.+\\.)+(.*)");
+	final static int	TRACE	= 1 << Level.TRACE.ordinal();
+	final static int	DEBUG	= 1 << Level.DEBUG.ordinal();
+	final static int	INFO	= 1 << Level.INFO.ordinal();
+	final static int	WARN	= 1 << Level.WARN.ordinal();
+	final static int	ERROR	= 1 << Level.ERROR.ordinal();
 
 	String				name;
 	Bundle				bundle;
+	State				state	= State.INITIAL;
+	volatile boolean	closed;
 
-	volatile boolean	info;
-	volatile boolean	trace;
-	volatile boolean	debug;
-	volatile boolean	warn;
-	volatile boolean	error;
-	volatile boolean	exceptions;
-	volatile boolean	where;
-
-	boolean				init;
-	boolean				registered;
-	Level				level;
+	/*
+	 * The settings of a logger as they were at a settings epoch. When the
+	 * settings change the dispatcher moves to a new epoch and each logger
+	 * calculates a new state on its next use. A state is immutable, so it can
+	 * be replaced without locks; at worst two threads calculate the same state.
+	 */
+	static class State {
+		final static long[]	NO_MARKERS	= new long[Level.ERROR.ordinal() + 1];
+		final static State	INITIAL		= new State(-1, Level.WARN, NO_MARKERS, false, false);
+		final static State	CLOSED		= new State(-1, null, NO_MARKERS, false, false);
+
+		final int			epoch;
+		final int			levels;
+		final long[]		markers;
+		final Level			level;
+		final boolean		where;
+		final boolean		traces;
+
+		/*
+		 * A level enables itself and all higher levels, the markers are the
+		 * enabled markers per level (by ordinal) of the marker rules.
+		 */
+		State(int epoch, Level level, long[] markers, boolean where, boolean traces) {
+			this.epoch = epoch;
+			this.level = level;
+			this.levels = level == null ? 0 : ~((1 << level.ordinal()) - 1);
+			this.markers = markers;
+			this.where = where;
+			this.traces = traces;
+		}
+	}
 
 	AbstractLogger(Bundle bundle, String name) {
 		this.bundle = bundle;
 		this.name = name;
-		reset();
 	}
 
-	AbstractLogger() {
-		reset();
-	}
+	AbstractLogger() {}
 
 	/*
-	 * The init method is checked when a flag is set to true (done in reset()).
-	 * The init method will set all flags correctly based on defaults, or, if
-	 * there is a admin, from the settings in the admin. The init method returns
-	 * true if the given level must be logged. I think this is the fastest
-	 * possible way when you're not using a level. I.e. initially trace is set
-	 * to true. At the first trace, init(TRACE) is called but this in general
-	 * will set the trace flag to false. So the second time only the trace flag
-	 * is checked. In general, extra work is only done when we actually are
-	 * going to log a message.
+	 * Get the current state. This is a plain read of our state and a volatile
+	 * read of the epoch, only when the settings changed since our last use do
+	 * we calculate a new state.
 	 */
-	private synchronized boolean init(Level level) {
-		if (init)
-			return true;
-
-		init = true;
+	final State state() {
+		State s = state;
+		if (s.epoch != LoggerDispatcher.dispatcher.epoch)
+			s = refresh();
+		return s;
+	}
 
-		//
-		// We need to register once with the LoggerDispatcher
-		// so the admin can reset us when there are new settings
-		//
+	/*
+	 * Calculate our state from the defaults, or, if there is an admin, from
+	 * the settings in the admin. We read the epoch before the settings, if the
+	 * settings change while we calculate we will just do it again next time.
+	 */
+	private State refresh() {
+		LoggerDispatcher dispatcher = LoggerDispatcher.dispatcher;
+		int epoch = dispatcher.epoch;
 
-		if (!registered) {
-			LoggerDispatcher.dispatcher.register(this);
-			registered = true;
-		}
+		if (closed)
+			return State.CLOSED;
 
-		LoggerAdminImpl admin = LoggerDispatcher.dispatcher.admin;
+		LoggerAdminImpl admin = dispatcher.admin;
+		State s;
 
 		if (admin != null) {
 			//
-			// We have an admin. So we actually get our settins
+			// We have an admin. So we actually get our settings
 			// from this admin.
 			//
 			Control control = admin.getControl(this.name);
-			debug = control.level.ordinal() <= Level.DEBUG.ordinal();
-			info = control.level.ordinal() <= Level.INFO.ordinal();
-			trace = control.level.ordinal() <= Level.TRACE.ordinal();
-			warn = control.level.ordinal() <= Level.WARN.ordinal();
-			error = control.level.ordinal() <= Level.ERROR.ordinal();
-			level = control.level;
+			s = new State(epoch, control.level, admin.getMarkers(this.name), control.where, control.stackTraces);
 		} else {
 			//
-			// Default Defaults if no admin present. There is a bit of a race
-			// condition since at this admin could have become active and reset
-			// us
-			// However, this is pretty rare and should be corrected on the next
-			// call
+			// Default Defaults if no admin present. When the admin becomes
+			// active it moves to a new epoch so we will be corrected on the
+			// next call
 			//
-			debug = false;
-			info = false;
-			trace = false;
-			warn = true;
-			error = true;
+			s = new State(epoch, Level.WARN, State.NO_MARKERS, false, false);
 		}
 
-		return isLevel(level);
-	}
-
-	/*
-	 * Next time this logger is used it will try to get its configuration again
-	 */
-	synchronized void reset() {
-		init = false;
-		debug = true;
-		info = true;
-		trace = true;
-		warn = true;
-		error = true;
+		state = s;
+		return s;
 	}
 
 	/*
-	 * Check if this level is set
+	 * Check a level and the marker rules for that level
 	 */
-	private boolean isLevel(Level level) {
-		switch (level) {
-			case DEBUG :
-				return debug;
-			case ERROR :
-				return error;
-			case INFO :
-				return info;
-
-			case TRACE :
-				return trace;
-			case WARN :
-				return warn;
-
-			case R1 :
-			case R2 :
-			case R3 :
-			case AUDIT :
-			default :
-				return true;
-
-		}
+	private boolean isEnabled(int bit, Level level, Marker marker) {
+		State s = state();
+		return (s.levels & bit) != 0 || (marker != null && (s.markers[level.ordinal()] & MarkerFactoryImpl.mask(marker)) != 0);
 	}
 
 	/*
@@ -162,28 +133,37 @@ class AbstractLogger implements org.slf4j.Logger {
 
 	/*
 	 * The core routine. We've committed to logging so now we have to create a
-	 * logging message.
+	 * logging message. In deferred mode we only take a snapshot of the
+	 * arguments and leave the formatting to the Logger Admin thread. Bursts
+	 * of similar messages can be suppressed first.
 	 */
 	void message(int level, String format, Object... arguments) {
 		try {
-			//
-			// Log4j is using {} as the %s ... :-(
-			// so we replace it with the %s
-			// TODO figure out markers
-			//
-			if (format.indexOf('{') >= 0) {
-				format = format.replaceAll("\\{\\}", "%s");
+			LoggerDispatcher dispatcher = LoggerDispatcher.dispatcher;
+			Suppressor suppressor = dispatcher.suppressor;
+			if (suppressor != null && !suppressor.allow(this, level, format, arguments)) {
+				dispatcher.metrics.suppressed.increment();
+				return;
 			}
 
 			//
 			// We will log an entry to the queue
 			//
+			State s = state;
 			Entry entry = new Entry();
 			entry.level = level;
+			entry.source = bundle;
+			entry.name = name;
+			entry.time = System.currentTimeMillis();
+			entry.traces = s.traces;
+			entry.context = MDCAdapterImpl.mdc.snapshot();
+
+			boolean deferred = dispatcher.deferred;
 
 			//
-			// Adjust the arguments since arrays print badly and we can do
-			// better for some other objects as well.
+			// Find the service reference and exception. In deferred mode we
+			// must also not hold on to mutable objects since they can change
+			// before we get to format them.
 			//
 
 			for (int i = 0; i < arguments.length; i++)
@@ -193,48 +173,35 @@ class AbstractLogger implements org.slf4j.Logger {
 						entry.reference = (ServiceReference< ? >) arguments[i];
 					} else if (entry.exception == null && arguments[i] instanceof Throwable) {
 						entry.exception = (Throwable) arguments[i];
-					} else if (!(arguments[i] instanceof String))
-						arguments[i] = toString(arguments[i]);
+					} else if (deferred && !(arguments[i] instanceof String) && !isImmutable(arguments[i]))
+						arguments[i] = MessageTemplate.toString(arguments[i]);
 				}
 
-			//
-			// Add a few more places so that errors in the format would refer to
-			// non-existent args. Logging should not throw exceptions.
-			//
-
-			Object nargs[] = new Object[arguments.length + 10];
-			System.arraycopy(arguments, 0, nargs, 0, arguments.length);
-
-			final StringBuilder sb = new StringBuilder();
-			try (Formatter formatter = new Formatter(sb)) {
-
-				if (name != null) {
-					sb.append(name).append(" :: ");
-				}
+			if (s.where) {
+				entry.where = CallSite.where();
+			}
 
-				if (where) {
-					where(sb, 4);
-				}
+			entry.format = format;
+			entry.arguments = deferred ? arguments.clone() : arguments;
 
-				formatter.format(format, nargs);
-				if (entry.exception != null && exceptions) {
-					sb.append("\n");
-					try (PrintWriter sw = getWriter(sb)) {
-						entry.exception.printStackTrace(sw);
-					}
-				}
+			if (!deferred) {
+				entry.message = render(entry);
+				entry.format = null;
+				entry.arguments = null;
 			}
 
-			entry.message = sb.toString();
-			entry.source = bundle;
-
 			//
-			// We will not block on the queue. So we attempt to put it in the
-			// queue and if we do not succeed, print it to std err.
+			// Before the Logger Admin runs, what does not fit in the queue
+			// goes to the boot buffer. Otherwise the queue applies the
+			// overflow policy when it is full. Dropped entries are counted
+			// and reported by the dispatcher.
 			//
-			if (!LoggerDispatcher.dispatcher.queue.offer(entry)) {
-				System.err.println("Overflowing log queue " + entry);
-			}
+			BootBuffer boot = dispatcher.boot;
+			if ((boot.isActive() || !dispatcher.queue.tryOffer(entry)) && !boot.offer(entry)) {
+				if (dispatcher.queue.offer(entry))
+					dispatcher.metrics.enqueued(level);
+			} else
+				dispatcher.metrics.enqueued(level);
 		}
 		catch (Exception e) {
 			System.err.println("Shamefully have to admit the log service failed :-(" + e);
@@ -242,73 +209,52 @@ class AbstractLogger implements org.slf4j.Logger {
 		}
 	}
 
-	private PrintWriter getWriter(final StringBuilder sb) {
-		return new PrintWriter(new Writer() {
-
-			@Override
-			public void write(char[] cbuf, int off, int len) throws IOException {
-				for (int i = 0; i < len; i++)
-					sb.append(cbuf[i + off]);
+	/*
+	 * Format the message of an entry. This is called on the caller's thread
+	 * or, in deferred mode, on the Logger Admin thread. The format is parsed
+	 * once and cached, the message is built in a reused per thread builder.
+	 */
+	static String render(Entry entry) {
+		StringBuilder sb = MessageTemplate.acquire();
+		try {
+			if (entry.name != null) {
+				sb.append(entry.name).append(" :: ");
 			}
 
-			@Override
-			public void flush() throws IOException {}
-
-			@Override
-			public void close() throws IOException {}
+			if (entry.where != null) {
+				sb.append(entry.where);
+			}
 
-		});
-	}
+			MessageTemplate.get(entry.format).render(sb, entry.arguments);
 
-	/*
-	 * Create a more suitable text presentation for array objects
-	 * @param object
-	 * @return
-	 */
-	private String toString(Object object) {
-		if (object == null)
-			return "null";
-
-		if (object.getClass().isArray()) {
-			StringBuilder sb = new StringBuilder();
-			String del = "[";
-			for (int i = 0; i < Array.getLength(object); i++) {
-				sb.append(del).append(toString(Array.get(object, i)));
-				del = ", ";
+			if (entry.exception != null && entry.traces) {
+				sb.append("\n");
+				LoggerDispatcher.dispatcher.stackTraces.render(sb, entry.exception);
 			}
-			sb.append("]");
 			return sb.toString();
 		}
-		return object.toString();
+		finally {
+			MessageTemplate.release(sb);
+		}
 	}
 
 	/*
-	 * Get the current location of where the error was reported.
+	 * Objects we can safely format later since their string presentation
+	 * cannot change.
 	 */
-	protected void where(StringBuilder sb, int max) {
-		try {
-			throw new Exception();
-		}
-		catch (Exception e) {
-			StackTraceElement[] stackTrace = e.getStackTrace();
-			int n = 0;
-			for (int i = 2; i < sb.length(); i++) {
-				Matcher matcher = Pattern.compile(".*").matcher(stackTrace[i].getClassName());
-
-				if (matcher.matches()) {
-					String logMethod = stackTrace[i].getMethodName();
-					String logClass = matcher.group(2);
-					int line = stackTrace[i].getLineNumber();
-					sb.append("[").append(logClass).append(".").append(logMethod);
-					if (line != 0)
-						sb.append(":").append(line);
-					sb.append("] ");
-					n++;
-					if (n >= max)
-						return;
-				}
-			}
-		}
+	private static boolean isImmutable(Object object) {
+		return object instanceof Integer //
+				|| object instanceof Long //
+				|| object instanceof Double //
+				|| object instanceof Float //
+				|| object instanceof Short //
+				|| object instanceof Byte //
+				|| object instanceof BigInteger //
+				|| object instanceof BigDecimal //
+				|| object instanceof Boolean //
+				|| object instanceof Character //
+				|| object instanceof Enum //
+				|| object instanceof Class;
 	}
 
 	/**************************************************************************************************************/
@@ -318,356 +264,357 @@ class AbstractLogger implements org.slf4j.Logger {
 
 	@Override
 	public void info(String format, Object... arguments) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled())
 			message(LogService.LOG_INFO, format, arguments);
 	}
 
 	@Override
 	public void debug(String format, Object... arguments) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled())
 			message(LogService.LOG_DEBUG, format, arguments);
 	}
 
 	@Override
 	public void error(String format, Object... arguments) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled())
 			message(LogService.LOG_ERROR, format, arguments);
 	}
 
 	@Override
 	public void trace(String format, Object... arguments) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled())
 			message(LoggerAdminImpl.LOG_TRACE, format, arguments);
 	}
 
 	@Override
 	public void warn(String format, Object... arguments) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled())
 			message(LogService.LOG_WARNING, format, arguments);
 	}
 
 	@Override
 	public boolean isInfoEnabled() {
-		return info && init(Level.INFO);
+		return (state().levels & INFO) != 0;
 	}
 
 	@Override
 	public boolean isDebugEnabled() {
-		return debug && init(Level.DEBUG);
+		return (state().levels & DEBUG) != 0;
 	}
 
 	@Override
 	public boolean isErrorEnabled() {
-		return error && init(Level.ERROR);
+		return (state().levels & ERROR) != 0;
 	}
 
 	@Override
 	public boolean isTraceEnabled() {
-		return trace && init(Level.TRACE);
+		return (state().levels & TRACE) != 0;
 	}
 
 	@Override
 	public boolean isWarnEnabled() {
-		return warn && init(Level.WARN);
+		return (state().levels & WARN) != 0;
 	}
 
 	public void close() {
+		closed = true;
+		state = State.CLOSED;
 		LoggerDispatcher.dispatcher.unregister(this);
-		init = registered = info = trace = error = warn = debug = false;
 	}
 
 	@Override
 	public void debug(String string) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled())
 			message(LogService.LOG_DEBUG, string);
 	}
 
 	@Override
 	public void debug(String format, Object arguments) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled())
 			message(LogService.LOG_DEBUG, format, arguments);
 	}
 
 	@Override
 	public void debug(String string, Throwable t) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled())
 			message(LogService.LOG_DEBUG, string, t);
 	}
 
 	@Override
 	public void debug(Marker marker, String string) {
-		if (debug && init(Level.DEBUG))
-			message(LogService.LOG_DEBUG, string, marker);
+		if (isDebugEnabled(marker))
+			message(LogService.LOG_DEBUG, string);
 	}
 
 	@Override
 	public void debug(String format, Object a, Object b) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled())
 			message(LogService.LOG_DEBUG, format, a, b);
 	}
 
 	@Override
 	public void debug(Marker marker, String format, Object a) {
-		if (debug && init(Level.DEBUG))
-			message(LogService.LOG_DEBUG, format, a, marker);
+		if (isDebugEnabled(marker))
+			message(LogService.LOG_DEBUG, format, a);
 	}
 
 	@Override
 	public void debug(Marker marker, String format, Object... args) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled(marker))
 			message(LogService.LOG_DEBUG, format, args);
 	}
 
 	@Override
 	public void debug(Marker marker, String format, Throwable t) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled(marker))
 			message(LogService.LOG_DEBUG, format, t);
 	}
 
 	@Override
 	public void debug(Marker marker, String format, Object a, Object b) {
-		if (debug && init(Level.DEBUG))
+		if (isDebugEnabled(marker))
 			message(LogService.LOG_DEBUG, format, a, b);
 	}
 
 	@Override
 	public void error(String string) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled())
 			message(LogService.LOG_ERROR, string);
 	}
 
 	@Override
 	public void error(String format, Object arguments) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled())
 			message(LogService.LOG_ERROR, format, arguments);
 	}
 
 	@Override
 	public void error(String string, Throwable t) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled())
 			message(LogService.LOG_ERROR, string, t);
 	}
 
 	@Override
 	public void error(Marker marker, String string) {
-		if (error && init(Level.ERROR))
-			message(LogService.LOG_ERROR, string, marker);
+		if (isErrorEnabled(marker))
+			message(LogService.LOG_ERROR, string);
 	}
 
 	@Override
 	public void error(String format, Object a, Object b) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled())
 			message(LogService.LOG_ERROR, format, a, b);
 	}
 
 	@Override
 	public void error(Marker marker, String format, Object a) {
-		if (error && init(Level.ERROR))
-			message(LogService.LOG_ERROR, format, a, marker);
+		if (isErrorEnabled(marker))
+			message(LogService.LOG_ERROR, format, a);
 	}
 
 	@Override
 	public void error(Marker marker, String format, Object... args) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled(marker))
 			message(LogService.LOG_ERROR, format, args);
 	}
 
 	@Override
 	public void error(Marker marker, String format, Throwable t) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled(marker))
 			message(LogService.LOG_ERROR, format, t);
 	}
 
 	@Override
 	public void error(Marker marker, String format, Object a, Object b) {
-		if (error && init(Level.ERROR))
+		if (isErrorEnabled(marker))
 			message(LogService.LOG_ERROR, format, a, b);
 	}
 
 	@Override
 	public void info(String string) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled())
 			message(LogService.LOG_INFO, string);
 	}
 
 	@Override
 	public void info(String format, Object arguments) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled())
 			message(LogService.LOG_INFO, format, arguments);
 	}
 
 	@Override
 	public void info(String string, Throwable t) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled())
 			message(LogService.LOG_INFO, string, t);
 	}
 
 	@Override
 	public void info(Marker marker, String string) {
-		if (info && init(Level.INFO))
-			message(LogService.LOG_INFO, string, marker);
+		if (isInfoEnabled(marker))
+			message(LogService.LOG_INFO, string);
 	}
 
 	@Override
 	public void info(String format, Object a, Object b) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled())
 			message(LogService.LOG_INFO, format, a, b);
 	}
 
 	@Override
 	public void info(Marker marker, String format, Object a) {
-		if (info && init(Level.INFO))
-			message(LogService.LOG_INFO, format, a, marker);
+		if (isInfoEnabled(marker))
+			message(LogService.LOG_INFO, format, a);
 	}
 
 	@Override
 	public void info(Marker marker, String format, Object... args) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled(marker))
 			message(LogService.LOG_INFO, format, args);
 	}
 
 	@Override
 	public void info(Marker marker, String format, Throwable t) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled(marker))
 			message(LogService.LOG_INFO, format, t);
 	}
 
 	@Override
 	public void info(Marker marker, String format, Object a, Object b) {
-		if (info && init(Level.INFO))
+		if (isInfoEnabled(marker))
 			message(LogService.LOG_INFO, format, a, b);
 	}
 
 	@Override
-	public boolean isDebugEnabled(Marker arg0) {
-		return debug && init(Level.DEBUG);
+	public boolean isDebugEnabled(Marker marker) {
+		return isEnabled(DEBUG, Level.DEBUG, marker);
 	}
 
 	@Override
-	public boolean isErrorEnabled(Marker arg0) {
-		return error && init(Level.ERROR);
+	public boolean isErrorEnabled(Marker marker) {
+		return isEnabled(ERROR, Level.ERROR, marker);
 	}
 
 	@Override
-	public boolean isInfoEnabled(Marker arg0) {
-		return info && init(Level.INFO);
+	public boolean isInfoEnabled(Marker marker) {
+		return isEnabled(INFO, Level.INFO, marker);
 	}
 
 	@Override
-	public boolean isTraceEnabled(Marker arg0) {
-		return trace && init(Level.TRACE);
+	public boolean isTraceEnabled(Marker marker) {
+		return isEnabled(TRACE, Level.TRACE, marker);
 	}
 
 	@Override
-	public boolean isWarnEnabled(Marker arg0) {
-		return warn && init(Level.WARN);
+	public boolean isWarnEnabled(Marker marker) {
+		return isEnabled(WARN, Level.WARN, marker);
 	}
 
 	@Override
 	public void warn(String string) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled())
 			message(LogService.LOG_WARNING, string);
 	}
 
 	@Override
 	public void warn(String format, Object arguments) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled())
 			message(LogService.LOG_WARNING, format, arguments);
 	}
 
 	@Override
 	public void warn(String string, Throwable t) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled())
 			message(LogService.LOG_WARNING, string, t);
 	}
 
 	@Override
 	public void warn(Marker marker, String string) {
-		if (warn && init(Level.WARN))
-			message(LogService.LOG_WARNING, string, marker);
+		if (isWarnEnabled(marker))
+			message(LogService.LOG_WARNING, string);
 	}
 
 	@Override
 	public void warn(String format, Object a, Object b) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled())
 			message(LogService.LOG_WARNING, format, a, b);
 	}
 
 	@Override
 	public void warn(Marker marker, String format, Object a) {
-		if (warn && init(Level.WARN))
-			message(LogService.LOG_WARNING, format, a, marker);
+		if (isWarnEnabled(marker))
+			message(LogService.LOG_WARNING, format, a);
 	}
 
 	@Override
 	public void warn(Marker marker, String format, Object... args) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled(marker))
 			message(LogService.LOG_WARNING, format, args);
 	}
 
 	@Override
 	public void warn(Marker marker, String format, Throwable t) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled(marker))
 			message(LogService.LOG_WARNING, format, t);
 	}
 
 	@Override
 	public void warn(Marker marker, String format, Object a, Object b) {
-		if (warn && init(Level.WARN))
+		if (isWarnEnabled(marker))
 			message(LogService.LOG_WARNING, format, a, b);
 	}
 
 	@Override
 	public void trace(String string) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled())
 			message(LoggerAdminImpl.LOG_TRACE, string);
 	}
 
 	@Override
 	public void trace(String format, Object arguments) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled())
 			message(LoggerAdminImpl.LOG_TRACE, format, arguments);
 	}
 
 	@Override
 	public void trace(String string, Throwable t) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled())
 			message(LoggerAdminImpl.LOG_TRACE, string, t);
 	}
 
 	@Override
 	public void trace(Marker marker, String string) {
-		if (trace && init(Level.TRACE))
-			message(LoggerAdminImpl.LOG_TRACE, string, marker);
+		if (isTraceEnabled(marker))
+			message(LoggerAdminImpl.LOG_TRACE, string);
 	}
 
 	@Override
 	public void trace(String format, Object a, Object b) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled())
 			message(LoggerAdminImpl.LOG_TRACE, format, a, b);
 	}
 
 	@Override
 	public void trace(Marker marker, String format, Object a) {
-		if (trace && init(Level.TRACE))
-			message(LoggerAdminImpl.LOG_TRACE, format, a, marker);
+		if (isTraceEnabled(marker))
+			message(LoggerAdminImpl.LOG_TRACE, format, a);
 	}
 
 	@Override
 	public void trace(Marker marker, String format, Object... args) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled(marker))
 			message(LoggerAdminImpl.LOG_TRACE, format, args);
 	}
 
 	@Override
 	public void trace(Marker marker, String format, Throwable t) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled(marker))
 			message(LoggerAdminImpl.LOG_TRACE, format, t);
 	}
 
 	@Override
 	public void trace(Marker marker, String format, Object a, Object b) {
-		if (trace && init(Level.TRACE))
+		if (isTraceEnabled(marker))
 			message(LoggerAdminImpl.LOG_TRACE, format, a, b);
 	}
 
@@ -0,0 +1,277 @@
+package osgi.logger.provider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Holds the entries logged during startup until there is a sink to deliver
+ * them to. Before the Logger Admin runs, the callers put the entries that do
+ * not fit in the queue here, memory only so no caller ever waits for the disk.
+ * Once the Logger Admin runs it moves the queue in front of these entries and
+ * buffers what comes in until the first sink appears. When the memory cap is
+ * reached the Logger Admin thread spills the entries to a file, up to a
+ * maximum size. The entries are then replayed in order, in batches.
+ * <p>
+ * Spilled entries lose their exception and service reference, the stack trace
+ * is appended to the message instead.
+ */
+class BootBuffer {
+	final static int		OVERHEAD	= 64;
+
+	final Deque<Entry>		memory		= new ArrayDeque<>();
+	long					memorySize;
+	long					maxMemory	= 1024 * 1024;
+	volatile boolean		open		= true;
+	volatile boolean		buffering;
+
+	File					file;
+	long					maxFile;
+	DataOutputStream		out;
+	DataInputStream			in;
+	long					fileSize;
+	int						spilled;
+	long					dropped;
+
+	/*
+	 * Called by the callers before the Logger Admin runs. Returns false when
+	 * the Logger Admin took over, the entry must then be queued.
+	 */
+	synchronized boolean offer(Entry entry) {
+		if (!open)
+			return false;
+
+		buffering = true;
+		if (memorySize + size(entry) <= maxMemory) {
+			memorySize += size(entry);
+			memory.add(entry);
+		} else
+			dropped++;
+		return true;
+	}
+
+	/*
+	 * The callers only use the buffer when the queue is full or the buffer
+	 * already has entries, otherwise the order would be lost. This is on the
+	 * callers' path so it does not lock.
+	 */
+	boolean isActive() {
+		return open && buffering;
+	}
+
+	/*
+	 * Called by the Logger Admin thread when it starts. From now on the callers
+	 * queue their entries. What is in the queue was logged before what is in
+	 * the buffer.
+	 */
+	synchronized void close(RingBuffer queue, long maxMemory, File file, long maxFile) {
+		List<Entry> older = new ArrayList<>();
+		queue.drainTo(older, queue.size());
+
+		this.open = false;
+		this.maxMemory = maxMemory;
+		this.file = file;
+		this.maxFile = maxFile;
+
+		for (int i = older.size() - 1; i >= 0; i--) {
+			memory.addFirst(older.get(i));
+			memorySize += size(older.get(i));
+		}
+	}
+
+	/*
+	 * Called by the Logger Admin thread to buffer a rendered batch. Once the
+	 * memory is full, the rest goes to the file.
+	 */
+	synchronized void add(List<Entry> batch) {
+		for (Entry entry : batch) {
+			if (spilled == 0 && memorySize + size(entry) <= maxMemory) {
+				memorySize += size(entry);
+				memory.add(entry);
+			} else if (!spill(entry))
+				dropped++;
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return memory.isEmpty() && spilled == 0;
+	}
+
+	/*
+	 * Move at most max entries to the batch, first from memory and then from
+	 * the file. Returns the number of entries moved.
+	 */
+	synchronized int drainTo(List<Entry> batch, int max) {
+		int n = 0;
+		while (n < max && !memory.isEmpty()) {
+			Entry entry = memory.poll();
+			memorySize -= size(entry);
+			batch.add(entry);
+			n++;
+		}
+
+		try {
+			while (n < max && spilled > 0) {
+				if (in == null) {
+					out.close();
+					out = null;
+					in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				}
+				batch.add(read(in));
+				spilled--;
+				n++;
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Logger Admin cannot read the boot log " + file + ": " + e);
+			dropped += spilled;
+			spilled = 0;
+		}
+
+		if (isEmpty())
+			clear();
+		return n;
+	}
+
+	/*
+	 * Drop the file
+	 */
+	synchronized void clear() {
+		try {
+			if (out != null)
+				out.close();
+			if (in != null)
+				in.close();
+		}
+		catch (IOException e) {
+			// ignore
+		}
+		out = null;
+		in = null;
+		spilled = 0;
+		fileSize = 0;
+		if (file != null)
+			file.delete();
+	}
+
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	private boolean spill(Entry entry) {
+		if (file == null || in != null || fileSize >= maxFile)
+			return false;
+
+		try {
+			if (out == null)
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+			int start = out.size();
+			write(out, entry);
+			fileSize += out.size() - start;
+			spilled++;
+			return true;
+		}
+		catch (IOException e) {
+			System.err.println("Logger Admin cannot write the boot log " + file + ": " + e);
+			file = null;
+			return false;
+		}
+	}
+
+	private static void write(DataOutputStream out, Entry entry) throws IOException {
+		String message = entry.message;
+		if (entry.exception != null && !entry.traces) {
+			StringBuilder sb = new StringBuilder(message).append('\n');
+			LoggerDispatcher.dispatcher.stackTraces.render(sb, entry.exception);
+			message = sb.toString();
+		}
+
+		out.writeLong(entry.time);
+		out.writeInt(entry.level);
+		out.writeLong(entry.source == null ? -1 : entry.source.getBundleId());
+		writeString(out, entry.name);
+		writeString(out, message);
+
+		Map<String,String> context = entry.context;
+		out.writeInt(context == null ? 0 : context.size());
+		if (context != null)
+			for (Map.Entry<String,String> e : context.entrySet()) {
+				writeString(out, e.getKey());
+				writeString(out, e.getValue());
+			}
+	}
+
+	private static Entry read(DataInputStream in) throws IOException {
+		Entry entry = new Entry();
+		entry.time = in.readLong();
+		entry.level = in.readInt();
+		entry.source = bundle(in.readLong());
+		entry.name = readString(in);
+		entry.message = readString(in);
+		entry.traces = true;
+
+		int n = in.readInt();
+		if (n > 0) {
+			Map<String,String> context = new LinkedHashMap<>();
+			for (int i = 0; i < n; i++)
+				context.put(readString(in), readString(in));
+			entry.context = context;
+		}
+		return entry;
+	}
+
+	/*
+	 * writeUTF is limited to 64k
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static Bundle bundle(long id) {
+		Bundle bundle = LoggerDispatcher.thisbundle;
+		if (id < 0 || bundle == null)
+			return null;
+
+		BundleContext context = bundle.getBundleContext();
+		return context == null ? null : context.getBundle(id);
+	}
+
+	/*
+	 * A rough estimate of the memory used by an entry
+	 */
+	private static long size(Entry entry) {
+		String text = entry.message != null ? entry.message : entry.format;
+		return OVERHEAD + (text == null ? 0 : 2L * text.length());
+	}
+}
@@ -0,0 +1,66 @@
+package osgi.logger.provider;
+
+/**
+ * Finds the location where a message was logged for the {@code where} option.
+ * The first frame outside the logging code is the call site. Its rendered form
+ * ({@code [Class.method:line] }) is cached in a direct mapped table keyed by
+ * the frame, since the same call sites log over and over again.
+ */
+class CallSite {
+	final static int		CACHE_SIZE	= 1024;
+	final static String[]	SKIP		= {
+			"osgi.logger.provider.", "org.slf4j.", "java.", "javax.", "sun.", "com.sun.", "jdk."
+										};
+	final static CallSite[]	cache		= new CallSite[CACHE_SIZE];
+
+	final StackTraceElement	frame;
+	final String			location;
+
+	CallSite(StackTraceElement frame) {
+		this.frame = frame;
+
+		String className = frame.getClassName();
+		StringBuilder sb = new StringBuilder();
+		sb.append("[").append(className, className.lastIndexOf('.') + 1, className.length()).append(".")
+				.append(frame.getMethodName());
+		if (frame.getLineNumber() > 0)
+			sb.append(":").append(frame.getLineNumber());
+		sb.append("] ");
+		this.location = sb.toString();
+	}
+
+	/*
+	 * Get the location of the caller, or null if all frames are skipped.
+	 */
+	static String where() {
+		//
+		// Without StackWalker (Java 7) the trace of a new Throwable is the
+		// cheapest way to get the frames, no need to throw it.
+		//
+
+		StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+		for (int i = 1; i < stackTrace.length; i++) {
+			StackTraceElement frame = stackTrace[i];
+			if (!skip(frame.getClassName()))
+				return get(frame).location;
+		}
+		return null;
+	}
+
+	static CallSite get(StackTraceElement frame) {
+		int index = frame.hashCode() & (CACHE_SIZE - 1);
+		CallSite site = cache[index];
+		if (site == null || !site.frame.equals(frame)) {
+			site = new CallSite(frame);
+			cache[index] = site;
+		}
+		return site;
+	}
+
+	static boolean skip(String className) {
+		for (String prefix : SKIP)
+			if (className.startsWith(prefix))
+				return true;
+		return false;
+	}
+}
@@ -1,6 +1,7 @@
 package osgi.logger.provider;
 
 import osgi.enroute.logger.api.Level;
+import osgi.enroute.logging.util.StackTraceRenderer;
 import aQute.bnd.annotation.metatype.Meta.AD;
 import aQute.bnd.annotation.metatype.Meta.OCD;
 
@@ -21,4 +22,67 @@ interface Configuration {
 
 	@AD(description= "Use the log output from java.util.logging", required=false)
 	boolean javaUtilLogging();
+
+	@AD(description = "Format the messages on the Logger Admin thread instead of the caller's thread", deflt = "false", required = false)
+	boolean deferred();
+
+	@AD(description = "The maximum number of entries handed to the sinks at once", deflt = "100", required = false)
+	int batchSize();
+
+	@AD(description = "The time in milliseconds to wait for more entries before a batch that is not full is dispatched", deflt = "0", required = false)
+	long linger();
+
+	@AD(description = "The capacity of the log queue, rounded up to a power of 2", deflt = "1024", required = false)
+	int queueSize();
+
+	@AD(description = "What to do when the log queue is full", deflt = "DROP_NEWEST", required = false)
+	Overflow overflow();
+
+	@AD(description = "The maximum time in milliseconds a caller waits for room when the overflow policy is BLOCK", deflt = "100", required = false)
+	long overflowTimeout();
+
+	@AD(description = "When the overflow policy is SAMPLE, keep 1 in this number of overflowing entries", deflt = "100", required = false)
+	int overflowSample();
+
+	@AD(description = "The memory in bytes for the entries logged before the first sink appears", deflt = "1048576", required = false)
+	long bootMemory();
+
+	@AD(description = "The maximum size in bytes of the file the boot entries spill to when the memory is full", deflt = "67108864", required = false)
+	long bootFile();
+
+	@AD(description = "The time in milliseconds the boot entries are kept when no sink appears", deflt = "10000", required = false)
+	long bootTimeout();
+
+	@AD(description = "The number of batches queued for a sink, when full the batches for that sink are dropped", deflt = "64", required = false)
+	int sinkQueue();
+
+	@AD(description = "The time in milliseconds a sink may take for a batch before it counts as a failure, 0 is no timeout", deflt = "5000", required = false)
+	long sinkTimeout();
+
+	@AD(description = "The number of consecutive failures of a sink that opens its circuit breaker", deflt = "5", required = false)
+	int sinkFailures();
+
+	@AD(description = "The time in milliseconds an open circuit breaker drops the batches before the sink is tried again", deflt = "30000", required = false)
+	long sinkRetry();
+
+	@AD(description = "Comma separated prefixes of the class or class.method names of stack frames that are left out of stack traces", deflt = StackTraceRenderer.DEFAULT_FILTERS, required = false)
+	String traceFilters();
+
+	@AD(description = "The number of rendered stack traces that are cached, rounded up to a power of 2", deflt = "256", required = false)
+	int traceCache();
+
+	@AD(description = "Suppress bursts of similar messages, grouped by logger, level and format or by logger, level and exception type", deflt = "NONE", required = false)
+	Suppress suppress();
+
+	@AD(description = "The number of similar messages per second that pass when suppressing", deflt = "10", required = false)
+	int suppressRate();
+
+	@AD(description = "The number of similar messages that pass at once before the rate applies (max 1048)", deflt = "100", required = false)
+	int suppressBurst();
+
+	@AD(description = "The number of groups tracked for the suppression, rounded up to a power of 2", deflt = "4096", required = false)
+	int suppressSlots();
+
+	@AD(description = "The time in milliseconds between the summaries of the suppressed messages", deflt = "10000", required = false)
+	long suppressInterval();
 }
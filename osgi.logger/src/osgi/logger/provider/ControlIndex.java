@@ -0,0 +1,306 @@
+package osgi.logger.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import osgi.enroute.logger.api.Level;
+import osgi.enroute.logger.api.LoggerAdmin.Control;
+import aQute.libg.glob.Glob;
+
+/**
+ * An index of the logger controls. Logger names are dotted so the globs are
+ * compiled into a trie of their dot separated segments. Most globs are either
+ * a name ({@code com.acme.Foo}) or a name with a wildcard as the last segment (
+ * {@code com.acme.*}). These are found with a walk over the segments of the
+ * name. Other globs ({@code com.*.impl}, {@code Foo*}) are kept as regular
+ * expressions and only tried when they could be more specific than what the
+ * trie found.
+ * <p>
+ * The most specific control always wins. The specificity of a glob is the
+ * number of characters that are not wildcards. On a tie, an exact name beats a
+ * wildcard and otherwise the control that comes first in the settings wins.
+ * <p>
+ * A control with a pattern like {@code com.acme.*@SQL} is a marker rule, it
+ * enables its level for messages with the SQL marker. Each marker gets its own
+ * index and a bit, a logger then gets a mask of enabled markers per level.
+ */
+class ControlIndex {
+	final static String		GLOB_CHARS	= "*?[]{}\\";
+
+	final Node				root		= new Node();
+	final Exotic[]			exotics;
+	final String[]			markers;
+	final int[]				bits;
+	final ControlIndex[]	rules;
+
+	/*
+	 * A node in the trie. The children are searched linearly with
+	 * regionMatches so a lookup does not create substrings. The fan out in
+	 * logger names is generally small.
+	 */
+	static class Node {
+		String[]	keys		= new String[0];
+		Node[]		children	= new Node[0];
+		Match		exact;
+		Match		wildcard;
+
+		Node child(String name, int start, int end) {
+			int length = end - start;
+			for (int i = 0; i < keys.length; i++) {
+				String key = keys[i];
+				if (key.length() == length && name.regionMatches(start, key, 0, length))
+					return children[i];
+			}
+			return null;
+		}
+
+		Node add(String key) {
+			Node child = child(key, 0, key.length());
+			if (child == null) {
+				child = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = key;
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+	}
+
+	/*
+	 * A control with its rank
+	 */
+	static class Match {
+		final Control	control;
+		final int		specificity;
+		final int		order;
+
+		Match(Control control, int specificity, int order) {
+			this.control = control;
+			this.specificity = specificity;
+			this.order = order;
+		}
+	}
+
+	static class Exotic extends Match {
+		final Pattern	pattern;
+
+		Exotic(Control control, int specificity, int order, Pattern pattern) {
+			super(control, specificity, order);
+			this.pattern = pattern;
+		}
+	}
+
+	/*
+	 * Compile the controls. Throws an IllegalArgumentException when a glob is
+	 * invalid.
+	 */
+	ControlIndex(List<Control> controls) {
+		this(controls, null);
+	}
+
+	/*
+	 * Index the controls for one marker, or the controls without a marker
+	 * when the marker is null.
+	 */
+	private ControlIndex(List<Control> controls, String marker) {
+		List<Exotic> exotics = new ArrayList<>();
+		Set<String> markers = new LinkedHashSet<>();
+		int order = 0;
+
+		for (Control c : controls) {
+			if (c.pattern == null)
+				throw new IllegalArgumentException("A control requires a pattern");
+
+			String glob = c.pattern;
+			String m = null;
+			int at = glob.lastIndexOf('@');
+			if (at >= 0) {
+				m = glob.substring(at + 1);
+				glob = at == 0 ? "*" : glob.substring(0, at);
+				if (m.isEmpty())
+					throw new IllegalArgumentException("Missing marker in " + c.pattern);
+			}
+
+			if (marker == null && m != null) {
+				markers.add(m);
+				continue;
+			}
+
+			if (marker != null && !marker.equals(m))
+				continue;
+
+			Match match = new Match(c, specificity(glob), order++);
+
+			if (glob.equals("*")) {
+				add(root, match, false);
+			} else if (isName(glob, 0, glob.length())) {
+				add(node(glob, glob.length()), match, true);
+			} else if (glob.endsWith(".*") && isName(glob, 0, glob.length() - 2)) {
+				add(node(glob, glob.length() - 2), match, false);
+			} else {
+				Pattern p;
+				try {
+					p = Glob.toPattern(glob);
+				}
+				catch (Exception e) {
+					throw new IllegalArgumentException("Invalid filter " + glob, e);
+				}
+				exotics.add(new Exotic(c, match.specificity, match.order, p));
+			}
+		}
+
+		//
+		// Most specific first, the sort is stable so the settings order
+		// breaks the ties
+		//
+
+		Collections.sort(exotics, new Comparator<Exotic>() {
+
+			@Override
+			public int compare(Exotic a, Exotic b) {
+				return b.specificity - a.specificity;
+			}
+		});
+		this.exotics = exotics.toArray(new Exotic[exotics.size()]);
+
+		this.markers = markers.toArray(new String[markers.size()]);
+		this.rules = new ControlIndex[this.markers.length];
+		for (int i = 0; i < this.markers.length; i++)
+			this.rules[i] = new ControlIndex(controls, this.markers[i]);
+		this.bits = marker == null ? MarkerFactoryImpl.markers.bits(this.markers) : new int[0];
+	}
+
+	/*
+	 * Find the most specific control for a name, returns null if no control
+	 * matches.
+	 */
+	Control get(String name) {
+		Match best = root.wildcard;
+		Node node = root;
+		int start = 0;
+		int length = name.length();
+
+		while (node != null) {
+			int end = name.indexOf('.', start);
+			if (end < 0)
+				end = length;
+
+			node = node.child(name, start, end);
+			if (node == null)
+				break;
+
+			if (end == length) {
+				if (node.exact != null)
+					best = better(best, node.exact);
+				break;
+			}
+
+			//
+			// There is a dot after this segment so a wildcard on this
+			// node matches. Deeper is always more specific.
+			//
+
+			if (node.wildcard != null)
+				best = better(best, node.wildcard);
+
+			start = end + 1;
+		}
+
+		for (Exotic exotic : exotics) {
+			if (best != null && exotic.specificity < best.specificity)
+				break;
+
+			if (best != null && exotic.specificity == best.specificity && exotic.order > best.order)
+				continue;
+
+			if (exotic.pattern.matcher(name).matches())
+				return exotic.control;
+		}
+		return best == null ? null : best.control;
+	}
+
+	/*
+	 * Calculate the enabled markers per level for a name, the masks are
+	 * indexed by the level's ordinal. A marker rule enables its level and the
+	 * levels above up to ERROR.
+	 */
+	long[] markers(String name) {
+		long[] masks = new long[Level.ERROR.ordinal() + 1];
+		for (int i = 0; i < markers.length; i++) {
+			if (bits[i] < 0)
+				continue;
+
+			Control c = rules[i].get(name);
+			if (c == null || c.level == null)
+				continue;
+
+			for (int l = c.level.ordinal(); l < masks.length; l++)
+				masks[l] |= 1L << bits[i];
+		}
+		return masks;
+	}
+
+	private static Match better(Match a, Match b) {
+		if (a == null || b.specificity > a.specificity)
+			return b;
+		return a;
+	}
+
+	private Node node(String glob, int end) {
+		Node node = root;
+		int start = 0;
+		while (start <= end) {
+			int dot = glob.indexOf('.', start);
+			if (dot < 0 || dot > end)
+				dot = end;
+			node = node.add(glob.substring(start, dot));
+			start = dot + 1;
+		}
+		return node;
+	}
+
+	/*
+	 * Only the first control for the same glob counts
+	 */
+	private static void add(Node node, Match match, boolean exact) {
+		if (exact) {
+			if (node.exact == null)
+				node.exact = match;
+		} else {
+			if (node.wildcard == null)
+				node.wildcard = match;
+		}
+	}
+
+	/*
+	 * A dotted name without glob characters and empty segments
+	 */
+	static boolean isName(String glob, int start, int end) {
+		if (start >= end)
+			return false;
+
+		char prev = '.';
+		for (int i = start; i < end; i++) {
+			char c = glob.charAt(i);
+			if (GLOB_CHARS.indexOf(c) >= 0 || (c == '.' && prev == '.'))
+				return false;
+			prev = c;
+		}
+		return prev != '.';
+	}
+
+	static int specificity(String glob) {
+		int n = 0;
+		for (int i = 0; i < glob.length(); i++)
+			if (GLOB_CHARS.indexOf(glob.charAt(i)) < 0)
+				n++;
+		return n;
+	}
+}
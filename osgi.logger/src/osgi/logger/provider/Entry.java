@@ -1,17 +1,19 @@
 package osgi.logger.provider;
 
-import org.osgi.dto.DTO;
-import org.osgi.framework.Bundle;
-import org.osgi.framework.ServiceReference;
+import osgi.logger.api.LogBatchSink;
 
 /**
  * Log messages are queued through the LoggerDispatcher. This is the content of
  * that message.
  */
-class Entry extends DTO {
-	public Bundle					source;
-	public String					message;
-	public int						level;
-	public ServiceReference< ? >	reference;
-	public Throwable				exception;
+class Entry extends LogBatchSink.Record {
+
+	//
+	// Set when the message is formatted on the Logger Admin thread
+	//
+
+	public String					format;
+	public Object[]					arguments;
+	public String					where;
+	public boolean					traces;
 }
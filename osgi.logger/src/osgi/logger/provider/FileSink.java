@@ -0,0 +1,440 @@
+package osgi.logger.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.osgi.framework.BundleContext;
+
+import osgi.logger.api.LogBatchSink;
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.ConfigurationPolicy;
+import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta.AD;
+import aQute.bnd.annotation.metatype.Meta.OCD;
+
+/**
+ * A durable sink for the Logger Admin that writes the log to a file. Lines are
+ * encoded straight into a direct buffer that is written with a
+ * {@link FileChannel}, so there is a single copy per batch. The file is rolled
+ * over on size and/or time, rolled files can be compressed in the background
+ * and only a limited number are kept.
+ */
+@Component(
+		name = "osgi.logger.file",
+		designate = FileSink.Config.class,
+		provide = LogBatchSink.class,
+		configurationPolicy = ConfigurationPolicy.require)
+public class FileSink implements LogBatchSink {
+	final static String[]	LEVELS	= {
+			"AUDIT", "ERROR", "WARN ", "INFO ", "DEBUG", "TRACE"
+									};
+
+	enum Roll {
+		NEVER, HOURLY, DAILY;
+	}
+
+	enum Sync {
+		/**
+		 * Leave it to the operating system
+		 */
+		NEVER,
+
+		/**
+		 * Force the file to disk after each batch
+		 */
+		BATCH,
+
+		/**
+		 * Force the file to disk after a batch when the last force is longer
+		 * ago than the sync interval
+		 */
+		INTERVAL;
+	}
+
+	/*
+	 * Configuration parameters expected from the Config Admin
+	 */
+	@OCD(description = "Configuration for the Logger Admin file sink")
+	interface Config {
+		@AD(description = "The log file, a relative path is in the bundle's data area", deflt = "log/osgi.log", required = false)
+		String file();
+
+		@AD(description = "Roll over when the file exceeds this size in bytes, 0 is no limit", deflt = "10485760", required = false)
+		long maxSize();
+
+		@AD(description = "Roll over at the start of each hour or day", deflt = "DAILY", required = false)
+		Roll roll();
+
+		@AD(description = "The number of rolled over files to keep", deflt = "10", required = false)
+		int maxFiles();
+
+		@AD(description = "Compress rolled over files in the background", deflt = "true", required = false)
+		boolean compress();
+
+		@AD(description = "When to force the file to disk", deflt = "NEVER", required = false)
+		Sync sync();
+
+		@AD(description = "The minimum time in milliseconds between forcing the file to disk with sync=INTERVAL", deflt = "1000", required = false)
+		long syncInterval();
+
+		@AD(description = "The size in bytes of the write buffer", deflt = "65536", required = false)
+		int bufferSize();
+	}
+
+	final StringBuilder		line		= new StringBuilder(512);
+	final SimpleDateFormat	dateFormat	= new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	final SimpleDateFormat	rollFormat	= new SimpleDateFormat("yyyyMMdd-HHmmss");
+	final Date				date		= new Date();
+	final CharsetEncoder	encoder		= StandardCharsets.UTF_8.newEncoder()
+												.onMalformedInput(CodingErrorAction.REPLACE)
+												.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	File					file;
+	long					maxSize;
+	Roll					roll;
+	int						maxFiles;
+	boolean					compress;
+	Sync					sync;
+	long					syncInterval;
+
+	ByteBuffer				buffer;
+	FileChannel				channel;
+	long					size;
+	long					nextRoll;
+	long					lastSync;
+	ExecutorService			background;
+
+	@Activate
+	void activate(BundleContext context, Map<String,Object> properties) throws IOException {
+		Config config = Configurable.createConfigurable(Config.class, properties);
+
+		String path = config.file() == null ? "log/osgi.log" : config.file();
+		file = new File(path);
+		if (!file.isAbsolute())
+			file = context.getDataFile(path);
+
+		maxSize = config.maxSize();
+		roll = config.roll() == null ? Roll.NEVER : config.roll();
+		maxFiles = Math.max(0, config.maxFiles());
+		compress = config.compress();
+		sync = config.sync() == null ? Sync.NEVER : config.sync();
+		syncInterval = config.syncInterval();
+		buffer = ByteBuffer.allocateDirect(Math.max(4096, config.bufferSize()));
+
+		open();
+
+		//
+		// Only start the thread when the file could be opened, a failed
+		// activate gets no deactivate to shut it down
+		//
+
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OSGi :: Logger Admin :: File Sink");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	@Deactivate
+	synchronized void deactivate() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			channel.close();
+			background.shutdown();
+		}
+	}
+
+	/*
+	 * Write a batch. The batch is encoded in the buffer and written whenever
+	 * the buffer fills up and at the end of the batch.
+	 */
+	@Override
+	public synchronized void log(List< ? extends Record> batch) throws Exception {
+		if (!channel.isOpen())
+			open();
+
+		for (Record record : batch) {
+			if (record.time >= nextRoll || (maxSize > 0 && size >= maxSize))
+				rollover(record.time);
+
+			format(record);
+			encode();
+		}
+		flush();
+
+		switch (sync) {
+			case BATCH :
+				channel.force(false);
+				break;
+
+			case INTERVAL :
+				long now = System.currentTimeMillis();
+				if (now - lastSync >= syncInterval) {
+					channel.force(false);
+					lastSync = now;
+				}
+				break;
+
+			case NEVER :
+			default :
+				break;
+		}
+	}
+
+	/*
+	 * Create the text line for a record
+	 */
+	private void format(Record record) {
+		line.setLength(0);
+		date.setTime(record.time == 0 ? System.currentTimeMillis() : record.time);
+		line.append(dateFormat.format(date)).append(' ');
+		line.append(record.level >= 0 && record.level < LEVELS.length ? LEVELS[record.level] : "     ").append(' ');
+		if (record.source != null)
+			line.append('[').append(record.source.getBundleId()).append("] ");
+		line.append(record.message);
+		MDCAdapterImpl.append(line, record.context);
+		line.append('\n');
+
+		//
+		// The message already contains the trace if stack traces are
+		// enabled, otherwise we still want it in a durable log
+		//
+
+		if (record.exception != null && !(record instanceof Entry && ((Entry) record).traces))
+			LoggerDispatcher.dispatcher.stackTraces.render(line, record.exception);
+	}
+
+	/*
+	 * Encode the line into the buffer, write the buffer to the file when it is
+	 * full
+	 */
+	private void encode() throws IOException {
+		CharBuffer chars = CharBuffer.wrap(line);
+		encoder.reset();
+		while (true) {
+			int start = buffer.position();
+			CoderResult result = encoder.encode(chars, buffer, true);
+			size += buffer.position() - start;
+			if (result.isOverflow())
+				flush();
+			else
+				break;
+		}
+		encoder.flush(buffer);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private void open() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create log directory " + dir);
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		size = channel.size();
+		nextRoll = nextRoll(System.currentTimeMillis());
+		lastSync = System.currentTimeMillis();
+	}
+
+	/*
+	 * Close the current file, rename it with a time stamp and start a new file.
+	 * Compressing and pruning the old files is done in the background. If the
+	 * file cannot be renamed we keep appending to it.
+	 */
+	private void rollover(long time) throws IOException {
+		if (size > 0) {
+			flush();
+			channel.close();
+
+			date.setTime(time == 0 ? System.currentTimeMillis() : time);
+			String stamp = rollFormat.format(date);
+			File rolled = new File(file.getParentFile(), file.getName() + "." + stamp);
+
+			//
+			// The stamp has a resolution of a second, the name must not be
+			// taken by an earlier roll over, compressed or not
+			//
+
+			for (int n = 1; rolled.exists() || new File(rolled.getPath() + ".gz").exists(); n++)
+				rolled = new File(file.getParentFile(), file.getName() + "." + stamp + "-" + n);
+
+			boolean moved = false;
+			try {
+				moved = move(rolled);
+			}
+			finally {
+				open();
+			}
+
+			if (moved)
+				background(rolled);
+			else {
+				//
+				// Try again after another maxSize bytes instead of on
+				// every record
+				//
+				size = 0;
+			}
+		} else
+			nextRoll = nextRoll(System.currentTimeMillis());
+	}
+
+	/*
+	 * Not all file systems can move a file atomically, then a plain move is
+	 * tried
+	 */
+	private boolean move(File rolled) {
+		try {
+			try {
+				Files.move(file.toPath(), rolled.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e) {
+				Files.move(file.toPath(), rolled.toPath());
+			}
+			return true;
+		}
+		catch (IOException e) {
+			System.err.println("Logger Admin file sink cannot roll over " + file + " to " + rolled + ": " + e);
+			return false;
+		}
+	}
+
+	private void background(final File rolled) {
+		background.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (compress)
+						compress(rolled);
+					prune();
+				}
+				catch (Exception e) {
+					System.err.println("Logger Admin file sink cannot compress " + rolled + ": " + e);
+				}
+			}
+		});
+	}
+
+	static void compress(File rolled) throws IOException {
+		File gz = new File(rolled.getParentFile(), rolled.getName() + ".gz");
+		try (InputStream in = new FileInputStream(rolled);
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(gz), 64 * 1024)) {
+			byte[] buffer = new byte[64 * 1024];
+			int size;
+			while ((size = in.read(buffer)) > 0)
+				out.write(buffer, 0, size);
+		}
+		Files.delete(rolled.toPath());
+	}
+
+	/*
+	 * Delete the oldest rolled files. The names are sorted on the time stamp
+	 * and then on the counter that was added when the stamp was already
+	 * taken, the names themselves do not sort in time order.
+	 */
+	void prune() throws IOException {
+		File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+		if (files == null)
+			return;
+
+		Pattern pattern = Pattern.compile(Pattern.quote(file.getName()) + "\\.(\\d{8}-\\d{6})(?:-(\\d+))?(?:\\.gz)?");
+		List<Rolled> rolled = new ArrayList<>();
+		for (File f : files) {
+			Matcher m = pattern.matcher(f.getName());
+			if (m.matches())
+				rolled.add(new Rolled(f, m.group(1), m.group(2) == null ? 0 : Integer.parseInt(m.group(2))));
+		}
+
+		Collections.sort(rolled);
+		for (int i = 0; i < rolled.size() - maxFiles; i++)
+			Files.deleteIfExists(rolled.get(i).file.toPath());
+	}
+
+	/*
+	 * A rolled file with the parsed parts of its name
+	 */
+	static class Rolled implements Comparable<Rolled> {
+		final File		file;
+		final String	stamp;
+		final int		counter;
+
+		Rolled(File file, String stamp, int counter) {
+			this.file = file;
+			this.stamp = stamp;
+			this.counter = counter;
+		}
+
+		@Override
+		public int compareTo(Rolled o) {
+			int n = stamp.compareTo(o.stamp);
+			if (n != 0)
+				return n;
+			return Integer.compare(counter, o.counter);
+		}
+	}
+
+	/*
+	 * The time of the next time based roll over
+	 */
+	long nextRoll(long now) {
+		if (roll == Roll.NEVER)
+			return Long.MAX_VALUE;
+
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(now);
+		c.set(Calendar.MILLISECOND, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MINUTE, 0);
+		if (roll == Roll.DAILY) {
+			c.set(Calendar.HOUR_OF_DAY, 0);
+			c.add(Calendar.DAY_OF_MONTH, 1);
+		} else
+			c.add(Calendar.HOUR_OF_DAY, 1);
+
+		return c.getTimeInMillis();
+	}
+}
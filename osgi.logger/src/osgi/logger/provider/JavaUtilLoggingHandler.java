@@ -1,40 +1,71 @@
 package osgi.logger.provider;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
-import java.util.regex.Pattern;
+import java.util.logging.Logger;
 
 import org.osgi.service.log.LogService;
 
 import osgi.enroute.logger.api.LoggerAdmin.Control;
 
+
 /**
  * Logging is so much fun! Everybody should have their own logging API!
  * <p>
  * Anyway, this class links into the (quite horrible) Java Util Logging API and
  * forwards the messages to the OSGi Log Service.
+ * <p>
+ * The levels of the controls are pushed down to the JUL Loggers so that
+ * disabled records are already dropped by JUL before it creates a
+ * {@link LogRecord}. The levels we changed are restored when the handler is
+ * closed.
  */
 
 class JavaUtilLoggingHandler extends Handler {
+	final static int							MAX			= 1000;
 
 	/*
-	 * Loggers have a name. So we maintain a cache of the last 1000 loggers
+	 * A bridged logger with the last time it was used
 	 */
+	static class Bridge {
+		final AbstractLogger	logger;
+		volatile long			used;
 
-	private final Map<String,AbstractLogger>	loggers	= new LinkedHashMap<String,AbstractLogger>() {
-															private static final long	serialVersionUID	= 1L;
+		Bridge(AbstractLogger logger) {
+			this.logger = logger;
+		}
+	}
 
-															protected boolean removeEldestEntry(
-																	Map.Entry<String,AbstractLogger> eldest) {
-																if (size() > 1000) {
-																	eldest.getValue().close();
-																}
-																return false;
-															}
-														};
+	/*
+	 * Loggers have a name. So we maintain a cache of the last 1000 loggers. The
+	 * cache can temporarily exceed the maximum, the thread that notices it
+	 * evicts the least recently used tenth while the others continue. The
+	 * loggers are the shared instances of the dispatcher so they are only
+	 * dropped from the cache, not closed.
+	 */
+
+	final ConcurrentMap<String,Bridge>			loggers		= new ConcurrentHashMap<>();
+	private final AtomicLong					clock		= new AtomicLong();
+	private final AtomicBoolean					evicting	= new AtomicBoolean();
+	private final Map<String,Level>				levels		= new HashMap<>();
+	private final LoggerAdminImpl				admin;
+
+	JavaUtilLoggingHandler(LoggerAdminImpl admin) {
+		this.admin = admin;
+	}
 
 	/*
 	 * Java util logging is a bit confusing and horribly designed. The Logger
@@ -45,48 +76,91 @@ class JavaUtilLoggingHandler extends Handler {
 	 */
 	@Override
 	public void publish(LogRecord record) {
-		AbstractLogger l;
-		
-		synchronized (loggers) {
-			
+
+		//
+		// Try to find the name in the cache. If not found, create a new one.
+		//
+
+		String name = record.getLoggerName();
+		if (name == null)
+			name = "";
+
+		Bridge bridge = loggers.get(name);
+		if (bridge == null) {
 			//
-			// Try to find the name in the cache. If not found, create a new one.
+			// Stamp the new bridge before it is visible, otherwise it is the
+			// least recently used one when we evict
 			//
-			
-			l = loggers.get(record.getLoggerName());
-			if (l == null) {
-				l = new AbstractLogger(LoggerDispatcher.classContext.getCallerBundle(), record.getLoggerName());
-				loggers.put(record.getLoggerName(), l);
-			}
-			
-			Level level = record.getLevel();
+			bridge = new Bridge(LoggerDispatcher.dispatcher.getLogger(LoggerDispatcher.classContext.getCallerBundle(), name));
+			bridge.used = clock.incrementAndGet();
+			Bridge previous = loggers.putIfAbsent(name, bridge);
+			if (previous != null)
+				bridge = previous;
+			else if (loggers.size() > MAX)
+				evict();
+		}
+		bridge.used = clock.incrementAndGet();
 
-			// 
-			// Translate the JUL to the OSGi log levels
-			//
-			
-			if (level == Level.INFO) {
-				if (l.isInfoEnabled())
-					message(l, LogService.LOG_INFO, record);
-				return;
-			}
-			if (level == Level.SEVERE) {
-				if (l.isErrorEnabled())
-					message(l, LogService.LOG_ERROR, record);
-				return;
-			}
-			if (level == Level.WARNING) {
-				if (l.isWarnEnabled())
-					message(l, LogService.LOG_WARNING, record);
+		AbstractLogger l = bridge.logger;
+		Level level = record.getLevel();
+
+		//
+		// Translate the JUL to the OSGi log levels
+		//
+
+		if (level == Level.INFO) {
+			if (l.isInfoEnabled())
+				message(l, LogService.LOG_INFO, record);
+			return;
+		}
+		if (level == Level.SEVERE) {
+			if (l.isErrorEnabled())
+				message(l, LogService.LOG_ERROR, record);
+			return;
+		}
+		if (level == Level.WARNING) {
+			if (l.isWarnEnabled())
+				message(l, LogService.LOG_WARNING, record);
+			return;
+		}
+
+		//
+		// All other levels we assume are trace levels
+		//
+
+		if (l.isTraceEnabled())
+			message(l, LoggerAdminImpl.LOG_TRACE, record);
+	}
+
+	/*
+	 * Remove the least recently used loggers. Only one thread evicts at a
+	 * time, the others do not wait for it.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true))
+			return;
+
+		try {
+			List<Map.Entry<String,Bridge>> entries = new ArrayList<>(loggers.entrySet());
+			int n = entries.size() - MAX + MAX / 10;
+			if (n <= 0)
 				return;
-			}
 
-			//
-			// All other levels we assume are trace levels
-			//
-			
-			if (l.isTraceEnabled())
-				message(l, LoggerAdminImpl.LOG_TRACE, record);
+			Collections.sort(entries, new Comparator<Map.Entry<String,Bridge>>() {
+
+				@Override
+				public int compare(Map.Entry<String,Bridge> a, Map.Entry<String,Bridge> b) {
+					return Long.compare(a.getValue().used, b.getValue().used);
+				}
+			});
+
+			for (int i = 0; i < n; i++) {
+				Map.Entry<String,Bridge> e = entries.get(i);
+				loggers.remove(e.getKey(), e.getValue());
+			}
+		}
+		finally {
+			evicting.set(false);
 		}
 	}
 
@@ -109,22 +183,114 @@ class JavaUtilLoggingHandler extends Handler {
 	public void flush() {}
 
 	/*
-	 * Wow, a life cycle method ... we just close all our loggers.
+	 * Wow, a life cycle method ... we just forget our loggers and give the JUL
+	 * loggers their old levels back.
 	 */
 	@Override
 	public void close() throws SecurityException {
-		synchronized (loggers) {
-			for (AbstractLogger l : loggers.values()) {
-				l.close();
+		loggers.clear();
+
+		synchronized (levels) {
+			for (Map.Entry<String,Level> e : levels.entrySet()) {
+				Logger logger = LogManager.getLogManager().getLogger(e.getKey());
+				if (logger != null)
+					logger.setLevel(e.getValue());
 			}
-			loggers.clear();
+			levels.clear();
 		}
 	}
 
 	/*
-	 *  TODO Not sure if this is needed
+	 * Push the levels of the controls down to the JUL loggers. A JUL logger
+	 * that is created later inherits the level of its closest existing
+	 * ancestor, for the root logger that is any logger. So an existing logger
+	 * gets the most permissive level of its own control and of all controls
+	 * that could match a descendant. The exact filtering of the records is
+	 * then done in publish.
 	 */
-	void update(Map<Pattern,Control> controls) {
+	void update() {
+		LogManager manager = LogManager.getLogManager();
+		List<Control> controls = admin.settings.controls;
+
+		synchronized (levels) {
+			for (Enumeration<String> e = manager.getLoggerNames(); e.hasMoreElements();) {
+				String name = e.nextElement();
+				Logger logger = manager.getLogger(name);
+				if (logger == null)
+					continue;
+
+				if (!levels.containsKey(name))
+					levels.put(name, logger.getLevel());
+
+				logger.setLevel(level(name, controls));
+			}
+		}
 	}
 
+	/*
+	 * The level for a logger and its future descendants. A descendant without
+	 * a control gets the default. A control can match a descendant when the
+	 * literal start of its glob and the name plus a dot are a prefix of each
+	 * other, this is conservative for the globs with wildcards in the middle.
+	 * Marker rules are skipped, JUL records have no markers.
+	 */
+	private Level level(String name, List<Control> controls) {
+		Level level = toJul(admin.control.level);
+		if (!name.isEmpty())
+			level = lowest(level, toJul(admin.getControl(name).level));
+
+		if (controls == null)
+			return level;
+
+		String prefix = name.isEmpty() ? "" : name + ".";
+		for (Control c : controls) {
+			if (c.pattern == null || c.pattern.indexOf('@') >= 0)
+				continue;
+
+			String literal = literal(c.pattern);
+			if (literal.startsWith(prefix) || prefix.startsWith(literal))
+				level = lowest(level, toJul(c.level));
+		}
+		return level;
+	}
+
+	/*
+	 * The start of a glob up to the first wildcard
+	 */
+	private static String literal(String glob) {
+		for (int i = 0; i < glob.length(); i++)
+			if (ControlIndex.GLOB_CHARS.indexOf(glob.charAt(i)) >= 0)
+				return glob.substring(0, i);
+		return glob;
+	}
+
+	private static Level lowest(Level a, Level b) {
+		return b.intValue() < a.intValue() ? b : a;
+	}
+
+	/*
+	 * JUL levels below INFO are all mapped to trace.
+	 */
+	static Level toJul(osgi.enroute.logger.api.Level level) {
+		if (level == null)
+			return Level.WARNING;
+
+		switch (level) {
+			case TRACE :
+				return Level.ALL;
+
+			case DEBUG :
+			case INFO :
+				return Level.INFO;
+
+			case WARN :
+				return Level.WARNING;
+
+			case ERROR :
+				return Level.SEVERE;
+
+			default :
+				return Level.OFF;
+		}
+	}
 }
@@ -0,0 +1,167 @@
+package osgi.logger.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.log.LogService;
+
+/**
+ * Log entries must be logged with the Log Service as seen by their source
+ * bundle, Log Services are generally service factories that record the bundle.
+ * Looking these up for every entry is expensive and the services were never
+ * released. This class maintains a routing table from bundle to its Log
+ * Services.
+ * <p>
+ * The table is only modified by the worker thread of the Log Services, other
+ * threads can see it as an immutable snapshot. The listeners only signal changes. Any change
+ * in the Log Services invalidates the whole table, the services are released
+ * and looked up again on the next entry. When a bundle stops, the framework
+ * releases its services so we just forget its route.
+ * <p>
+ * Since we listen to the bundles anyway, an uninstall also drops the cache of
+ * caller bundles and the loggers of the bundle in the dispatcher.
+ */
+class LogRouter implements ServiceListener, SynchronousBundleListener {
+	final static String				FILTER		= "(" + Constants.OBJECTCLASS + "=" + LogService.class.getName() + ")";
+
+	final BundleContext				context;
+	final AtomicInteger				generation	= new AtomicInteger();
+	final Queue<Bundle>				stopped		= new ConcurrentLinkedQueue<>();
+	volatile Map<Bundle,Route>		routes		= Collections.emptyMap();
+	int								current;
+
+	/*
+	 * The Log Services for one bundle and what we need to release them
+	 */
+	static class Route {
+		final BundleContext						context;
+		final List<ServiceReference<LogService>>	references	= new ArrayList<>();
+		final List<LogService>					logs		= new ArrayList<>();
+
+		Route(BundleContext context) {
+			this.context = context;
+		}
+
+		void close() {
+			for (ServiceReference<LogService> ref : references)
+				try {
+					context.ungetService(ref);
+				}
+				catch (IllegalStateException e) {
+					// bundle is already stopped, the framework released them
+				}
+		}
+	}
+
+	LogRouter(BundleContext context) throws InvalidSyntaxException {
+		this.context = context;
+		context.addServiceListener(this, FILTER);
+		context.addBundleListener(this);
+	}
+
+	/*
+	 * Get the Log Services for a bundle. Must only be called from the worker
+	 * thread of the Log Services. Returns null when the bundle has no context, the caller
+	 * should then use the Log Services of the Logger Admin.
+	 */
+	List<LogService> get(Bundle bundle) throws InvalidSyntaxException {
+		refresh();
+
+		Route route = routes.get(bundle);
+		if (route == null) {
+			BundleContext ctx = bundle.getBundleContext();
+			if (ctx == null)
+				return null;
+
+			route = new Route(ctx);
+			Collection<ServiceReference<LogService>> refs = ctx.getServiceReferences(LogService.class, null);
+			for (ServiceReference<LogService> ref : refs) {
+				LogService service = ctx.getService(ref);
+				if (service != null) {
+					route.references.add(ref);
+					route.logs.add(service);
+				}
+			}
+
+			Map<Bundle,Route> copy = new HashMap<>(routes);
+			copy.put(bundle, route);
+			routes = Collections.unmodifiableMap(copy);
+		}
+		return route.logs;
+	}
+
+	/*
+	 * Apply the changes signaled by the listeners
+	 */
+	private void refresh() {
+		int generation = this.generation.get();
+		if (generation != current) {
+			current = generation;
+			Map<Bundle,Route> old = routes;
+			routes = Collections.emptyMap();
+			for (Route route : old.values())
+				route.close();
+			stopped.clear();
+			return;
+		}
+
+		if (stopped.isEmpty())
+			return;
+
+		Map<Bundle,Route> copy = new HashMap<>(routes);
+		Bundle bundle;
+		while ((bundle = stopped.poll()) != null)
+			copy.remove(bundle);
+
+		routes = Collections.unmodifiableMap(copy);
+	}
+
+	@Override
+	public void serviceChanged(ServiceEvent event) {
+		generation.incrementAndGet();
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+			case BundleEvent.UNINSTALLED :
+				LoggerDispatcher.classContext.invalidate();
+				LoggerDispatcher.dispatcher.uninstalled(event.getBundle());
+				stopped.add(event.getBundle());
+				break;
+
+			case BundleEvent.STOPPED :
+				stopped.add(event.getBundle());
+				break;
+		}
+	}
+
+	/*
+	 * Stop listening and release all services. Called when the Logger Admin
+	 * thread has stopped.
+	 */
+	void close() {
+		context.removeServiceListener(this);
+		context.removeBundleListener(this);
+		Map<Bundle,Route> old = routes;
+		routes = Collections.emptyMap();
+		for (Route route : old.values())
+			route.close();
+	}
+}
@@ -0,0 +1,82 @@
+package osgi.logger.provider;
+
+import java.util.List;
+
+import org.osgi.service.log.LogService;
+
+import osgi.logger.api.LogBatchSink;
+
+/**
+ * Adapts the Log Services to a {@link LogBatchSink}. The Log Service has no
+ * batch method so the entries are logged one by one to the Log Services
+ * routed for their source bundle.
+ */
+class LogServiceSink implements LogBatchSink {
+	final LoggerAdminImpl	admin;
+
+	LogServiceSink(LoggerAdminImpl admin) {
+		this.admin = admin;
+	}
+
+	@Override
+	public void log(List< ? extends Record> batch) throws Exception {
+		for (Record record : batch) {
+			Entry take = (Entry) record;
+
+			//
+			// If there are no sinks at all we print to the
+			// console
+			//
+
+			List<LogService> logs = admin.getLogs(take);
+			if (logs.isEmpty()) {
+				if (admin.sinks.isEmpty())
+					System.err.println(take);
+				continue;
+			}
+
+			//
+			// We push to all log services registered since the deployer
+			// can always set the x.target property to limit the
+			// applicable log services
+			//
+
+			String message = MDCAdapterImpl.render(take.message, take.context);
+			for (LogService log : logs) {
+				try {
+					log(log, take, message);
+				}
+				catch (Exception e) {
+					//
+					// Hmm, not much we can do here ...
+					// Since we're the logging subsystem
+					//
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	static void log(LogService log, Record take, String message) {
+		int n = take.exception == null ? 0 : 1;
+		n += take.reference == null ? 0 : 2;
+
+		switch (n) {
+			case 0 :
+				log.log(take.level, message);
+				break;
+
+			case 1 :
+				log.log(take.level, message, take.exception);
+				break;
+
+			case 2 :
+				log.log(take.reference, take.level, message);
+				break;
+
+			case 3 :
+				log.log(take.reference, take.level, message, take.exception);
+				break;
+		}
+	}
+}
@@ -1,18 +1,20 @@
 package osgi.logger.provider;
 
+import java.io.File;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Pattern;
 
-import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
@@ -20,6 +22,8 @@ import org.osgi.service.log.LogService;
 import osgi.enroute.debug.api.Debug;
 import osgi.enroute.logger.api.Level;
 import osgi.enroute.logger.api.LoggerAdmin;
+import osgi.enroute.logging.util.StackTraceRenderer;
+import osgi.logger.api.LogBatchSink;
 import osgi.logger.provider.LoggerDispatcher.Eval;
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
@@ -40,21 +44,69 @@ import aQute.libg.glob.Glob;
 		provide = LoggerAdmin.class,
 		configurationPolicy = ConfigurationPolicy.optional,
 		properties = {
-				Debug.COMMAND_SCOPE + "=logger", Debug.COMMAND_FUNCTION + "=add|remove|settings"
+				Debug.COMMAND_SCOPE + "=logger", Debug.COMMAND_FUNCTION + "=add|remove|settings|sinks|stats"
 		})
-public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
+public class LoggerAdminImpl extends Thread implements LoggerAdmin {
 
 	final static int							LOG_TRACE		= LogService.LOG_DEBUG + 1;
+	final static long							BOOT_POLL		= 100;
+
+	/**
+	 * The statistics of the logging subsystem
+	 */
+	public static class Stats {
+		public Map<String,Long>				enqueued;
+		public Map<String,Long>				dispatched;
+		public Map<Long,Map<String,Long>>	bundles;
+		public Map<String,Long>				dropped;
+		public long							suppressed;
+		public int							queued;
+		public int							capacity;
+		public int							highWater;
+		public Map<String,Long>				latency;
+		public List<SinkInfo>				sinks;
+	}
+
+	/**
+	 * The health of a sink
+	 */
+	public static class SinkInfo {
+		public String			name;
+		public String			state;
+		public long				delivered;
+		public long				failed;
+		public long				timeouts;
+		public long				dropped;
+		public long				rejected;
+		public int				queued;
+		public String			lastError;
+		public Map<String,Long>	latency;
+	}
 
 	boolean										traces;
 	PrintStream									out				= System.err;
 	final List<ServiceReference<LogService>>	logReferences	= new CopyOnWriteArrayList<>();
 	final List<LogService>						logs			= new CopyOnWriteArrayList<>();
-	final Map<Pattern,Control>					controls		= new ConcurrentHashMap<>();
+	volatile ControlIndex						controls		= new ControlIndex(new ArrayList<Control>());
 	Control										control			= new Control();
 	Settings									settings		= new Settings();
 	JavaUtilLoggingHandler						javaUtilLogging;
 	final CountDownLatch						latch			= new CountDownLatch(1);
+	final List<LogBatchSink>					sinks			= new CopyOnWriteArrayList<>();
+	final LogServiceSink						logServiceSink	= new LogServiceSink(this);
+	final Map<LogBatchSink,SinkWorker>			workers			= new ConcurrentHashMap<>();
+	SinkWorker									logServiceWorker;
+	int											sinkQueue		= 64;
+	long										sinkTimeout		= 5000;
+	int											sinkFailures	= 5;
+	long										sinkRetry		= 30000;
+	long										bootMemory		= 1024 * 1024;
+	long										bootFile		= 64 * 1024 * 1024;
+	long										bootDeadline;
+	int											batchSize		= 100;
+	long										linger;
+	long										reported;
+	LogRouter									router;
 
 	public LoggerAdminImpl() {
 		super("OSGi :: Logger Admin");
@@ -75,7 +127,7 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 		//
 
 		if (c.javaUtilLogging()) {
-			java.util.logging.Logger.getLogger("").addHandler(javaUtilLogging = new JavaUtilLoggingHandler());
+			java.util.logging.Logger.getLogger("").addHandler(javaUtilLogging = new JavaUtilLoggingHandler(this));
 		}
 
 		control.level = c.level() == null ? Level.WARN : c.level();
@@ -84,12 +136,41 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 		control.stackTraces = c.traces();
 		control.where = c.where();
 
+		LoggerDispatcher.dispatcher.configure(c.queueSize(), c.overflow(), c.overflowTimeout(), c.overflowSample());
+		LoggerDispatcher.dispatcher.deferred = c.deferred();
+		LoggerDispatcher.dispatcher.stackTraces = new StackTraceRenderer(c.traceFilters(), c.traceCache());
+		LoggerDispatcher.dispatcher.suppressor = c.suppress() == null || c.suppress() == Suppress.NONE ? null
+				: new Suppressor(c.suppress(), c.suppressRate(), c.suppressBurst(), c.suppressSlots(),
+						c.suppressInterval());
+		sinkQueue = c.sinkQueue();
+		sinkTimeout = c.sinkTimeout();
+		sinkFailures = c.sinkFailures();
+		sinkRetry = c.sinkRetry();
+		bootMemory = c.bootMemory();
+		bootFile = c.bootFile();
+		bootDeadline = System.currentTimeMillis() + c.bootTimeout();
+		batchSize = Math.max(1, c.batchSize());
+		linger = TimeUnit.MILLISECONDS.toNanos(Math.max(0, c.linger()));
+
+		//
+		// The routing table for the log services of the source bundles. We
+		// can only route when we run in a framework.
+		//
+
+		if (LoggerDispatcher.thisbundle != null && LoggerDispatcher.thisbundle.getBundleContext() != null) {
+			router = new LogRouter(LoggerDispatcher.thisbundle.getBundleContext());
+		}
+
 		//
 		// Make us the admin ...
 		//
 		assert LoggerDispatcher.dispatcher.admin == null;
 
 		LoggerDispatcher.dispatcher.admin = this;
+		LoggerDispatcher.dispatcher.refresh();
+
+		if (javaUtilLogging != null)
+			javaUtilLogging.update();
 
 		this.setPriority(Thread.MIN_PRIORITY);
 
@@ -100,7 +181,15 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 	public void deactivate() throws Exception {
 		if (javaUtilLogging != null) {
 			java.util.logging.Logger.getLogger("").removeHandler(javaUtilLogging);
+			javaUtilLogging.close();
 		}
+		LoggerDispatcher.dispatcher.deferred = false;
+		LoggerDispatcher.dispatcher.suppressor = null;
+		if (LoggerDispatcher.dispatcher.admin == this) {
+			LoggerDispatcher.dispatcher.admin = null;
+			LoggerDispatcher.dispatcher.refresh();
+		}
+
 		//
 		// Stop our thread
 		//
@@ -113,76 +202,92 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 	 */
 	public void run() {
 		try {
-			LoggerDispatcher.dispatcher.evaluate(this);
-
 			//
 			// Poll the queue until we get an interrupt
 			//
 
+			List<Entry> batch = new ArrayList<>(batchSize);
+
+			//
+			// Take over the boot buffer, until the first sink appears we
+			// buffer the entries there
+			//
+
+			BootBuffer boot = LoggerDispatcher.dispatcher.boot;
+			LoggerDispatcher.dispatcher.metrics.depth(LoggerDispatcher.dispatcher.queue.size());
+			boot.close(LoggerDispatcher.dispatcher.queue, bootMemory, getBootFile(), bootFile);
+
 			while (!isInterrupted())
 				try {
 
 					//
-					// We wait util we get at least 1 log service. In the mean
-					// time we buffer the messages anyway. This is one time
-					// only.
+					// Wait for the first entry, then take what is queued up
+					// to the batch size. If we linger we give the callers a
+					// bit more time to fill the batch. When we suppress
+					// messages we must wake up for the summaries.
 					//
 
-					latch.await(10, TimeUnit.SECONDS);
+					RingBuffer queue = LoggerDispatcher.dispatcher.queue;
+					Suppressor suppressor = LoggerDispatcher.dispatcher.suppressor;
+					batch.clear();
 
-					Entry take = LoggerDispatcher.dispatcher.queue.take();
+					long wait = suppressor == null ? -1 : suppressor.due();
+					if (!boot.isEmpty() || LoggerDispatcher.dispatcher.drainRetired())
+						wait = wait < 0 ? BOOT_POLL : Math.min(wait, BOOT_POLL);
 
-					//
-					// If there are no log services we print to the
-					// console
-					//
+					Entry first = wait < 0 ? queue.take() : queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (first != null) {
+						LoggerDispatcher.dispatcher.metrics.depth(queue.size() + 1);
+						batch.add(first);
+						queue.drainTo(batch, batchSize - batch.size());
+					}
 
-					List<LogService> logs = getLogs(take);
-					if (logs.isEmpty()) {
-						System.err.println(take);
-						continue;
+					if (first != null && linger > 0 && batch.size() < batchSize) {
+						long deadline = System.nanoTime() + linger;
+						long left;
+						while (batch.size() < batchSize && (left = deadline - System.nanoTime()) > 0) {
+							Entry entry = queue.poll(left, TimeUnit.NANOSECONDS);
+							if (entry == null)
+								break;
+							batch.add(entry);
+							queue.drainTo(batch, batchSize - batch.size());
+						}
 					}
 
-					//
-					// We push to all log services registered since the deployer
-					// can always set the x.target property to limit the
-					// applicable log services
-					//
+					reportDropped();
 
-					for (LogService log : logs) {
+					if (suppressor != null)
+						suppressor.report(batch);
 
-						try {
+					if (batch.isEmpty() && boot.isEmpty())
+						continue;
 
-							int n = take.exception == null ? 0 : 1;
-							n += take.reference == null ? 0 : 2;
+					//
+					// In deferred mode the caller only took a snapshot of
+					// the arguments, so we format the message here
+					//
 
-							switch (n) {
-								case 0 :
-									log.log(take.level, take.message);
-									break;
+					for (Entry take : batch) {
+						if (take.message == null)
+							take.message = render(take);
+					}
 
-								case 1 :
-									log.log(take.level, take.message, take.exception);
-									break;
+					//
+					// Until there is a sink, or we waited long enough, we
+					// keep the entries in the boot buffer. Then we replay
+					// them before the new entries.
+					//
 
-								case 2 :
-									log.log(take.reference, take.level, take.message);
-									break;
+					if (latch.getCount() > 0 && System.currentTimeMillis() < bootDeadline) {
+						boot.add(batch);
+						continue;
+					}
 
-								case 3 :
-									log.log(take.reference, take.level, take.message, take.exception);
-									break;
-							}
+					if (!boot.isEmpty())
+						replay(boot);
 
-						}
-						catch (Exception e) {
-							//
-							// Hmm, not much we can do here ...
-							// Since we're the logging subsystem
-							//
-							e.printStackTrace();
-						}
-					}
+					if (!batch.isEmpty())
+						dispatch(batch, 0);
 				}
 				catch (InterruptedException e) {
 					interrupt();
@@ -195,42 +300,240 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 			//
 			e.printStackTrace();
 		}
-		finally {}
+		finally {
+			for (SinkWorker worker : workers.values())
+				worker.close();
+			workers.clear();
+			if (logServiceWorker != null)
+				logServiceWorker.close();
+
+			if (router != null)
+				router.close();
+		}
 	}
 
-	private List<LogService> getLogs(Entry take) throws InvalidSyntaxException {
-		if (take.source == null)
-			return logs;
+	/*
+	 * Hand a batch to the workers of the batch sinks and the log services.
+	 * Workers are created here for new sinks and closed for sinks that are
+	 * gone, so only this thread starts them.
+	 */
+	private void dispatch(List<Entry> batch, long wait) throws InterruptedException {
+		List<Entry> copy = new ArrayList<>(batch);
+
+		Metrics metrics = LoggerDispatcher.dispatcher.metrics;
+		long now = System.currentTimeMillis();
+		for (Entry entry : copy)
+			metrics.dispatched(entry, now);
+
+		for (LogBatchSink sink : sinks) {
+			SinkWorker worker = workers.get(sink);
+			if (worker == null) {
+				worker = new SinkWorker(sink.toString(), sink, sinkQueue, sinkTimeout, sinkFailures, sinkRetry);
+				workers.put(sink, worker);
+				worker.start();
+			}
+			worker.offer(copy, wait);
+		}
 
-		List<LogService> logs = new ArrayList<>();
-		BundleContext ctx = take.source.getBundleContext();
+		for (LogBatchSink sink : workers.keySet()) {
+			if (!sinks.contains(sink)) {
+				SinkWorker worker = workers.remove(sink);
+				if (worker != null)
+					worker.close();
+			}
+		}
 
-		for (ServiceReference<LogService> ref : ctx.getServiceReferences(LogService.class, null)) {
-			LogService service = ctx.getService(ref);
-			if (service != null)
-				logs.add(service);
+		if (logServiceWorker == null) {
+			logServiceWorker = new SinkWorker("Log Services", logServiceSink, sinkQueue, sinkTimeout, sinkFailures,
+					sinkRetry);
+			logServiceWorker.start();
 		}
-		return logs;
+		logServiceWorker.offer(copy, wait);
 	}
 
 	/*
-	 * We're an Eval, so we can iterate over the registered loggers. The default
-	 * we supply is to reset the loggers so they have to refetch their
-	 * configurations.
+	 * Format a deferred entry on this thread. A failing argument must not stop
+	 * the Logger Admin thread, the entry then gets the raw format and
+	 * arguments.
 	 */
-	public void eval(AbstractLogger msf) {
-		msf.reset();
+	static String render(Entry entry) {
+		try {
+			return AbstractLogger.render(entry);
+		}
+		catch (Exception e) {
+			StringBuilder sb = new StringBuilder();
+			if (entry.name != null)
+				sb.append(entry.name).append(" :: ");
+			sb.append(entry.format);
+			if (entry.arguments != null)
+				for (Object arg : entry.arguments) {
+					sb.append(' ');
+					try {
+						MessageTemplate.append(sb, arg);
+					}
+					catch (Exception ee) {
+						sb.append(arg.getClass().getName());
+					}
+				}
+			sb.append(" (").append(e).append(')');
+			return sb.toString();
+		}
+	}
+
+	/*
+	 * Replay the boot buffer in batches. This is bulk, so we wait for room in
+	 * the queues of the sinks instead of dropping.
+	 */
+	private void replay(BootBuffer boot) throws InterruptedException {
+		List<Entry> replay = new ArrayList<>(batchSize);
+		while (boot.drainTo(replay, batchSize) > 0) {
+			for (Entry take : replay) {
+				if (take.message == null)
+					take.message = render(take);
+			}
+			dispatch(replay, sinkTimeout);
+			replay.clear();
+		}
+	}
+
+	/*
+	 * The file the boot buffer spills to, in our data area if we have one
+	 */
+	private File getBootFile() {
+		File file = null;
+		if (LoggerDispatcher.thisbundle != null && LoggerDispatcher.thisbundle.getBundleContext() != null)
+			file = LoggerDispatcher.thisbundle.getBundleContext().getDataFile("boot.log");
+		if (file == null)
+			file = new File(System.getProperty("java.io.tmpdir"), "osgi.logger-" + System.identityHashCode(this)
+					+ ".boot");
+		return file;
+	}
+
+	/**
+	 * The health of the sinks, for each batch sink and the Log Services the
+	 * entries delivered, failed, dropped because the queue was full or
+	 * rejected because the circuit breaker was open.
+	 * <p>
+	 * This is also a shell command.
+	 * 
+	 * @return the health of the sinks
+	 */
+	public List<SinkInfo> sinks() {
+		List<SinkInfo> infos = new ArrayList<>();
+		for (SinkWorker worker : workers.values())
+			infos.add(worker.info());
+		SinkWorker worker = logServiceWorker;
+		if (worker != null)
+			infos.add(worker.info());
+		return infos;
+	}
+
+	/**
+	 * The statistics of the logging subsystem: the entries queued and
+	 * dispatched per level, the dispatched entries per bundle id, the drops
+	 * per overflow policy, the suppressed entries, the queue depth, the
+	 * latency from logging to dispatching, and the health and latency of the
+	 * sinks.
+	 * <p>
+	 * This is also a shell command.
+	 * 
+	 * @return the statistics
+	 */
+	public Stats stats() {
+		LoggerDispatcher dispatcher = LoggerDispatcher.dispatcher;
+		Metrics metrics = dispatcher.metrics;
+		RingBuffer queue = dispatcher.queue;
+		Stats stats = new Stats();
+
+		long[] counts = new long[Metrics.LEVELS.length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = metrics.enqueued[i].sum();
+		stats.enqueued = Metrics.byLevel(counts);
+
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = metrics.dispatched.get(i);
+		stats.dispatched = Metrics.byLevel(counts);
+
+		stats.bundles = new TreeMap<>();
+		for (Map.Entry<Long,AtomicLongArray> e : metrics.bundles.entrySet()) {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = e.getValue().get(i);
+			stats.bundles.put(e.getKey(), Metrics.byLevel(counts));
+		}
+
+		stats.dropped = new LinkedHashMap<>();
+		for (Overflow policy : Overflow.values()) {
+			long n = queue.getDropped(policy);
+			if (n > 0)
+				stats.dropped.put(policy.toString(), n);
+		}
+
+		long boot = dispatcher.boot.getDropped();
+		if (boot > 0)
+			stats.dropped.put("BOOT", boot);
+
+		stats.suppressed = metrics.suppressed.sum();
+		stats.queued = queue.size();
+		stats.capacity = queue.capacity();
+		stats.highWater = metrics.highWater;
+		stats.latency = metrics.latency.snapshot();
+		stats.sinks = sinks();
+		return stats;
+	}
+
+	/*
+	 * Report the entries dropped by the queue since the last time we looked.
+	 * Only the dispatcher thread prints, the callers just count.
+	 */
+	private void reportDropped() {
+		RingBuffer queue = LoggerDispatcher.dispatcher.queue;
+		long dropped = queue.getDropped();
+		if (dropped > reported) {
+			StringBuilder sb = new StringBuilder("Overflowing log queue, dropped ").append(dropped - reported)
+					.append(" entries (");
+			String del = "";
+			for (Overflow policy : Overflow.values()) {
+				long n = queue.getDropped(policy);
+				if (n > 0) {
+					sb.append(del).append(policy).append("=").append(n);
+					del = ", ";
+				}
+			}
+			System.err.println(sb.append(")"));
+			reported = dropped;
+		}
+	}
+
+	/*
+	 * Get the log services for an entry. The services for a source bundle come
+	 * from the routing table so we do not hit the service registry for every
+	 * entry.
+	 */
+	List<LogService> getLogs(Entry take) throws InvalidSyntaxException {
+		if (take.source == null || router == null)
+			return logs;
+
+		List<LogService> logs = router.get(take.source);
+		if (logs == null)
+			return this.logs;
+
+		return logs;
 	}
 
 	/*
 	 * Called by an Abstract Logger when it is initing.
 	 */
 	Control getControl(String identifier) {
-		for (java.util.Map.Entry<Pattern,Control> p : controls.entrySet()) {
-			if (p.getKey().matcher(identifier).matches())
-				return p.getValue();
-		}
-		return control;
+		Control c = controls.get(identifier);
+		return c == null ? control : c;
+	}
+
+	/*
+	 * Called by an Abstract Logger when it is initing, the enabled markers per
+	 * level.
+	 */
+	long[] getMarkers(String identifier) {
+		return controls.markers(identifier);
 	}
 
 	/*
@@ -249,7 +552,7 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 				if (p == null || p.matcher(msf.name).find()) {
 					Info info = new Info();
 					info.bundleId = msf.bundle.getBundleId();
-					info.level = msf.level;
+					info.level = msf.state().level;
 					info.name = msf.name;
 					infos.add(info);
 				}
@@ -271,25 +574,23 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 	 */
 	@Override
 	public void setSettings(Settings settings) throws Exception {
-		Map<Pattern,Control> controls = new HashMap<>();
-
-		for (Control c : settings.controls) {
-			try {
-				Pattern p = Glob.toPattern(c.pattern);
-				controls.put(p, c);
-			}
-			catch (Exception ee) {
-				error("Invalid filter " + c.pattern, ee);
-				return;
-			}
+		ControlIndex controls;
+		try {
+			controls = new ControlIndex(settings.controls);
 		}
-		synchronized (this.controls) {
-			this.controls.clear();
-			this.controls.putAll(controls);
+		catch (IllegalArgumentException ee) {
+			error(ee.getMessage(), ee);
+			return;
 		}
-		LoggerDispatcher.dispatcher.evaluate(this);
+		for (int i = 0; i < controls.markers.length; i++)
+			if (controls.bits[i] < 0)
+				error("More than " + MarkerFactoryImpl.MAX_BITS + " markers in the controls, ignoring the rules for "
+						+ controls.markers[i], null);
+		this.settings = settings;
+		this.controls = controls;
+		LoggerDispatcher.dispatcher.refresh();
 		if (javaUtilLogging != null) {
-			javaUtilLogging.update(controls);
+			javaUtilLogging.update();
 		}
 	}
 
@@ -301,7 +602,8 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 	 * Shell command to add a new setting
 	 * 
 	 * @param pattern
-	 *            the pattern to add
+	 *            the pattern to add, {@code glob@MARKER} only enables the
+	 *            level for messages with that marker
 	 * @param level
 	 *            the level to report on
 	 * @param options
@@ -387,4 +689,23 @@ public class LoggerAdminImpl extends Thread implements LoggerAdmin, Eval {
 	void removeLogService(LogService log) {
 		logs.remove(log);
 	}
+
+	/*
+	 * Get the batch sinks
+	 */
+	@Reference(type = '*')
+	void addLogBatchSink(LogBatchSink sink) {
+		latch.countDown();
+		sinks.add(sink);
+	}
+
+	/*
+	 * Remove the batch sinks
+	 */
+	void removeLogBatchSink(LogBatchSink sink) {
+		sinks.remove(sink);
+		SinkWorker worker = workers.remove(sink);
+		if (worker != null)
+			worker.close();
+	}
 }
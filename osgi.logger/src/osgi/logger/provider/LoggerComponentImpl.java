@@ -6,13 +6,18 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.slf4j.Logger;
 
-
+/**
+ * A Logger service per bundle. The instance is registered with the dispatcher
+ * like the SLF4J loggers, so the bundle gets this instance when it asks SLF4J
+ * for a logger with the same name.
+ */
 @Component(service=Logger.class, servicefactory=true)
 public class LoggerComponentImpl extends AbstractLogger {
 
 	@Activate
 	void activate(ComponentContext context) {
 		setBundle(context.getUsingBundle());
+		LoggerDispatcher.dispatcher.register(this);
 	}
 
 	
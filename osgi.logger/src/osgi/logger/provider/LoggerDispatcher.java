@@ -1,12 +1,19 @@
 package osgi.logger.provider;
 
-import java.util.WeakHashMap;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.FrameworkUtil;
 
+import osgi.enroute.logging.util.StackTraceRenderer;
+
 /**
  * This is the core dispatcher. We need to use statics because slf4j can be
  * initialized long before we're started. So this dispatcher maintains a queue
@@ -15,7 +22,8 @@ import org.osgi.framework.FrameworkUtil;
 
 class LoggerDispatcher {
 	
-	static Bundle	thisbundle	= FrameworkUtil.getBundle(SLF4JHandler.class);
+	final static long	RETIRE_GRACE	= 1000;
+	static Bundle		thisbundle		= FrameworkUtil.getBundle(SLF4JHandler.class);
 
 	//
 	// Helper to find out about the caller context
@@ -23,21 +31,47 @@ class LoggerDispatcher {
 	// This is not safe, but should be good enough for
 	// logging
 	//
+	// Asking the framework for the bundle of a class is
+	// not cheap and at startup thousands of classes create
+	// their static loggers, mostly from the same stack frames.
+	// So the bundle of each class is cached. The cache is
+	// dropped when a bundle is uninstalled so it does not
+	// keep answering with a stale bundle.
+	//
 	static class ClassContext extends SecurityManager {
+		final static Object			NONE	= new Object();
+		volatile ClassValue<Object>	bundles	= cache();
 
 		public Bundle getCallerBundle() {
+			ClassValue<Object> bundles = this.bundles;
 			for (Class< ? > cc : getClassContext()) {
-				Bundle b = FrameworkUtil.getBundle(cc);
-				if (b != null && !b.equals(thisbundle))
-					return b;
+				Object b = bundles.get(cc);
+				if (b != NONE && !b.equals(thisbundle))
+					return (Bundle) b;
 			}
 			return thisbundle;
 		}
+
+		void invalidate() {
+			bundles = cache();
+		}
+
+		static ClassValue<Object> cache() {
+			return new ClassValue<Object>() {
+
+				@Override
+				protected Object computeValue(Class< ? > type) {
+					Bundle b = FrameworkUtil.getBundle(type);
+					return b == null ? NONE : b;
+				}
+			};
+		}
 	};
 	static ClassContext	classContext	= new ClassContext();
 
 	//
-	// Allows synchronized evaluation of the current loggers
+	// Allows synchronized evaluation of the current loggers,
+	// only used to list them
 	//
 	
 	interface Eval {
@@ -45,10 +79,50 @@ class LoggerDispatcher {
 	}
 
 	void evaluate(Eval r) {
-		synchronized (loggers) {
-			for (AbstractLogger msf : loggers.keySet()) {
+		expunge();
+		for (Ref ref : loggers.values()) {
+			AbstractLogger msf = ref.get();
+			if (msf != null)
 				r.eval(msf);
-			}
+		}
+	}
+
+	//
+	// Loggers are canonical per bundle and name. They are
+	// softly referenced so code that gets a logger per request
+	// or per instance keeps getting the same one while memory
+	// allows.
+	//
+
+	static class Key {
+		final Bundle	bundle;
+		final String	name;
+
+		Key(Bundle bundle, String name) {
+			this.bundle = bundle;
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return Objects.equals(bundle, k.bundle) && Objects.equals(name, k.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Objects.hashCode(bundle) + Objects.hashCode(name);
+		}
+	}
+
+	static class Ref extends SoftReference<AbstractLogger> {
+		final Key	key;
+
+		Ref(Key key, AbstractLogger logger, ReferenceQueue<AbstractLogger> queue) {
+			super(logger, queue);
+			this.key = key;
 		}
 	}
 
@@ -58,27 +132,147 @@ class LoggerDispatcher {
 	static LoggerDispatcher						dispatcher	= new LoggerDispatcher();			// YUCK!!!!!
 	
 	
-	final BlockingQueue<Entry>					queue		= new ArrayBlockingQueue<>(100);
-	final WeakHashMap<AbstractLogger,Object>	loggers		= new WeakHashMap<>();
+	volatile RingBuffer							queue		= new RingBuffer(1024);
+	volatile RingBuffer							retired;
+	long										retiredAt;
+	final ConcurrentMap<Key,Ref>				loggers		= new ConcurrentHashMap<>();
+	final ReferenceQueue<AbstractLogger>		collected	= new ReferenceQueue<>();
 	volatile LoggerAdminImpl					admin;
+	volatile boolean							deferred;
+	volatile Suppressor							suppressor;
+	volatile StackTraceRenderer					stackTraces	= new StackTraceRenderer();
+	final Metrics								metrics		= new Metrics();
+	final BootBuffer							boot		= new BootBuffer();
+	volatile int								epoch;
 
 	/*
-	 * Register a logger
+	 * Move to a new settings epoch. The loggers will recalculate their state
+	 * on their next use.
 	 */
-	void register(AbstractLogger mf) {
-		synchronized (loggers) {
-			loggers.put(mf, null);
+	synchronized void refresh() {
+		epoch++;
+	}
+
+	/*
+	 * Set the queue parameters. If the capacity changes we need a new queue,
+	 * any entries already queued are moved to the new queue together with the
+	 * drop counts. A producer that read the old queue before the swap can
+	 * still publish in it, so the old queue is kept as retired and the Logger
+	 * Admin thread moves such late entries with drainRetired.
+	 */
+	synchronized void configure(int capacity, Overflow overflow, long timeout, int sample) {
+		RingBuffer old = queue;
+		RingBuffer buffer = old;
+
+		if (capacity > 0 && RingBuffer.roundUp(capacity) != old.capacity()) {
+			buffer = new RingBuffer(capacity);
 		}
+
+		buffer.setOverflow(overflow, timeout, TimeUnit.MILLISECONDS, sample);
+
+		if (buffer != old) {
+			buffer.inherit(old);
+			queue = buffer;
+			old.transfer(buffer);
+
+			RingBuffer previous = retired;
+			if (previous != null)
+				previous.transfer(buffer);
+
+			retired = old;
+			retiredAt = System.currentTimeMillis();
+		}
+	}
+
+	/*
+	 * Move the late entries of a retired queue to the current queue. The
+	 * retired queue is forgotten when it stayed empty for a grace period.
+	 * Returns true while there is a retired queue.
+	 */
+	synchronized boolean drainRetired() {
+		RingBuffer retired = this.retired;
+		if (retired == null)
+			return false;
+
+		if (!retired.isEmpty()) {
+			retired.transfer(queue);
+			retiredAt = System.currentTimeMillis();
+		} else if (System.currentTimeMillis() - retiredAt > RETIRE_GRACE)
+			this.retired = null;
+
+		return this.retired != null;
+	}
+
+	/*
+	 * Get the logger for a bundle and name, create it when it does not exist
+	 * yet or was collected.
+	 */
+	AbstractLogger getLogger(Bundle bundle, String name) {
+		expunge();
+
+		Key key = new Key(bundle, name);
+		Ref ref = loggers.get(key);
+		AbstractLogger logger = ref == null ? null : ref.get();
+		if (logger != null)
+			return logger;
+
+		logger = new AbstractLogger(bundle, name);
+		Ref nref = new Ref(key, logger, collected);
+
+		while (true) {
+			if (ref == null) {
+				ref = loggers.putIfAbsent(key, nref);
+				if (ref == null)
+					return logger;
+			} else if (loggers.replace(key, ref, nref))
+				return logger;
+			else
+				ref = loggers.get(key);
+
+			AbstractLogger other = ref == null ? null : ref.get();
+			if (other != null)
+				return other;
+		}
+	}
+
+	/*
+	 * Register a logger that was created elsewhere, it replaces any logger
+	 * with the same bundle and name.
+	 */
+	void register(AbstractLogger mf) {
+		expunge();
+		Key key = new Key(mf.bundle, mf.name);
+		loggers.put(key, new Ref(key, mf, collected));
 	}
 
 	/*
 	 * Unregister a logger
 	 */
 	void unregister(AbstractLogger mf) {
-		synchronized (loggers) {
-			loggers.remove(mf);
+		Key key = new Key(mf.bundle, mf.name);
+		Ref ref = loggers.get(key);
+		if (ref != null && ref.get() == mf)
+			loggers.remove(key, ref);
+	}
+
+	/*
+	 * Forget the loggers of an uninstalled bundle
+	 */
+	void uninstalled(Bundle bundle) {
+		for (Iterator<Key> i = loggers.keySet().iterator(); i.hasNext();) {
+			if (bundle.equals(i.next().bundle))
+				i.remove();
 		}
 	}
 
-	
+	/*
+	 * Remove the entries of collected loggers
+	 */
+	private void expunge() {
+		Reference< ? extends AbstractLogger> ref;
+		while ((ref = collected.poll()) != null) {
+			Ref r = (Ref) ref;
+			loggers.remove(r.key, r);
+		}
+	}
 }
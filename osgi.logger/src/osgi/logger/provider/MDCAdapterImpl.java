@@ -0,0 +1,99 @@
+package osgi.logger.provider;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.spi.MDCAdapter;
+
+/**
+ * The SLF4J Mapped Diagnostic Context. Each thread has an immutable map that
+ * is replaced on every change. Changes are rare compared to log messages, so
+ * this makes taking a snapshot for a log entry just reading a reference.
+ */
+class MDCAdapterImpl implements MDCAdapter {
+	final static Map<String,String>				EMPTY		= Collections.emptyMap();
+	final static MDCAdapterImpl					mdc			= new MDCAdapterImpl();
+
+	final ThreadLocal<Map<String,String>>		contexts	= new ThreadLocal<Map<String,String>>() {
+																protected Map<String,String> initialValue() {
+																	return EMPTY;
+																}
+															};
+
+	@Override
+	public void put(String key, String val) {
+		if (key == null)
+			throw new IllegalArgumentException("key cannot be null");
+
+		Map<String,String> copy = new LinkedHashMap<>(contexts.get());
+		copy.put(key, val);
+		contexts.set(Collections.unmodifiableMap(copy));
+	}
+
+	@Override
+	public String get(String key) {
+		return contexts.get().get(key);
+	}
+
+	@Override
+	public void remove(String key) {
+		Map<String,String> context = contexts.get();
+		if (!context.containsKey(key))
+			return;
+
+		Map<String,String> copy = new LinkedHashMap<>(context);
+		copy.remove(key);
+		contexts.set(copy.isEmpty() ? EMPTY : Collections.unmodifiableMap(copy));
+	}
+
+	@Override
+	public void clear() {
+		contexts.remove();
+	}
+
+	@Override
+	public Map<String,String> getCopyOfContextMap() {
+		Map<String,String> context = contexts.get();
+		return context.isEmpty() ? null : new LinkedHashMap<>(context);
+	}
+
+	@Override
+	public void setContextMap(Map<String,String> contextMap) {
+		if (contextMap == null || contextMap.isEmpty())
+			contexts.remove();
+		else
+			contexts.set(Collections.unmodifiableMap(new LinkedHashMap<String,String>(contextMap)));
+	}
+
+	/*
+	 * The context of the current thread, this map never changes
+	 */
+	Map<String,String> snapshot() {
+		return contexts.get();
+	}
+
+	/*
+	 * Add the context to a message for the text based sinks
+	 */
+	static String render(String message, Map<String,String> context) {
+		if (context == null || context.isEmpty())
+			return message;
+
+		StringBuilder sb = new StringBuilder(message);
+		append(sb, context);
+		return sb.toString();
+	}
+
+	static void append(StringBuilder sb, Map<String,String> context) {
+		if (context == null || context.isEmpty())
+			return;
+
+		String del = " {";
+		for (Map.Entry<String,String> e : context.entrySet()) {
+			sb.append(del).append(e.getKey()).append('=').append(e.getValue());
+			del = ", ";
+		}
+		sb.append('}');
+	}
+}
@@ -0,0 +1,108 @@
+package osgi.logger.provider;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.IMarkerFactory;
+import org.slf4j.Marker;
+
+/**
+ * The SLF4J Marker factory. Markers are interned so there is one instance per
+ * name. The markers used in the controls get a bit, when the controls are
+ * replaced the markers that are no longer used give up their bit. Rules for
+ * more than 64 markers are ignored.
+ */
+class MarkerFactoryImpl implements IMarkerFactory {
+	final static int						MAX_BITS	= 64;
+	final static MarkerFactoryImpl			markers		= new MarkerFactoryImpl();
+
+	final ConcurrentMap<String,MarkerImpl>	interned	= new ConcurrentHashMap<>();
+
+	@Override
+	public Marker getMarker(String name) {
+		return intern(name);
+	}
+
+	@Override
+	public boolean exists(String name) {
+		return name != null && interned.containsKey(name);
+	}
+
+	/*
+	 * Markers have bits that are used in the controls so we cannot forget them
+	 */
+	@Override
+	public boolean detachMarker(String name) {
+		return false;
+	}
+
+	@Override
+	public Marker getDetachedMarker(String name) {
+		return new MarkerImpl(name, true);
+	}
+
+	MarkerImpl intern(String name) {
+		MarkerImpl marker = interned.get(name);
+		if (marker == null) {
+			marker = new MarkerImpl(name, false);
+			MarkerImpl previous = interned.putIfAbsent(name, marker);
+			if (previous != null)
+				marker = previous;
+		}
+		return marker;
+	}
+
+	/*
+	 * Get the bits of the markers used in new controls. A marker keeps its
+	 * bit, the bits of the markers that are no longer used are free for the
+	 * others. Returns -1 for a marker when all bits are taken.
+	 */
+	synchronized int[] bits(String[] names) {
+		Set<String> used = new HashSet<>(Arrays.asList(names));
+		long taken = 0;
+		for (MarkerImpl marker : interned.values()) {
+			if (marker.bit < 0)
+				continue;
+
+			if (used.contains(marker.name))
+				taken |= 1L << marker.bit;
+			else
+				marker.bit = -1;
+		}
+
+		int[] bits = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			MarkerImpl marker = intern(names[i]);
+			if (marker.bit < 0 && Long.bitCount(taken) < MAX_BITS) {
+				marker.bit = Long.numberOfTrailingZeros(~taken);
+				taken |= 1L << marker.bit;
+			}
+			bits[i] = marker.bit;
+		}
+		return bits;
+	}
+
+	/*
+	 * The mask of any marker, detached or foreign markers are looked up by name
+	 */
+	static long mask(Marker marker) {
+		if (marker == null)
+			return 0;
+
+		if (marker instanceof MarkerImpl && !((MarkerImpl) marker).detached)
+			return ((MarkerImpl) marker).mask();
+
+		long mask = 0;
+		MarkerImpl interned = markers.interned.get(marker.getName());
+		if (interned != null && interned.bit >= 0)
+			mask = 1L << interned.bit;
+
+		for (Iterator<Marker> i = marker.iterator(); i.hasNext();)
+			mask |= mask(i.next());
+		return mask;
+	}
+}
@@ -0,0 +1,130 @@
+package osgi.logger.provider;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Marker;
+
+/**
+ * An SLF4J Marker. Markers are interned by the {@link MarkerFactoryImpl}. A
+ * marker that is used in a control gets a bit so a logger can check its marker
+ * rules with a mask instead of comparing names.
+ */
+class MarkerImpl implements Marker {
+	private static final long	serialVersionUID	= 1L;
+
+	final String				name;
+	final List<Marker>			references			= new CopyOnWriteArrayList<>();
+	final boolean				detached;
+	volatile int				bit					= -1;
+
+	MarkerImpl(String name, boolean detached) {
+		if (name == null)
+			throw new IllegalArgumentException("A marker name cannot be null");
+		this.name = name;
+		this.detached = detached;
+	}
+
+	/*
+	 * The bits of this marker and the markers it references
+	 */
+	long mask() {
+		long mask = bit < 0 ? 0 : 1L << bit;
+		for (Marker reference : references)
+			mask |= MarkerFactoryImpl.mask(reference);
+		return mask;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void add(Marker reference) {
+		if (reference == null)
+			throw new IllegalArgumentException("A marker reference cannot be null");
+
+		if (reference.contains(this))
+			return;
+
+		if (!references.contains(reference))
+			references.add(reference);
+	}
+
+	@Override
+	public boolean remove(Marker reference) {
+		return references.remove(reference);
+	}
+
+	@Deprecated
+	@Override
+	public boolean hasChildren() {
+		return hasReferences();
+	}
+
+	@Override
+	public boolean hasReferences() {
+		return !references.isEmpty();
+	}
+
+	@Override
+	public Iterator<Marker> iterator() {
+		return references.iterator();
+	}
+
+	@Override
+	public boolean contains(Marker other) {
+		if (other == null)
+			throw new IllegalArgumentException("Other cannot be null");
+
+		if (equals(other))
+			return true;
+
+		for (Marker reference : references)
+			if (reference.contains(other))
+				return true;
+
+		return false;
+	}
+
+	@Override
+	public boolean contains(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("Other cannot be null");
+
+		if (this.name.equals(name))
+			return true;
+
+		for (Marker reference : references)
+			if (reference.contains(name))
+				return true;
+
+		return false;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof Marker && name.equals(((Marker) other).getName());
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		if (references.isEmpty())
+			return name;
+
+		StringBuilder sb = new StringBuilder(name);
+		String del = " [ ";
+		for (Marker reference : references) {
+			sb.append(del).append(reference.getName());
+			del = ", ";
+		}
+		return sb.append(" ]").toString();
+	}
+}
@@ -0,0 +1,214 @@
+package osgi.logger.provider;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.IllegalFormatException;
+import java.util.List;
+
+/**
+ * A parsed log format. A format is parsed once into its literal parts, the
+ * placeholders are the gaps between them. Both the SLF4J {@code {}} and the
+ * printf {@code %s} placeholders are supported, as well as {@code %%},
+ * {@code %n} and the SLF4J {@code \{}} escape. Formats that use any other
+ * printf conversion are still handed to {@link Formatter}.
+ * <p>
+ * Templates are cached in a fixed size table indexed by the identity of the
+ * format string. Formats are almost always constants so this avoids hashing
+ * and comparing the string. The table is direct mapped, a new format replaces
+ * whatever was in its slot, so it is bounded and never needs a lock. Templates
+ * are immutable so the unsynchronized table is safe.
+ */
+class MessageTemplate {
+	final static int						CACHE_SIZE	= 512;
+	final static int						MAX_BUFFER	= 16 * 1024;
+	final static String						NEWLINE		= System.getProperty("line.separator", "\n");
+	final static MessageTemplate[]			cache		= new MessageTemplate[CACHE_SIZE];
+	final static ThreadLocal<Buffer>		buffers		= new ThreadLocal<Buffer>() {
+															protected Buffer initialValue() {
+																return new Buffer();
+															}
+														};
+
+	/*
+	 * A reusable builder per thread. An argument's toString() can log itself,
+	 * so the builder must not be shared with a nested render.
+	 */
+	static class Buffer {
+		final StringBuilder	sb	= new StringBuilder(256);
+		boolean				busy;
+	}
+
+	final static MessageTemplate			NULL		= new MessageTemplate("null");
+
+	final String							format;
+	final String[]							literals;
+	final String							printf;
+
+	MessageTemplate(String format) {
+		this.format = format;
+
+		List<String> literals = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		StringBuilder printf = new StringBuilder();
+		boolean complex = false;
+
+		int length = format.length();
+		for (int i = 0; i < length; i++) {
+			char c = format.charAt(i);
+			char next = i + 1 < length ? format.charAt(i + 1) : 0;
+
+			if (c == '{' && next == '}') {
+				literals.add(literal.toString());
+				literal.setLength(0);
+				printf.append("%s");
+				i++;
+			} else if (c == '\\' && next == '\\' && format.startsWith("{}", i + 2)) {
+				literal.append('\\');
+				printf.append('\\');
+				i++;
+			} else if (c == '\\' && next == '{' && format.startsWith("}", i + 2)) {
+				literal.append("{}");
+				printf.append("{}");
+				i += 2;
+			} else if (c == '%' && next == 's') {
+				literals.add(literal.toString());
+				literal.setLength(0);
+				printf.append("%s");
+				i++;
+			} else if (c == '%' && next == '%') {
+				literal.append('%');
+				printf.append("%%");
+				i++;
+			} else if (c == '%' && next == 'n') {
+				literal.append(NEWLINE);
+				printf.append("%n");
+				i++;
+			} else if (c == '%') {
+				complex = true;
+				printf.append(c);
+			} else {
+				literal.append(c);
+				printf.append(c);
+			}
+		}
+		literals.add(literal.toString());
+
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.printf = complex ? printf.toString() : null;
+	}
+
+	/*
+	 * Get the template for a format. A null format, e.g. the message of an
+	 * exception without one, prints as null.
+	 */
+	static MessageTemplate get(String format) {
+		if (format == null)
+			return NULL;
+
+		int index = System.identityHashCode(format) & (CACHE_SIZE - 1);
+		MessageTemplate template = cache[index];
+		if (template == null || template.format != format) {
+			template = new MessageTemplate(format);
+			cache[index] = template;
+		}
+		return template;
+	}
+
+	/*
+	 * Append the formatted message. Missing arguments print as null, just
+	 * like the Formatter did with our padded argument array, extra arguments
+	 * are ignored.
+	 */
+	void render(StringBuilder sb, Object[] arguments) {
+		if (printf != null) {
+			printf(sb, arguments);
+			return;
+		}
+
+		sb.append(literals[0]);
+		for (int i = 1; i < literals.length; i++) {
+			append(sb, i - 1 < arguments.length ? arguments[i - 1] : null);
+			sb.append(literals[i]);
+		}
+	}
+
+	/*
+	 * Use the Formatter for the more exotic formats. Logging should not throw
+	 * exceptions so a bad format is just printed with its arguments.
+	 */
+	private void printf(StringBuilder sb, Object[] arguments) {
+		Object nargs[] = new Object[arguments.length + 10];
+		for (int i = 0; i < arguments.length; i++) {
+			Object arg = arguments[i];
+			nargs[i] = arg != null && arg.getClass().isArray() ? toString(arg) : arg;
+		}
+
+		int mark = sb.length();
+		try (Formatter formatter = new Formatter(sb)) {
+			formatter.format(printf, nargs);
+		}
+		catch (IllegalFormatException e) {
+			sb.setLength(mark);
+			sb.append(format);
+			for (Object arg : arguments) {
+				sb.append(" ");
+				append(sb, arg);
+			}
+		}
+	}
+
+	/*
+	 * Append an argument, arrays print badly so we print their elements.
+	 */
+	static void append(StringBuilder sb, Object object) {
+		if (object == null) {
+			sb.append("null");
+		} else if (object instanceof String) {
+			sb.append((String) object);
+		} else if (object.getClass().isArray()) {
+			String del = "[";
+			int length = Array.getLength(object);
+			for (int i = 0; i < length; i++) {
+				sb.append(del);
+				append(sb, Array.get(object, i));
+				del = ", ";
+			}
+			sb.append(length == 0 ? "[]" : "]");
+		} else
+			sb.append(object.toString());
+	}
+
+	static String toString(Object object) {
+		StringBuilder sb = new StringBuilder();
+		append(sb, object);
+		return sb.toString();
+	}
+
+	/*
+	 * Get the builder of this thread, or a new one when it is already in use
+	 */
+	static StringBuilder acquire() {
+		Buffer buffer = buffers.get();
+		if (buffer.busy)
+			return new StringBuilder();
+
+		buffer.busy = true;
+		buffer.sb.setLength(0);
+		return buffer.sb;
+	}
+
+	/*
+	 * Release the builder for the next message
+	 */
+	static void release(StringBuilder sb) {
+		Buffer buffer = buffers.get();
+		if (buffer.sb == sb) {
+			if (sb.capacity() > MAX_BUFFER) {
+				sb.setLength(0);
+				sb.trimToSize();
+			}
+			buffer.busy = false;
+		}
+	}
+}
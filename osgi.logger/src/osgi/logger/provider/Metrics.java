@@ -0,0 +1,137 @@
+package osgi.logger.provider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The instrumentation of the logging subsystem. The counters on the callers'
+ * path are striped over padded cells so logging threads do not contend on a
+ * single cache line, they are only summed when the statistics are read. The
+ * counters that are only updated by the Logger Admin thread are plain atomics.
+ */
+class Metrics {
+	final static String[]						LEVELS		= {
+			"AUDIT", "ERROR", "WARN", "INFO", "DEBUG", "TRACE"
+														};
+	final Counter[]								enqueued	= counters();
+	final Counter								suppressed	= new Counter();
+	final AtomicLongArray						dispatched	= new AtomicLongArray(LEVELS.length);
+	final ConcurrentMap<Long,AtomicLongArray>	bundles		= new ConcurrentHashMap<>();
+	final Histogram								latency		= new Histogram();
+	volatile int								highWater;
+
+	/*
+	 * A counter striped over cells of a cache line each, a thread always
+	 * updates the same cell.
+	 */
+	static class Counter {
+		final static int		PAD		= 8;
+		final static int		STRIPES	= RingBuffer.roundUp(Math.min(64,
+												Runtime.getRuntime().availableProcessors() * 2));
+
+		final AtomicLongArray	cells	= new AtomicLongArray(STRIPES * PAD);
+
+		void increment() {
+			cells.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD);
+		}
+
+		long sum() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++)
+				sum += cells.get(i * PAD);
+			return sum;
+		}
+	}
+
+	/*
+	 * A latency histogram with fixed buckets, bucket n holds the latencies
+	 * below 2^n microseconds up to about 1 second, the last bucket is the
+	 * rest.
+	 */
+	static class Histogram {
+		final static int		BUCKETS	= 22;
+
+		final AtomicLongArray	counts	= new AtomicLongArray(BUCKETS);
+
+		void record(long nanos) {
+			long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			counts.incrementAndGet(Math.min(BUCKETS - 1, bucket));
+		}
+
+		/*
+		 * The non empty buckets by their upper bound
+		 */
+		Map<String,Long> snapshot() {
+			Map<String,Long> map = new LinkedHashMap<>();
+			for (int i = 0; i < BUCKETS; i++) {
+				long n = counts.get(i);
+				if (n > 0)
+					map.put(i == BUCKETS - 1 ? ">=" + bound(i - 1) : "<" + bound(i), n);
+			}
+			return map;
+		}
+
+		private static String bound(int bucket) {
+			long micros = 1L << bucket;
+			if (micros < 1000)
+				return micros + "us";
+			return (micros / 1000) + "ms";
+		}
+	}
+
+	/*
+	 * Called on the caller's thread when an entry was queued
+	 */
+	void enqueued(int level) {
+		enqueued[index(level)].increment();
+	}
+
+	/*
+	 * Called on the Logger Admin thread for each dispatched entry
+	 */
+	void dispatched(Entry entry, long now) {
+		int index = index(entry.level);
+		dispatched.incrementAndGet(index);
+
+		long id = entry.source == null ? -1 : entry.source.getBundleId();
+		AtomicLongArray counts = bundles.get(id);
+		if (counts == null)
+			bundles.put(id, counts = new AtomicLongArray(LEVELS.length));
+		counts.incrementAndGet(index);
+
+		if (entry.time != 0)
+			latency.record(TimeUnit.MILLISECONDS.toNanos(now - entry.time));
+	}
+
+	/*
+	 * Called on the Logger Admin thread with the depth of the queue
+	 */
+	void depth(int depth) {
+		if (depth > highWater)
+			highWater = depth;
+	}
+
+	static int index(int level) {
+		return level < 0 || level >= LEVELS.length ? 0 : level;
+	}
+
+	static Map<String,Long> byLevel(long[] counts) {
+		Map<String,Long> map = new LinkedHashMap<>();
+		for (int i = 0; i < LEVELS.length; i++)
+			if (counts[i] > 0)
+				map.put(LEVELS[i], counts[i]);
+		return map;
+	}
+
+	private static Counter[] counters() {
+		Counter[] counters = new Counter[LEVELS.length];
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = new Counter();
+		return counters;
+	}
+}
@@ -0,0 +1,29 @@
+package osgi.logger.provider;
+
+/**
+ * The policy applied by the {@link RingBuffer} when a producer finds the log
+ * queue full.
+ */
+enum Overflow {
+	/**
+	 * Discard the entry that is being logged
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Discard the oldest queued entry to make room for the new one
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Block the caller until there is room, but never longer than the
+	 * configured timeout. If the timeout expires the entry is discarded.
+	 */
+	BLOCK,
+
+	/**
+	 * Keep only 1 in N of the overflowing entries (replacing the oldest) and
+	 * discard the others.
+	 */
+	SAMPLE;
+}
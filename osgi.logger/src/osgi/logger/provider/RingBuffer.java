@@ -0,0 +1,329 @@
+package osgi.logger.provider;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock free queue for log entries. Any number of threads can log
+ * while the Logger Admin thread consumes. Producers never take a monitor, they
+ * claim a slot with a CAS on the tail and publish the entry through the slot's
+ * sequence number (a Vyukov style bounded queue). Since the {@link Overflow}
+ * policies may require a producer to evict the oldest entry, removal is also
+ * safe from multiple threads.
+ * <p>
+ * When the queue is full the configured {@link Overflow} policy is applied and
+ * any discarded entry is counted per policy. The dispatcher reports these
+ * counts, we no longer print every dropped entry to stderr since that just
+ * serializes all callers on the stderr lock.
+ */
+class RingBuffer {
+	final static long			PARK_NANOS	= TimeUnit.MILLISECONDS.toNanos(10);
+	final static long			BLOCK_NANOS	= TimeUnit.MICROSECONDS.toNanos(50);
+	final static int			EVICTIONS	= 16;
+
+	final int					mask;
+	final Entry[]				slots;
+	final AtomicLongArray		sequences;
+	final AtomicLong			head		= new AtomicLong();
+	final AtomicLong			tail		= new AtomicLong();
+	final AtomicLong			overflows	= new AtomicLong();
+	final AtomicLongArray		dropped		= new AtomicLongArray(Overflow.values().length);
+
+	volatile Overflow			overflow	= Overflow.DROP_NEWEST;
+	volatile long				timeout		= TimeUnit.MILLISECONDS.toNanos(100);
+	volatile int				sample		= 100;
+	volatile Thread				waiter;
+	volatile Thread				consumer;
+
+	RingBuffer(int capacity) {
+		int size = roundUp(capacity);
+		mask = size - 1;
+		slots = new Entry[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/*
+	 * The actual capacity used for a requested capacity
+	 */
+	static int roundUp(int capacity) {
+		int size = 2;
+		while (size < capacity && size < (1 << 30))
+			size <<= 1;
+		return size;
+	}
+
+	/*
+	 * Set the overflow policy
+	 */
+	void setOverflow(Overflow overflow, long timeout, TimeUnit unit, int sample) {
+		this.overflow = overflow == null ? Overflow.DROP_NEWEST : overflow;
+		this.timeout = unit.toNanos(Math.max(0, timeout));
+		this.sample = Math.max(1, sample);
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/*
+	 * Queue an entry. If the queue is full, the overflow policy decides if we
+	 * drop this entry, drop an older entry, or wait a bit. Returns false if
+	 * the entry was not queued.
+	 */
+	boolean offer(Entry entry) {
+		if (enqueue(entry)) {
+			signal();
+			return true;
+		}
+
+		Overflow overflow = this.overflow;
+		switch (overflow) {
+			case DROP_OLDEST :
+				return evict(entry, overflow);
+
+			case BLOCK :
+				return block(entry);
+
+			case SAMPLE :
+				if (overflows.incrementAndGet() % sample == 0)
+					return evict(entry, overflow);
+				break;
+
+			case DROP_NEWEST :
+			default :
+				break;
+		}
+		dropped.incrementAndGet(overflow.ordinal());
+		return false;
+	}
+
+	/*
+	 * Queue an entry only if there is room, the overflow policy is not
+	 * applied
+	 */
+	boolean tryOffer(Entry entry) {
+		if (enqueue(entry)) {
+			signal();
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Remove the head of the queue, returns null if empty. This never blocks.
+	 */
+	Entry poll() {
+		return dequeue();
+	}
+
+	/*
+	 * Move at most max entries to the given list without blocking. Returns the
+	 * number of entries moved.
+	 */
+	int drainTo(List<Entry> to, int max) {
+		int n = 0;
+		Entry entry;
+		while (n < max && (entry = dequeue()) != null) {
+			to.add(entry);
+			n++;
+		}
+		return n;
+	}
+
+	/*
+	 * Wait until there is an entry available. Only the Logger Admin thread
+	 * should wait. Producers unpark it after they published an entry, the
+	 * park is time limited so a missed signal only costs a small delay.
+	 */
+	Entry take() throws InterruptedException {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/*
+	 * Wait a limited time for an entry, returns null on timeout
+	 */
+	Entry poll(long time, TimeUnit unit) throws InterruptedException {
+		Entry entry = dequeue();
+		if (entry != null)
+			return entry;
+
+		long nanos = unit.toNanos(time);
+		long deadline = System.nanoTime() + nanos;
+		Thread current = Thread.currentThread();
+		consumer = current;
+		try {
+			while (true) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+
+				waiter = current;
+				entry = dequeue();
+				if (entry != null)
+					return entry;
+
+				long left = nanos == Long.MAX_VALUE ? PARK_NANOS : deadline - System.nanoTime();
+				if (left <= 0)
+					return null;
+
+				LockSupport.parkNanos(this, Math.min(left, PARK_NANOS));
+			}
+		}
+		finally {
+			waiter = null;
+		}
+	}
+
+	/*
+	 * Approximate number of queued entries
+	 */
+	int size() {
+		long size = tail.get() - head.get();
+		if (size < 0)
+			return 0;
+		if (size > capacity())
+			return capacity();
+		return (int) size;
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/*
+	 * Discard all queued entries
+	 */
+	void clear() {
+		while (dequeue() != null)
+			;
+	}
+
+	/*
+	 * Move all entries in this queue to another queue, used when the queue is
+	 * resized by a new configuration.
+	 */
+	void transfer(RingBuffer to) {
+		Entry entry;
+		while ((entry = dequeue()) != null)
+			to.offer(entry);
+	}
+
+	/*
+	 * Take over the drop counts of the queue this queue replaces so the
+	 * reported totals do not go back
+	 */
+	void inherit(RingBuffer old) {
+		for (int i = 0; i < dropped.length(); i++)
+			dropped.addAndGet(i, old.dropped.get(i));
+		overflows.addAndGet(old.overflows.get());
+	}
+
+	/*
+	 * Number of entries discarded under the given policy
+	 */
+	long getDropped(Overflow policy) {
+		return dropped.get(policy.ordinal());
+	}
+
+	/*
+	 * Total number of entries discarded
+	 */
+	long getDropped() {
+		long total = 0;
+		for (int i = 0; i < dropped.length(); i++)
+			total += dropped.get(i);
+		return total;
+	}
+
+	/*
+	 * Make room by removing the oldest entries. We only try a limited number
+	 * of times since other producers are competing for the same slots.
+	 */
+	private boolean evict(Entry entry, Overflow policy) {
+		for (int i = 0; i < EVICTIONS; i++) {
+			if (dequeue() != null)
+				dropped.incrementAndGet(policy.ordinal());
+
+			if (enqueue(entry)) {
+				signal();
+				return true;
+			}
+		}
+		dropped.incrementAndGet(policy.ordinal());
+		return false;
+	}
+
+	/*
+	 * Wait until there is room or the timeout expires. The consumer must never
+	 * wait for itself, this happens when a log service logs via slf4j.
+	 */
+	private boolean block(Entry entry) {
+		if (Thread.currentThread() != consumer) {
+			long deadline = System.nanoTime() + timeout;
+			do {
+				signal();
+				LockSupport.parkNanos(this, BLOCK_NANOS);
+				if (enqueue(entry)) {
+					signal();
+					return true;
+				}
+			} while (System.nanoTime() - deadline < 0 && !Thread.currentThread().isInterrupted());
+		}
+		dropped.incrementAndGet(Overflow.BLOCK.ordinal());
+		return false;
+	}
+
+	private void signal() {
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+	/*
+	 * A slot is free for position p when its sequence is p, it is filled when
+	 * its sequence is p+1. The sequence is a volatile write so it publishes the
+	 * slot content.
+	 */
+	private boolean enqueue(Entry entry) {
+		long pos = tail.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots[index] = entry;
+					sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else
+				pos = tail.get();
+		}
+	}
+
+	private Entry dequeue() {
+		long pos = head.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					Entry entry = slots[index];
+					slots[index] = null;
+					sequences.set(index, pos + mask + 1);
+					return entry;
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else
+				pos = head.get();
+		}
+	}
+}
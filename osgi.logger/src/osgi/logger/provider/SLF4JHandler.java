@@ -13,17 +13,15 @@ public class SLF4JHandler implements ILoggerFactory {
 	
 	@Override
 	public Logger getLogger(String name) {
-		return new AbstractLogger(LoggerDispatcher.classContext.getCallerBundle(), name);
+		return LoggerDispatcher.dispatcher.getLogger(LoggerDispatcher.classContext.getCallerBundle(), name);
 	}
 
 	public IMarkerFactory getMarkerFactory() {
-		// TODO support markers
-		throw new UnsupportedOperationException();
+		return MarkerFactoryImpl.markers;
 	}
 
 	public MDCAdapter getMDCA() {
-		// TODO support mdcs
-		throw new UnsupportedOperationException();
+		return MDCAdapterImpl.mdc;
 	}
 
 }
@@ -0,0 +1,211 @@
+package osgi.logger.provider;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import osgi.logger.api.LogBatchSink;
+import osgi.logger.provider.LoggerAdminImpl.SinkInfo;
+
+/**
+ * Each sink gets its own worker thread with a bounded queue of batches so a
+ * slow or blocked sink cannot stall the Logger Admin thread or the other
+ * sinks. When the queue of a sink is full its batches are dropped.
+ * <p>
+ * A sink that fails or takes longer than the timeout counts a failure, after a
+ * number of consecutive failures the circuit breaker opens and the batches for
+ * the sink are rejected until the retry time has passed. Then a single probe
+ * batch is tried and the others are rejected until it completes, if it
+ * succeeds the breaker closes again. A call that hangs is noticed by the Logger
+ * Admin thread when it offers the next batch, the worker is then interrupted.
+ * If the call still hangs when the retry time has passed the breaker is opened
+ * again.
+ */
+class SinkWorker extends Thread {
+	enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	final String							label;
+	final LogBatchSink						sink;
+	final BlockingQueue<List<Entry>>		queue;
+	final long								timeout;
+	final int								threshold;
+	final long								retry;
+
+	final AtomicLong						delivered	= new AtomicLong();
+	final AtomicLong						failed		= new AtomicLong();
+	final AtomicLong						timeouts	= new AtomicLong();
+	final AtomicLong						dropped		= new AtomicLong();
+	final AtomicLong						rejected	= new AtomicLong();
+	final Metrics.Histogram					latency		= new Metrics.Histogram();
+
+	volatile State							state		= State.CLOSED;
+	volatile long							openUntil;
+	volatile long							busySince;
+	volatile boolean						stalled;
+	volatile boolean						probing;
+	volatile boolean						closed;
+	volatile String							lastError;
+	int										consecutive;
+
+	/*
+	 * The timeout and retry are in milliseconds
+	 */
+	SinkWorker(String name, LogBatchSink sink, int capacity, long timeout, int threshold, long retry) {
+		super("OSGi :: Logger Admin :: " + name);
+		setDaemon(true);
+		this.label = name;
+		this.sink = sink;
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		this.timeout = timeout;
+		this.threshold = Math.max(1, threshold);
+		this.retry = retry;
+	}
+
+	/*
+	 * Called by the Logger Admin thread. The batch must not be modified
+	 * afterwards, it is shared between the workers. When the queue is full we
+	 * wait at most the given time in milliseconds for room.
+	 */
+	void offer(List<Entry> batch, long wait) throws InterruptedException {
+		long now = System.currentTimeMillis();
+		long since = busySince;
+
+		//
+		// A stalled call is detected once per delivery attempt but it opens
+		// the breaker again each time the retry time has passed and the
+		// call is still hanging
+		//
+
+		if (since != 0 && timeout > 0 && now - since > timeout
+				&& (!stalled || state != State.OPEN || now >= openUntil)) {
+			if (!stalled) {
+				stalled = true;
+				timeouts.incrementAndGet();
+				lastError = "Timeout after " + timeout + " ms";
+			}
+			open(now);
+			interrupt();
+		}
+
+		if (state == State.OPEN) {
+			if (now < openUntil) {
+				rejected.addAndGet(batch.size());
+				return;
+			}
+			probing = false;
+			state = State.HALF_OPEN;
+		}
+
+		//
+		// Only one probe batch while half open
+		//
+
+		boolean probe = false;
+		if (state == State.HALF_OPEN) {
+			if (probing) {
+				rejected.addAndGet(batch.size());
+				return;
+			}
+			probing = probe = true;
+		}
+
+		if (!queue.offer(batch, wait, TimeUnit.MILLISECONDS)) {
+			dropped.addAndGet(batch.size());
+			if (probe)
+				probing = false;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!closed)
+			try {
+				List<Entry> batch = queue.take();
+
+				if (state == State.OPEN && System.currentTimeMillis() < openUntil) {
+					rejected.addAndGet(batch.size());
+					continue;
+				}
+
+				deliver(batch);
+			}
+			catch (InterruptedException e) {
+				//
+				// Either closed or interrupted out of a stalled call
+				//
+			}
+	}
+
+	private void deliver(List<Entry> batch) {
+		long start = System.currentTimeMillis();
+		stalled = false;
+		busySince = start;
+		long begin = System.nanoTime();
+
+		//
+		// An error like a NoClassDefFoundError of a sink whose bundle is
+		// gone must not end this thread, it counts as a failure
+		//
+
+		Throwable error = null;
+		try {
+			sink.log(batch);
+		}
+		catch (Throwable e) {
+			error = e;
+		}
+		finally {
+			busySince = 0;
+			latency.record(System.nanoTime() - begin);
+		}
+
+		long now = System.currentTimeMillis();
+		if (error == null && !stalled && (timeout <= 0 || now - start <= timeout)) {
+			delivered.addAndGet(batch.size());
+			consecutive = 0;
+			state = State.CLOSED;
+			return;
+		}
+
+		failed.addAndGet(batch.size());
+		if (error != null)
+			lastError = error.toString();
+		else if (!stalled)
+			lastError = "Slow, took " + (now - start) + " ms";
+
+		stalled = false;
+		Thread.interrupted();
+
+		if (++consecutive >= threshold || state == State.HALF_OPEN)
+			open(now);
+	}
+
+	private void open(long now) {
+		openUntil = now + retry;
+		state = State.OPEN;
+	}
+
+	void close() {
+		closed = true;
+		interrupt();
+	}
+
+	SinkInfo info() {
+		SinkInfo info = new SinkInfo();
+		info.name = label;
+		info.state = state.toString();
+		info.delivered = delivered.get();
+		info.failed = failed.get();
+		info.timeouts = timeouts.get();
+		info.dropped = dropped.get();
+		info.rejected = rejected.get();
+		info.queued = queue.size();
+		info.lastError = lastError;
+		info.latency = latency.snapshot();
+		return info;
+	}
+}
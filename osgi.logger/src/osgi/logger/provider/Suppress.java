@@ -0,0 +1,22 @@
+package osgi.logger.provider;
+
+/**
+ * How log messages are grouped for the burst suppression.
+ */
+enum Suppress {
+	/**
+	 * No suppression
+	 */
+	NONE,
+
+	/**
+	 * Messages of the same logger with the same format and level
+	 */
+	FORMAT,
+
+	/**
+	 * Messages of the same logger and level with the same type of exception,
+	 * messages without an exception are grouped by format
+	 */
+	THROWABLE;
+}
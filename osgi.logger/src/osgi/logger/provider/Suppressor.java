@@ -0,0 +1,162 @@
+package osgi.logger.provider;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Suppresses bursts of similar messages. Each group of similar messages has a
+ * token bucket, a message needs a token and the bucket refills at a fixed
+ * rate. What is suppressed is counted and the Logger Admin thread regularly
+ * logs a summary.
+ * <p>
+ * The buckets live in a fixed number of slots indexed by the hash of the
+ * group, so the suppression uses the same memory whatever is logged. A slot
+ * remembers the key of its group, a different group that maps to the same slot
+ * takes it over with a full bucket. A bucket is a single long with the time of
+ * the last update and the tokens so it can be updated with a CAS.
+ */
+class Suppressor {
+	final static int					SCALE		= 1000;
+	final static int					TOKEN_BITS	= 20;
+	final static long					TOKEN_MASK	= (1L << TOKEN_BITS) - 1;
+	final static int					MAX_BURST	= (int) (TOKEN_MASK / SCALE);
+
+	final Suppress						by;
+	final long							rate;
+	final long							burst;
+	final long							interval;
+	final int							mask;
+	final long							base		= System.currentTimeMillis();
+	final AtomicLongArray				keys;
+	final AtomicLongArray				buckets;
+	final AtomicIntegerArray			suppressed;
+	final AtomicReferenceArray<Sample>	samples;
+	long								next;
+
+	/*
+	 * What we tell about the suppressed messages of a slot
+	 */
+	static class Sample {
+		final Bundle	source;
+		final String	name;
+		final int		level;
+		final String	text;
+
+		Sample(Bundle source, String name, int level, String text) {
+			this.source = source;
+			this.name = name;
+			this.level = level;
+			this.text = text;
+		}
+	}
+
+	/*
+	 * The rate is in messages per second per group, the burst is the number of
+	 * messages a group can log at once.
+	 */
+	Suppressor(Suppress by, int rate, int burst, int slots, long interval) {
+		int size = RingBuffer.roundUp(Math.max(16, slots));
+
+		this.by = by;
+		this.rate = Math.max(1, rate);
+		this.burst = Math.max(1, Math.min(MAX_BURST, burst)) * (long) SCALE;
+		this.interval = Math.max(1, interval);
+		this.mask = size - 1;
+		this.keys = new AtomicLongArray(size);
+		this.buckets = new AtomicLongArray(size);
+		this.suppressed = new AtomicIntegerArray(size);
+		this.samples = new AtomicReferenceArray<>(size);
+		this.next = base + this.interval;
+	}
+
+	/*
+	 * Check if a message may be logged, take a token if so.
+	 */
+	boolean allow(AbstractLogger logger, int level, String format, Object[] arguments) {
+		Throwable throwable = null;
+		if (by == Suppress.THROWABLE && arguments.length > 0 && arguments[arguments.length - 1] instanceof Throwable)
+			throwable = (Throwable) arguments[arguments.length - 1];
+
+		int group = throwable != null ? throwable.getClass().getName().hashCode() : (format == null ? 0 : format
+				.hashCode());
+		long key = ((long) (logger.name == null ? 0 : logger.name.hashCode()) << 32) ^ (group & 0xFFFFFFFFL)
+				^ ((long) level << 28);
+		if (key == 0)
+			key = 1;
+
+		int slot = (int) (key ^ (key >>> 29) ^ (key >>> 47)) & mask;
+		long now = System.currentTimeMillis() - base;
+
+		if (keys.get(slot) != key) {
+			keys.set(slot, key);
+			buckets.set(slot, bucket(now, burst - SCALE));
+			return true;
+		}
+
+		while (true) {
+			long bucket = buckets.get(slot);
+			long time = bucket >>> TOKEN_BITS;
+			long tokens = Math.min(burst, (bucket & TOKEN_MASK) + Math.max(0, now - time) * rate);
+
+			if (tokens < SCALE) {
+				//
+				// No need to update the bucket, the refill is calculated
+				// from the last update anyway
+				//
+				suppressed.incrementAndGet(slot);
+				if (samples.get(slot) == null)
+					samples.compareAndSet(slot, null, new Sample(logger.bundle, logger.name, level,
+							throwable != null ? throwable.getClass().getName() : format));
+				return false;
+			}
+
+			if (buckets.compareAndSet(slot, bucket, bucket(now, tokens - SCALE)))
+				return true;
+		}
+	}
+
+	private static long bucket(long time, long tokens) {
+		return (time << TOKEN_BITS) | tokens;
+	}
+
+	/*
+	 * Called by the Logger Admin thread, adds the summaries to the batch when
+	 * the interval has passed.
+	 */
+	void report(List<Entry> batch) {
+		long now = System.currentTimeMillis();
+		if (now < next)
+			return;
+
+		next = now + interval;
+
+		for (int slot = 0; slot <= mask; slot++) {
+			if (suppressed.get(slot) == 0)
+				continue;
+
+			int n = suppressed.getAndSet(slot, 0);
+			Sample sample = samples.getAndSet(slot, null);
+			if (n == 0 || sample == null)
+				continue;
+
+			Entry entry = new Entry();
+			entry.source = sample.source;
+			entry.name = sample.name;
+			entry.level = sample.level;
+			entry.time = now;
+			entry.message = sample.name + " :: Suppressed " + n + " similar messages: " + sample.text;
+			batch.add(entry);
+		}
+	}
+
+	/*
+	 * The time in milliseconds until the next report
+	 */
+	long due() {
+		return Math.max(1, next - System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,110 @@
+package osgi.enroute.logging.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class StackTraceRendererTest extends TestCase {
+
+	public void testSameAsPrintStackTrace() {
+		StackTraceRenderer renderer = new StackTraceRenderer("", 16);
+		Exception e = new IllegalStateException("outer", new IllegalArgumentException("inner"));
+		e.addSuppressed(new RuntimeException("suppressed"));
+
+		StringWriter sw = new StringWriter();
+		e.printStackTrace(new PrintWriter(sw));
+
+		StringBuilder sb = new StringBuilder();
+		renderer.render(sb, e);
+		assertEquals(sw.toString().replace(System.lineSeparator(), "\n"), sb.toString());
+	}
+
+	public void testFilters() {
+		StackTraceRenderer renderer = new StackTraceRenderer("com.acme.impl., com.acme.Foo.invoke", 16);
+		Exception e = new Exception("test");
+		e.setStackTrace(new StackTraceElement[] {
+				new StackTraceElement("com.acme.impl.Bar", "top", "Bar.java", 1),
+				new StackTraceElement("com.acme.impl.Bar", "call", "Bar.java", 2),
+				new StackTraceElement("com.acme.Foo", "invoke0", "Foo.java", 3),
+				new StackTraceElement("com.acme.Foo", "run", "Foo.java", 4)
+		});
+
+		StringBuilder sb = new StringBuilder();
+		renderer.render(sb, e);
+		assertEquals("java.lang.Exception: test\n" //
+				+ "\tat com.acme.impl.Bar.top(Bar.java:1)\n" //
+				+ "\t... 2 filtered\n" //
+				+ "\tat com.acme.Foo.run(Foo.java:4)\n", sb.toString());
+	}
+
+	public void testCache() {
+		StackTraceRenderer renderer = new StackTraceRenderer("", 16);
+		StackTraceElement[] frames = new Exception().getStackTrace();
+
+		Exception a = new Exception("same");
+		a.setStackTrace(frames);
+		StringBuilder sb = new StringBuilder();
+		renderer.render(sb, a);
+		StackTraceRenderer.Trace trace = cached(renderer);
+
+		Exception b = new Exception("same");
+		b.setStackTrace(frames);
+		StringBuilder sb2 = new StringBuilder();
+		renderer.render(sb2, b);
+		assertSame("same structure hits", trace, cached(renderer));
+		assertEquals(sb.toString(), sb2.toString());
+
+		Exception c = new Exception("other");
+		c.setStackTrace(frames);
+		StringBuilder sb3 = new StringBuilder();
+		renderer.render(sb3, c);
+		assertTrue(sb3.toString().startsWith("java.lang.Exception: other\n"));
+	}
+
+	/*
+	 * The key only hashes the top frames, a trace that differs below them has
+	 * the same hash and must not hit
+	 */
+	public void testDeepFramesDiffer() {
+		StackTraceRenderer renderer = new StackTraceRenderer("", 1);
+		StackTraceElement[] frames = new StackTraceElement[StackTraceRenderer.TOP + 2];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = new StackTraceElement("com.acme.Foo", "m" + i, "Foo.java", i);
+
+		Exception a = new Exception("same");
+		a.setStackTrace(frames.clone());
+		StringBuilder sb = new StringBuilder();
+		renderer.render(sb, a);
+
+		frames[frames.length - 1] = new StackTraceElement("com.acme.Bar", "deep", "Bar.java", 1);
+		Exception b = new Exception("same");
+		b.setStackTrace(frames);
+		StringBuilder sb2 = new StringBuilder();
+		renderer.render(sb2, b);
+
+		assertEquals(cached(renderer).hash, hash(renderer, a));
+		assertTrue(sb2.toString().contains("com.acme.Bar.deep(Bar.java:1)"));
+		assertFalse(sb.toString().contains("com.acme.Bar.deep"));
+	}
+
+	public void testRoundUp() {
+		assertEquals(1, StackTraceRenderer.roundUp(1));
+		assertEquals(64, StackTraceRenderer.roundUp(64));
+		assertEquals(128, StackTraceRenderer.roundUp(65));
+		assertEquals(StackTraceRenderer.CACHE, new StackTraceRenderer().cache.length);
+	}
+
+	static int hash(StackTraceRenderer renderer, Throwable t) {
+		StackTraceRenderer other = new StackTraceRenderer("", 1);
+		other.render(new StringBuilder(), t);
+		return cached(other).hash;
+	}
+
+	static StackTraceRenderer.Trace cached(StackTraceRenderer renderer) {
+		for (StackTraceRenderer.Trace trace : renderer.cache)
+			if (trace != null)
+				return trace;
+		return null;
+	}
+}
@@ -0,0 +1,60 @@
+package osgi.logger.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The dispatcher is static, an admin that a test leaves running keeps
+ * draining the dispatcher of the next test. Tests start their admins here and
+ * stop them in tearDown, which also waits for the admin threads to end.
+ */
+class Admins {
+	final static long			DEADLINE	= 5000;
+
+	final List<LoggerAdminImpl>	admins		= new ArrayList<>();
+
+	Admins() {
+		LoggerDispatcher.dispatcher = new LoggerDispatcher();
+	}
+
+	/*
+	 * Create an admin that is stopped on close, it is only activated when a
+	 * configuration is given
+	 */
+	LoggerAdminImpl create(Map<String,Object> config) throws Exception {
+		LoggerAdminImpl admin = new LoggerAdminImpl();
+		admin.setDaemon(false);
+		admins.add(admin);
+		if (config != null)
+			admin.activate(config);
+		return admin;
+	}
+
+	void close() throws Exception {
+		try {
+			for (LoggerAdminImpl admin : admins) {
+				admin.deactivate();
+				admin.join(DEADLINE);
+				if (admin.isAlive())
+					throw new IllegalStateException("Admin thread did not stop " + admin);
+			}
+		}
+		finally {
+			admins.clear();
+			LoggerDispatcher.dispatcher = new LoggerDispatcher();
+		}
+	}
+
+	/*
+	 * Wait until the collection has at least the given number of elements or
+	 * the deadline has passed, the caller asserts the outcome
+	 */
+	static void await(Collection< ? > c, int n) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DEADLINE;
+		while (c.size() < n && System.currentTimeMillis() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+	}
+}
@@ -0,0 +1,125 @@
+package osgi.logger.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import osgi.enroute.logger.api.Level;
+import osgi.logger.api.LogBatchSink;
+
+public class BootBufferTest extends TestCase {
+	Admins	admins;
+
+	@Override
+	protected void setUp() throws Exception {
+		admins = new Admins();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		admins.close();
+	}
+
+	public void testReplayInOrder() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		map.put("bootMemory", 500);
+		map.put("batchSize", 7);
+		LoggerAdminImpl admin = admins.create(map);
+
+		AbstractLogger logger = new AbstractLogger(null, "test");
+		for (int i = 0; i < 50; i++)
+			logger.info("Info {}", i);
+
+		BootBuffer boot = LoggerDispatcher.dispatcher.boot;
+		long deadline = System.currentTimeMillis() + Admins.DEADLINE;
+		while (boot.spilled == 0 && System.currentTimeMillis() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+		assertTrue("spilled", boot.spilled > 0);
+
+		List<String> messages = sink(admin);
+		Admins.await(messages, 50);
+
+		assertEquals(expected(0, 50), messages);
+		assertTrue(boot.isEmpty());
+		assertFalse(boot.file.exists());
+	}
+
+	public void testBeforeAdmin() throws Exception {
+		LoggerDispatcher.dispatcher.configure(2, Overflow.DROP_NEWEST, 0, 1);
+
+		AbstractLogger logger = new AbstractLogger(null, "test");
+		for (int i = 0; i < 5; i++)
+			logger.error("Info {}", i);
+
+		assertEquals(2, LoggerDispatcher.dispatcher.queue.size());
+		assertEquals(0, LoggerDispatcher.dispatcher.queue.getDropped());
+
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		LoggerAdminImpl admin = admins.create(map);
+
+		for (int i = 5; i < 10; i++)
+			logger.error("Info {}", i);
+
+		List<String> messages = sink(admin);
+		Admins.await(messages, 10);
+
+		assertEquals(expected(0, 10), messages);
+	}
+
+	public void testSpillFormat() throws Exception {
+		BootBuffer boot = new BootBuffer();
+		java.io.File file = java.io.File.createTempFile("boot", ".log");
+		boot.close(new RingBuffer(4), 0, file, 1024 * 1024);
+
+		Entry entry = new Entry();
+		entry.time = 1000;
+		entry.level = 2;
+		entry.name = "test";
+		entry.message = "test :: Warning";
+		entry.exception = new Exception("failed");
+		entry.context = new HashMap<>();
+		entry.context.put("user", "bob");
+
+		List<Entry> batch = new ArrayList<>();
+		batch.add(entry);
+		boot.add(batch);
+		assertEquals(1, boot.spilled);
+
+		batch.clear();
+		assertEquals(1, boot.drainTo(batch, 10));
+		Entry read = batch.get(0);
+		assertEquals(1000, read.time);
+		assertEquals(2, read.level);
+		assertEquals("test", read.name);
+		assertTrue(read.message.startsWith("test :: Warning\njava.lang.Exception: failed\n"));
+		assertEquals("bob", read.context.get("user"));
+		assertTrue(read.traces);
+		assertFalse(file.exists());
+	}
+
+	static List<String> sink(LoggerAdminImpl admin) {
+		final List<String> messages = new CopyOnWriteArrayList<>();
+		admin.addLogBatchSink(new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				for (Record r : batch)
+					messages.add(r.message);
+			}
+		});
+		return messages;
+	}
+
+	static List<String> expected(int from, int to) {
+		List<String> expected = new ArrayList<>();
+		for (int i = from; i < to; i++)
+			expected.add("test :: Info " + i);
+		return expected;
+	}
+}
@@ -0,0 +1,30 @@
+package osgi.logger.provider;
+
+import junit.framework.TestCase;
+
+public class CallSiteTest extends TestCase {
+
+	public void testLocation() {
+		StackTraceElement frame = new StackTraceElement("com.acme.Foo", "bar", "Foo.java", 42);
+		assertEquals("[Foo.bar:42] ", CallSite.get(frame).location);
+
+		frame = new StackTraceElement("Foo", "bar", null, -1);
+		assertEquals("[Foo.bar] ", CallSite.get(frame).location);
+	}
+
+	public void testCached() {
+		CallSite a = CallSite.get(new StackTraceElement("com.acme.Foo", "bar", "Foo.java", 42));
+		CallSite b = CallSite.get(new StackTraceElement("com.acme.Foo", "bar", "Foo.java", 42));
+		CallSite c = CallSite.get(new StackTraceElement("com.acme.Foo", "bar", "Foo.java", 43));
+		assertSame(a, b);
+		assertNotSame(a, c);
+		assertEquals("[Foo.bar:43] ", c.location);
+	}
+
+	public void testSkip() {
+		assertTrue(CallSite.skip("osgi.logger.provider.AbstractLogger"));
+		assertTrue(CallSite.skip("org.slf4j.helpers.MarkerIgnoringBase"));
+		assertTrue(CallSite.skip("java.util.logging.Logger"));
+		assertFalse(CallSite.skip("com.acme.Foo"));
+	}
+}
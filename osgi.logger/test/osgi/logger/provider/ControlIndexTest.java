@@ -0,0 +1,126 @@
+package osgi.logger.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import osgi.enroute.logger.api.Level;
+import osgi.enroute.logger.api.LoggerAdmin.Control;
+
+public class ControlIndexTest extends TestCase {
+
+	public void testExactAndWildcard() {
+		ControlIndex index = index("com.acme.*", "com.acme.Foo", "*");
+
+		assertEquals("com.acme.Foo", index.get("com.acme.Foo").pattern);
+		assertEquals("com.acme.*", index.get("com.acme.Bar").pattern);
+		assertEquals("com.acme.*", index.get("com.acme.foo.Bar").pattern);
+		assertEquals("*", index.get("com.acme").pattern);
+		assertEquals("*", index.get("org.Foo").pattern);
+	}
+
+	public void testMostSpecificWins() {
+		ControlIndex index = index("*", "com.*", "com.acme.*", "com.acme.impl.*");
+
+		assertEquals("com.acme.impl.*", index.get("com.acme.impl.Foo").pattern);
+		assertEquals("com.acme.*", index.get("com.acme.api.Foo").pattern);
+		assertEquals("com.*", index.get("com.other.Foo").pattern);
+		assertEquals("*", index.get("Foo").pattern);
+	}
+
+	public void testNoMatch() {
+		ControlIndex index = index("com.acme.*");
+		assertNull(index.get("com.acme"));
+		assertNull(index.get("org.acme.Foo"));
+		assertNull(index(new String[0]).get("com.acme.Foo"));
+	}
+
+	public void testExotic() {
+		ControlIndex index = index("com.acme.*", "com.acme.*.impl.*", "*Test", "com.ac*");
+
+		assertEquals("com.acme.*.impl.*", index.get("com.acme.foo.impl.Foo").pattern);
+		assertEquals("com.acme.*", index.get("com.acme.foo.Foo").pattern);
+		assertEquals("*Test", index.get("org.FooTest").pattern);
+		assertEquals("com.ac*", index.get("com.acorn.Foo").pattern);
+	}
+
+	public void testTiesGoToSettingsOrder() {
+		ControlIndex index = index("com.acme.?oo", "com.acme.F?o");
+		assertEquals("com.acme.?oo", index.get("com.acme.Foo").pattern);
+
+		index = index("com.acme.F?o", "com.acme.?oo");
+		assertEquals("com.acme.F?o", index.get("com.acme.Foo").pattern);
+	}
+
+	public void testFirstOfDuplicates() {
+		List<Control> controls = new ArrayList<>();
+		controls.add(control("com.acme.*", Level.DEBUG));
+		controls.add(control("com.acme.*", Level.ERROR));
+		ControlIndex index = new ControlIndex(controls);
+		assertEquals(Level.DEBUG, index.get("com.acme.Foo").level);
+	}
+
+	public void testMarkerRules() {
+		ControlIndex index = index("com.acme.*");
+		assertEquals(0, index.markers.length);
+
+		List<Control> controls = new ArrayList<>();
+		controls.add(control("com.*", Level.WARN));
+		controls.add(control("com.*@AUDIT", Level.INFO));
+		controls.add(control("com.acme.*@AUDIT", Level.TRACE));
+		index = new ControlIndex(controls);
+
+		assertEquals("com.*", index.get("com.acme.Foo").pattern);
+
+		long bit = 1L << index.bits[0];
+		long[] masks = index.markers("com.acme.Foo");
+		assertEquals(bit, masks[Level.TRACE.ordinal()]);
+		assertEquals(bit, masks[Level.ERROR.ordinal()]);
+
+		masks = index.markers("com.other.Foo");
+		assertEquals(0, masks[Level.DEBUG.ordinal()]);
+		assertEquals(bit, masks[Level.INFO.ordinal()]);
+
+		masks = index.markers("org.Foo");
+		assertEquals(0, masks[Level.ERROR.ordinal()]);
+	}
+
+	/*
+	 * The bits of the markers that are no longer used are reused
+	 */
+	public void testMarkerBitsReclaimed() {
+		ControlIndex index = index(markers("A", MarkerFactoryImpl.MAX_BITS + 1));
+		assertEquals(-1, index.bits[MarkerFactoryImpl.MAX_BITS]);
+
+		index = index(markers("B", MarkerFactoryImpl.MAX_BITS - 1));
+		for (int bit : index.bits)
+			assertTrue(bit >= 0);
+
+		int kept = index.bits[0];
+		index = index("com.*@B0", "com.*@C");
+		assertEquals(kept, index.bits[0]);
+		assertTrue(index.bits[1] >= 0);
+		assertEquals(-1, MarkerFactoryImpl.markers.intern("A0").bit);
+	}
+
+	static String[] markers(String prefix, int n) {
+		String[] globs = new String[n];
+		for (int i = 0; i < n; i++)
+			globs[i] = "com.*@" + prefix + i;
+		return globs;
+	}
+
+	static ControlIndex index(String... globs) {
+		List<Control> controls = new ArrayList<>();
+		for (String glob : globs)
+			controls.add(control(glob, Level.INFO));
+		return new ControlIndex(controls);
+	}
+
+	static Control control(String glob, Level level) {
+		Control c = new Control();
+		c.pattern = glob;
+		c.level = level;
+		return c;
+	}
+}
@@ -0,0 +1,182 @@
+package osgi.logger.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.osgi.service.log.LogService;
+
+import osgi.logger.api.LogBatchSink.Record;
+
+public class FileSinkTest extends TestCase {
+	File	dir;
+	File	log;
+
+	@Override
+	protected void setUp() throws Exception {
+		LoggerDispatcher.dispatcher = new LoggerDispatcher();
+		dir = Files.createTempDirectory("filesink").toFile();
+		log = new File(dir, "osgi.log");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	/*
+	 * The file is rolled over before the record that finds it over the size
+	 */
+	public void testSizeRoll() throws Exception {
+		FileSink sink = sink(100, false, 10);
+
+		sink.log(Arrays.asList(record(1000, "first message with some text to fill up the line")));
+		sink.log(Arrays.asList(record(1000, "second message with some text to fill up the line")));
+		sink.log(Arrays.asList(record(1000, "third message with some text to fill up the line")));
+		sink.deactivate();
+
+		String[] rolled = rolled();
+		assertEquals(1, rolled.length);
+		assertTrue(read(new File(dir, rolled[0])).contains("second message"));
+
+		String current = read(log);
+		assertFalse(current.contains("second message"));
+		assertTrue(current.contains("third message"));
+	}
+
+	/*
+	 * Two roll overs in the same second must not overwrite the first, also
+	 * when it was already compressed
+	 */
+	public void testSameSecondRoll() throws Exception {
+		FileSink sink = sink(10, true, 10);
+
+		sink.log(Arrays.asList(record(1000, "first message"), record(1000, "second message")));
+		String stamp = "osgi.log." + sink.rollFormat.format(new java.util.Date(1000));
+		File first = new File(dir, stamp + ".gz");
+		for (int i = 0; i < 100 && !first.isFile(); i++)
+			TimeUnit.MILLISECONDS.sleep(20);
+		assertTrue(first.isFile());
+
+		sink.log(Arrays.asList(record(1000, "third message")));
+		sink.deactivate();
+		sink.background.awaitTermination(5, TimeUnit.SECONDS);
+
+		assertEquals(Arrays.asList(stamp + "-1.gz", stamp + ".gz"), Arrays.asList(rolled()));
+	}
+
+	/*
+	 * When the file cannot be moved, here it was removed behind our back, the
+	 * sink keeps writing to a file with the same name and rolls that over
+	 * later
+	 */
+	public void testRollFails() throws Exception {
+		FileSink sink = sink(10, false, 10);
+
+		sink.log(Arrays.asList(record(1000, "first message")));
+		assertTrue(log.delete());
+
+		sink.log(Arrays.asList(record(1000, "second message")));
+		sink.log(Arrays.asList(record(1000, "third message")));
+		sink.deactivate();
+
+		String[] rolled = rolled();
+		assertEquals(1, rolled.length);
+		assertEquals("osgi.log." + sink.rollFormat.format(new java.util.Date(1000)), rolled[0]);
+		assertFalse(read(new File(dir, rolled[0])).contains("first message"));
+		assertTrue(read(new File(dir, rolled[0])).contains("second message"));
+		assertTrue(read(log).contains("third message"));
+	}
+
+	/*
+	 * The oldest files are pruned, the names are ordered on stamp and counter
+	 */
+	public void testPrune() throws Exception {
+		FileSink sink = sink(0, false, 3);
+		String[] names = {
+				"osgi.log.20251231-235959.gz", "osgi.log.20260101-000000.gz", "osgi.log.20260101-000000-1.gz",
+				"osgi.log.20260101-000000-2", "osgi.log.20260101-000000-10", "osgi.log.lck"
+		};
+		for (String name : names)
+			assertTrue(new File(dir, name).createNewFile());
+
+		sink.prune();
+		sink.deactivate();
+
+		assertEquals(Arrays.asList("osgi.log.20260101-000000-1.gz", "osgi.log.20260101-000000-10",
+				"osgi.log.20260101-000000-2"), Arrays.asList(rolled()));
+		assertTrue(new File(dir, "osgi.log.lck").isFile());
+	}
+
+	/*
+	 * The trace is only rendered when the message does not already contain it
+	 */
+	public void testTraces() throws Exception {
+		FileSink sink = sink(0, false, 10);
+
+		Record plain = record(1000, "plain message");
+		plain.exception = new IllegalArgumentException("plain");
+
+		Entry traced = new Entry();
+		traced.time = 1000;
+		traced.level = LogService.LOG_ERROR;
+		traced.message = "traced message";
+		traced.exception = new IllegalStateException("traced");
+		traced.traces = true;
+
+		sink.log(Arrays.asList(plain, traced));
+		sink.deactivate();
+
+		String content = read(log);
+		assertTrue(content.contains("plain message"));
+		assertTrue(content.contains("IllegalArgumentException"));
+		assertTrue(content.contains("traced message"));
+		assertFalse(content.contains("IllegalStateException"));
+	}
+
+	private FileSink sink(long maxSize, boolean compress, int maxFiles) throws IOException {
+		Map<String,Object> map = new HashMap<>();
+		map.put("file", log.getAbsolutePath());
+		map.put("maxSize", maxSize);
+		map.put("roll", "NEVER");
+		map.put("compress", compress);
+		map.put("maxFiles", maxFiles);
+		FileSink sink = new FileSink();
+		sink.activate(null, map);
+		return sink;
+	}
+
+	private Record record(long time, String message) {
+		Record record = new Record();
+		record.time = time;
+		record.level = LogService.LOG_INFO;
+		record.message = message;
+		return record;
+	}
+
+	private String[] rolled() {
+		String[] names = dir.list();
+		int n = 0;
+		for (String name : names)
+			if (name.startsWith("osgi.log.") && !name.equals("osgi.log.lck"))
+				names[n++] = name;
+		names = Arrays.copyOf(names, n);
+		Arrays.sort(names);
+		return names;
+	}
+
+	private String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+}
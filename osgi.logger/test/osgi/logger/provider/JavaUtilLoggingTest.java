@@ -1,41 +1,109 @@
 package osgi.logger.provider;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import junit.framework.TestCase;
 
 import org.osgi.service.log.LogService;
 
+import osgi.logger.api.LogBatchSink;
+import osgi.logger.api.LogBatchSink.Record;
+
 public class JavaUtilLoggingTest extends TestCase {
+	Admins	admins;
+
+	@Override
+	protected void setUp() throws Exception {
+		admins = new Admins();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		admins.close();
+	}
 
 	public void testJUL() throws Exception {
-		LoggerDispatcher.dispatcher = new LoggerDispatcher();
-		
-		LoggerAdminImpl admin = new LoggerAdminImpl();
-		admin.setDaemon(false);
 		Map<String,Object> map = new HashMap<>();
 		map.put("level", osgi.enroute.logger.api.Level.TRACE);
-		admin.activate(map);
-
-
-		Logger m = Logger.getLogger("");
-		m.setLevel(Level.FINEST);
-		JavaUtilLoggingHandler jul = new JavaUtilLoggingHandler();
-		Logger.getLogger("").addHandler(jul);
-		
-		Logger logger = Logger.getLogger("a.b.c");
-		logger.severe("Bad api");
-		
-		assertEquals( 1, LoggerDispatcher.dispatcher.queue.size());
-		Entry take = LoggerDispatcher.dispatcher.queue.take();
-		assertEquals( LogService.LOG_ERROR, take.level);
-
-		
-		logger.fine("Bad trace");
-		
-		// TODO test if log was called
+		LoggerAdminImpl admin = admins.create(map);
+
+		Logger root = Logger.getLogger("");
+		Level level = root.getLevel();
+		JavaUtilLoggingHandler jul = new JavaUtilLoggingHandler(admin);
+		try {
+			root.setLevel(Level.FINEST);
+			root.addHandler(jul);
+
+			Logger logger = Logger.getLogger("a.b.c");
+			logger.severe("Bad api");
+
+			//
+			// The admin thread no longer waits for a sink, it keeps the
+			// entry in the boot buffer until the sink appears
+			//
+			final List<Record> records = new CopyOnWriteArrayList<>();
+			admin.addLogBatchSink(new LogBatchSink() {
+
+				@Override
+				public void log(List< ? extends Record> batch) throws Exception {
+					records.addAll(batch);
+				}
+			});
+			Admins.await(records, 1);
+
+			assertEquals(1, records.size());
+			assertEquals(LogService.LOG_ERROR, records.get(0).level);
+
+			logger.fine("Bad trace");
+
+			// TODO test if log was called
+		}
+		finally {
+			root.removeHandler(jul);
+			jul.close();
+			root.setLevel(level);
+			admin.deactivate();
+		}
+	}
+
+	/*
+	 * The bridge map is bounded, the least recently used tenth is evicted
+	 */
+	public void testEviction() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", osgi.enroute.logger.api.Level.ERROR);
+		LoggerAdminImpl admin = admins.create(map);
+
+		JavaUtilLoggingHandler jul = new JavaUtilLoggingHandler(admin);
+		for (int i = 0; i < JavaUtilLoggingHandler.MAX; i++)
+			jul.publish(record("n" + i));
+
+		assertEquals(JavaUtilLoggingHandler.MAX, jul.loggers.size());
+
+		jul.publish(record("n0"));
+		jul.publish(record("extra"));
+
+		int evicted = JavaUtilLoggingHandler.MAX / 10 + 1;
+		assertEquals(JavaUtilLoggingHandler.MAX + 1 - evicted, jul.loggers.size());
+		assertTrue(jul.loggers.containsKey("n0"));
+		assertTrue(jul.loggers.containsKey("extra"));
+		assertFalse(jul.loggers.containsKey("n1"));
+		assertFalse(jul.loggers.containsKey("n" + evicted));
+		assertTrue(jul.loggers.containsKey("n" + (evicted + 1)));
+
+		jul.close();
+		assertEquals(0, jul.loggers.size());
+	}
+
+	private LogRecord record(String name) {
+		LogRecord record = new LogRecord(Level.FINE, "message");
+		record.setLoggerName(name);
+		return record;
 	}
 }
@@ -0,0 +1,123 @@
+package osgi.logger.provider;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+public class LogRouterTest extends TestCase {
+	BundleContext					context;
+	BundleContext					bundleContext;
+	Bundle							bundle;
+	ServiceReference<LogService>	reference;
+	LogService						log;
+	LogRouter						router;
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void setUp() throws Exception {
+		LoggerDispatcher.dispatcher = new LoggerDispatcher();
+
+		context = mock(BundleContext.class);
+		bundleContext = mock(BundleContext.class);
+		bundle = mock(Bundle.class);
+		reference = mock(ServiceReference.class);
+		log = mock(LogService.class);
+
+		when(bundle.getBundleContext()).thenReturn(bundleContext);
+		when(bundleContext.getServiceReferences(LogService.class, null)).thenReturn(Arrays.asList(reference));
+		when(bundleContext.getService(reference)).thenReturn(log);
+
+		router = new LogRouter(context);
+	}
+
+	/*
+	 * The services are looked up once per bundle
+	 */
+	public void testCaching() throws Exception {
+		verify(context).addServiceListener(router, LogRouter.FILTER);
+		verify(context).addBundleListener(router);
+
+		List<LogService> logs = router.get(bundle);
+		assertEquals(Arrays.asList(log), logs);
+		assertSame(logs, router.get(bundle));
+
+		verify(bundleContext, times(1)).getServiceReferences(LogService.class, null);
+		verify(bundleContext, times(1)).getService(reference);
+	}
+
+	/*
+	 * Without a bundle context the caller uses the services of the admin
+	 */
+	public void testNoContext() throws Exception {
+		assertNull(router.get(mock(Bundle.class)));
+	}
+
+	/*
+	 * A service event releases the services, they are looked up again
+	 */
+	public void testServiceEventInvalidates() throws Exception {
+		router.get(bundle);
+		router.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, reference));
+		verify(bundleContext, never()).ungetService(reference);
+
+		router.get(bundle);
+		verify(bundleContext, times(1)).ungetService(reference);
+		verify(bundleContext, times(2)).getService(reference);
+	}
+
+	/*
+	 * The framework releases the services of a stopped bundle, the route is
+	 * only forgotten
+	 */
+	public void testStoppedDropsRoute() throws Exception {
+		router.get(bundle);
+		router.bundleChanged(new BundleEvent(BundleEvent.STOPPED, bundle));
+		router.get(bundle);
+
+		verify(bundleContext, times(2)).getService(reference);
+		verify(bundleContext, never()).ungetService(reference);
+	}
+
+	public void testUninstalledDropsRoute() throws Exception {
+		router.get(bundle);
+		router.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+		router.get(bundle);
+
+		verify(bundleContext, times(2)).getService(reference);
+		verify(bundleContext, never()).ungetService(reference);
+	}
+
+	/*
+	 * Other bundle events keep the route
+	 */
+	public void testStartedKeepsRoute() throws Exception {
+		router.get(bundle);
+		router.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+		router.get(bundle);
+
+		verify(bundleContext, times(1)).getService(reference);
+	}
+
+	/*
+	 * Close stops listening and releases the services
+	 */
+	public void testClose() throws Exception {
+		router.get(bundle);
+		router.close();
+
+		verify(context).removeServiceListener(router);
+		verify(context).removeBundleListener(router);
+		verify(bundleContext, times(1)).ungetService(reference);
+		assertTrue(router.routes.isEmpty());
+	}
+}
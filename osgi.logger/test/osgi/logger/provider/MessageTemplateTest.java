@@ -0,0 +1,64 @@
+package osgi.logger.provider;
+
+import junit.framework.TestCase;
+
+public class MessageTemplateTest extends TestCase {
+
+	public void testSlf4j() {
+		assertEquals("a=1 b=2", render("a={} b={}", 1, 2));
+		assertEquals("a=1 b=null", render("a={} b={}", 1));
+		assertEquals("a=1", render("a={}", 1, 2));
+		assertEquals("no args", render("no args"));
+		assertEquals("{} 1", render("\\{} {}", 1));
+		assertEquals("\\1", render("\\\\{}", 1));
+		assertEquals("{ }", render("{ }", 1));
+	}
+
+	public void testPrintf() {
+		assertEquals("a=1 b=x", render("a=%s b=%s", 1, "x"));
+		assertEquals("100%", render("%s%%", 100));
+		assertEquals("mixed 1 2", render("mixed {} %s", 1, 2));
+		assertEquals("  1 x", render("%3d %s", 1, "x"));
+		assertEquals("%q 1", render("%q", 1));
+	}
+
+	public void testArrays() {
+		assertEquals("[1, 2] [a, [b]] []", render("{} {} {}", new int[] {
+				1, 2
+		}, new Object[] {
+				"a", new String[] {
+					"b"
+				}
+		}, new Object[0]));
+	}
+
+	public void testNullFormat() {
+		assertEquals("null", render(null, 1));
+	}
+
+	public void testCache() {
+		String format = "cached {}";
+		assertSame(MessageTemplate.get(format), MessageTemplate.get(format));
+		assertEquals("cached 1", render(new String(format), 1));
+	}
+
+	public void testReentrant() {
+		Object nested = new Object() {
+			public String toString() {
+				return render("inner {}", 1);
+			}
+		};
+		assertEquals("outer inner 1", render("outer {}", nested));
+	}
+
+	static String render(String format, Object... args) {
+		StringBuilder sb = MessageTemplate.acquire();
+		try {
+			MessageTemplate.get(format).render(sb, args);
+			return sb.toString();
+		}
+		finally {
+			MessageTemplate.release(sb);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package osgi.logger.provider;
+
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+
+import osgi.enroute.logger.api.Level;
+
+public class MetricsTest extends TestCase {
+	Admins	admins;
+
+	@Override
+	protected void setUp() throws Exception {
+		admins = new Admins();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		admins.close();
+	}
+
+	public void testCounter() throws Exception {
+		final Metrics.Counter counter = new Metrics.Counter();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int n = 0; n < 1000; n++)
+						counter.increment();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(4000, counter.sum());
+	}
+
+	public void testHistogram() {
+		Metrics.Histogram histogram = new Metrics.Histogram();
+		histogram.record(500);
+		histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(2));
+		histogram.record(TimeUnit.SECONDS.toNanos(10));
+
+		Map<String,Long> snapshot = histogram.snapshot();
+		assertEquals(Long.valueOf(1), snapshot.get("<1us"));
+		assertEquals(Long.valueOf(1), snapshot.get("<4us"));
+		assertEquals(Long.valueOf(1), snapshot.get("<2ms"));
+		assertEquals(Long.valueOf(1), snapshot.get(">=1048ms"));
+		assertEquals(4, snapshot.size());
+	}
+
+	public void testStats() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		LoggerAdminImpl admin = admins.create(map);
+		admin.addLogService(mock(LogService.class));
+
+		Bundle bundle = mock(Bundle.class);
+
+		AbstractLogger logger = new AbstractLogger(bundle, "test");
+		logger.info("Info 1");
+		logger.info("Info 2");
+		logger.error("Error 1");
+		logger.debug("Debug 1");
+
+		LoggerAdminImpl.Stats stats = admin.stats();
+		long deadline = System.currentTimeMillis() + Admins.DEADLINE;
+		while ((stats.sinks.isEmpty() || stats.sinks.get(0).delivered < 3) && System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(10);
+			stats = admin.stats();
+		}
+
+		assertEquals(Long.valueOf(2), stats.enqueued.get("INFO"));
+		assertEquals(Long.valueOf(1), stats.enqueued.get("ERROR"));
+		assertNull(stats.enqueued.get("DEBUG"));
+		assertEquals(Long.valueOf(2), stats.dispatched.get("INFO"));
+		assertEquals(Long.valueOf(2), stats.bundles.get(0L).get("INFO"));
+		assertTrue(stats.highWater >= 1);
+		assertEquals(0, stats.queued);
+		assertEquals(1, stats.sinks.size());
+		assertEquals(3, stats.sinks.get(0).delivered);
+	}
+}
@@ -0,0 +1,162 @@
+package osgi.logger.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class RingBufferTest extends TestCase {
+
+	public void testCapacity() {
+		assertEquals(2, new RingBuffer(0).capacity());
+		assertEquals(8, new RingBuffer(5).capacity());
+		assertEquals(1024, new RingBuffer(1024).capacity());
+	}
+
+	public void testOrder() throws Exception {
+		RingBuffer rb = new RingBuffer(4);
+		assertTrue(rb.isEmpty());
+		for (int i = 0; i < 4; i++)
+			assertTrue(rb.offer(entry(i)));
+
+		assertEquals(4, rb.size());
+		for (int i = 0; i < 4; i++)
+			assertEquals("" + i, rb.take().message);
+
+		assertNull(rb.poll());
+		assertNull(rb.poll(10, TimeUnit.MILLISECONDS));
+	}
+
+	public void testDrain() {
+		RingBuffer rb = new RingBuffer(8);
+		for (int i = 0; i < 5; i++)
+			rb.offer(entry(i));
+
+		List<Entry> batch = new ArrayList<>();
+		assertEquals(3, rb.drainTo(batch, 3));
+		assertEquals(2, rb.drainTo(batch, 10));
+		assertEquals(0, rb.drainTo(batch, 10));
+		assertEquals(5, batch.size());
+		assertEquals("4", batch.get(4).message);
+	}
+
+	public void testDropNewest() {
+		RingBuffer rb = new RingBuffer(2);
+		assertTrue(rb.offer(entry(0)));
+		assertTrue(rb.offer(entry(1)));
+		assertFalse(rb.offer(entry(2)));
+		assertEquals(1, rb.getDropped(Overflow.DROP_NEWEST));
+		assertEquals("0", rb.poll().message);
+	}
+
+	public void testDropOldest() {
+		RingBuffer rb = new RingBuffer(2);
+		rb.setOverflow(Overflow.DROP_OLDEST, 0, TimeUnit.MILLISECONDS, 1);
+		for (int i = 0; i < 4; i++)
+			assertTrue(rb.offer(entry(i)));
+
+		assertEquals(2, rb.getDropped(Overflow.DROP_OLDEST));
+		assertEquals("2", rb.poll().message);
+		assertEquals("3", rb.poll().message);
+	}
+
+	public void testSample() {
+		RingBuffer rb = new RingBuffer(2);
+		rb.setOverflow(Overflow.SAMPLE, 0, TimeUnit.MILLISECONDS, 3);
+		rb.offer(entry(0));
+		rb.offer(entry(1));
+
+		assertFalse(rb.offer(entry(2)));
+		assertFalse(rb.offer(entry(3)));
+		assertTrue(rb.offer(entry(4)));
+		assertEquals(3, rb.getDropped(Overflow.SAMPLE));
+		assertEquals("1", rb.poll().message);
+		assertEquals("4", rb.poll().message);
+	}
+
+	/*
+	 * A resize keeps the queued entries and the drop counts, an entry that a
+	 * late producer puts in the old queue is moved as well
+	 */
+	public void testResize() {
+		LoggerDispatcher dispatcher = new LoggerDispatcher();
+		dispatcher.configure(2, Overflow.DROP_NEWEST, 0, 1);
+		RingBuffer old = dispatcher.queue;
+		old.offer(entry(0));
+		old.offer(entry(1));
+		assertFalse(old.offer(entry(2)));
+
+		dispatcher.configure(8, Overflow.DROP_NEWEST, 0, 1);
+		RingBuffer buffer = dispatcher.queue;
+		assertNotSame(old, buffer);
+		assertEquals(1, buffer.getDropped(Overflow.DROP_NEWEST));
+		assertEquals(2, buffer.size());
+
+		old.offer(entry(3));
+		assertTrue(dispatcher.drainRetired());
+		assertEquals(3, buffer.size());
+		assertEquals("0", buffer.poll().message);
+		assertEquals("1", buffer.poll().message);
+		assertEquals("3", buffer.poll().message);
+	}
+
+	public void testBlock() throws Exception {
+		final RingBuffer rb = new RingBuffer(2);
+		rb.setOverflow(Overflow.BLOCK, 50, TimeUnit.MILLISECONDS, 1);
+		rb.offer(entry(0));
+		rb.offer(entry(1));
+
+		long start = System.nanoTime();
+		assertFalse(rb.offer(entry(2)));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(1, rb.getDropped(Overflow.BLOCK));
+
+		rb.setOverflow(Overflow.BLOCK, 10000, TimeUnit.MILLISECONDS, 1);
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+					rb.take();
+				}
+				catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+		consumer.start();
+		assertTrue(rb.offer(entry(3)));
+		consumer.join();
+	}
+
+	public void testConcurrentProducers() throws Exception {
+		final RingBuffer rb = new RingBuffer(1024);
+		final int producers = 8;
+		final int n = 10000;
+		final CountDownLatch done = new CountDownLatch(producers);
+
+		for (int p = 0; p < producers; p++) {
+			new Thread() {
+				public void run() {
+					for (int i = 0; i < n; i++)
+						rb.offer(entry(i));
+					done.countDown();
+				}
+			}.start();
+		}
+
+		int received = 0;
+		while (done.getCount() > 0 || !rb.isEmpty()) {
+			if (rb.poll(10, TimeUnit.MILLISECONDS) != null)
+				received++;
+		}
+		assertEquals(producers * n, received + rb.getDropped());
+	}
+
+	static Entry entry(int n) {
+		Entry e = new Entry();
+		e.message = "" + n;
+		return e;
+	}
+}
@@ -0,0 +1,230 @@
+package osgi.logger.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import osgi.enroute.logger.api.Level;
+import osgi.logger.api.LogBatchSink;
+
+public class SinkWorkerTest extends TestCase {
+	Admins	admins;
+
+	@Override
+	protected void setUp() throws Exception {
+		admins = new Admins();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		admins.close();
+	}
+
+	public void testSlowSinkDoesNotStallOthers() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		map.put("sinkTimeout", 100);
+		LoggerAdminImpl admin = admins.create(map);
+
+		final CountDownLatch blocked = new CountDownLatch(1);
+		admin.addLogBatchSink(new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				blocked.await();
+			}
+		});
+
+		final List<String> messages = new CopyOnWriteArrayList<>();
+		admin.addLogBatchSink(new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				for (Record r : batch)
+					messages.add(r.message);
+			}
+		});
+
+		AbstractLogger logger = new AbstractLogger(null, "test");
+		logger.info("Info 1");
+		Admins.await(messages, 1);
+
+		long deadline = System.currentTimeMillis() + Admins.DEADLINE;
+		while (open(admin) == 0 && System.currentTimeMillis() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+
+		logger.info("Info 2");
+		Admins.await(messages, 2);
+
+		assertEquals(Arrays.asList("test :: Info 1", "test :: Info 2"), messages);
+		assertEquals(1, open(admin));
+
+		blocked.countDown();
+	}
+
+	public void testCircuitBreaker() throws Exception {
+		final List<Integer> calls = new CopyOnWriteArrayList<>();
+		SinkWorker worker = new SinkWorker("failing", new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				calls.add(batch.size());
+				throw new Exception("fail");
+			}
+		}, 10, 0, 2, 100);
+		worker.start();
+
+		List<Entry> batch = new ArrayList<>();
+		batch.add(new Entry());
+
+		worker.offer(batch, 0);
+		worker.offer(batch, 0);
+		TimeUnit.MILLISECONDS.sleep(50);
+		assertEquals(SinkWorker.State.OPEN, worker.state);
+
+		worker.offer(batch, 0);
+		TimeUnit.MILLISECONDS.sleep(50);
+		assertEquals(2, calls.size());
+		assertEquals(1, worker.rejected.get());
+
+		TimeUnit.MILLISECONDS.sleep(100);
+		worker.offer(batch, 0);
+		TimeUnit.MILLISECONDS.sleep(50);
+		assertEquals("half open tries once", 3, calls.size());
+		assertEquals(SinkWorker.State.OPEN, worker.state);
+		assertEquals("java.lang.Exception: fail", worker.info().lastError);
+		worker.close();
+	}
+
+	/*
+	 * An error thrown by a sink is a failure, it must not end the worker
+	 */
+	public void testSinkError() throws Exception {
+		final List<Integer> calls = new CopyOnWriteArrayList<>();
+		SinkWorker worker = new SinkWorker("error", new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				calls.add(batch.size());
+				throw new NoClassDefFoundError("missing");
+			}
+		}, 10, 0, 2, 100);
+		worker.start();
+
+		List<Entry> batch = new ArrayList<>();
+		batch.add(new Entry());
+
+		worker.offer(batch, 0);
+		worker.offer(batch, 0);
+		long deadline = System.currentTimeMillis() + Admins.DEADLINE;
+		while (worker.state != SinkWorker.State.OPEN && System.currentTimeMillis() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+
+		assertEquals(SinkWorker.State.OPEN, worker.state);
+		assertTrue(worker.isAlive());
+		assertEquals(2, calls.size());
+		assertEquals(2, worker.failed.get());
+		assertEquals("java.lang.NoClassDefFoundError: missing", worker.info().lastError);
+		worker.close();
+	}
+
+	public void testHalfOpenSingleProbe() throws Exception {
+		final List<Integer> calls = new CopyOnWriteArrayList<>();
+		final CountDownLatch probe = new CountDownLatch(1);
+		SinkWorker worker = new SinkWorker("probe", new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				calls.add(batch.size());
+				if (calls.size() == 1)
+					throw new Exception("fail");
+				probe.await();
+			}
+		}, 10, 0, 1, 50);
+		worker.start();
+
+		List<Entry> batch = new ArrayList<>();
+		batch.add(new Entry());
+
+		worker.offer(batch, 0);
+		TimeUnit.MILLISECONDS.sleep(30);
+		assertEquals(SinkWorker.State.OPEN, worker.state);
+
+		TimeUnit.MILLISECONDS.sleep(50);
+		worker.offer(batch, 0);
+		TimeUnit.MILLISECONDS.sleep(30);
+		assertEquals(SinkWorker.State.HALF_OPEN, worker.state);
+
+		worker.offer(batch, 0);
+		worker.offer(batch, 0);
+		assertEquals("only the probe is admitted", 2, worker.rejected.get());
+		assertEquals(0, worker.queue.size());
+
+		probe.countDown();
+		TimeUnit.MILLISECONDS.sleep(30);
+		assertEquals(SinkWorker.State.CLOSED, worker.state);
+
+		worker.offer(batch, 0);
+		TimeUnit.MILLISECONDS.sleep(30);
+		assertEquals(3, calls.size());
+		assertEquals(2, worker.delivered.get());
+		worker.close();
+	}
+
+	public void testStillHungReopens() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		SinkWorker worker = new SinkWorker("hung", new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				while (true)
+					try {
+						release.await();
+						return;
+					}
+					catch (InterruptedException e) {
+						// ignores the interrupt
+					}
+			}
+		}, 1, 50, 5, 100);
+		worker.start();
+
+		List<Entry> batch = new ArrayList<>();
+		batch.add(new Entry());
+
+		worker.offer(batch, 0);
+		TimeUnit.MILLISECONDS.sleep(80);
+		worker.offer(batch, 0);
+		assertEquals(SinkWorker.State.OPEN, worker.state);
+		assertEquals(1, worker.timeouts.get());
+		assertEquals(1, worker.rejected.get());
+
+		TimeUnit.MILLISECONDS.sleep(120);
+		worker.offer(batch, 0);
+		worker.offer(batch, 0);
+		assertEquals("still hung, opened again", SinkWorker.State.OPEN, worker.state);
+		assertEquals(3, worker.rejected.get());
+		assertEquals(0, worker.dropped.get());
+		assertEquals(1, worker.timeouts.get());
+
+		release.countDown();
+		worker.close();
+	}
+
+	/*
+	 * The sinks that timed out once and are open
+	 */
+	private int open(LoggerAdminImpl admin) {
+		int open = 0;
+		for (LoggerAdminImpl.SinkInfo info : admin.sinks())
+			if (info.timeouts == 1 && info.state.equals("OPEN"))
+				open++;
+		return open;
+	}
+}
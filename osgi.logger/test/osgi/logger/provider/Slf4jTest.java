@@ -2,46 +2,58 @@ package osgi.logger.provider;
 
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import junit.framework.TestCase;
 
 import org.osgi.framework.Bundle;
 import org.osgi.service.log.LogService;
 import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+import org.slf4j.MDC;
 
 import osgi.enroute.logger.api.Level;
 import osgi.enroute.logger.api.LoggerAdmin.Control;
 import osgi.enroute.logger.api.LoggerAdmin.Settings;
+import osgi.logger.api.LogBatchSink;
 
 public class Slf4jTest extends TestCase {
+	Admins	admins;
+
+	@Override
+	protected void setUp() throws Exception {
+		admins = new Admins();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		admins.close();
+	}
 
 	public void testFunctional() throws Exception {
-		LoggerDispatcher.dispatcher = new LoggerDispatcher();
-		
 		Bundle bundle = mock(Bundle.class);
 		AbstractLogger l= new AbstractLogger(bundle, "test");
 		l.error("Error 1");
 		assertEquals( 1, LoggerDispatcher.dispatcher.queue.size());
-		assertTrue( l.error);
-		assertTrue( l.warn);
-		assertFalse( l.debug);
-		assertFalse( l.trace);
-		assertFalse( l.info);
+		assertTrue( l.isErrorEnabled());
+		assertTrue( l.isWarnEnabled());
+		assertFalse( l.isDebugEnabled());
+		assertFalse( l.isTraceEnabled());
+		assertFalse( l.isInfoEnabled());
 
 		LoggerDispatcher.dispatcher.queue.clear();		
 	}
 	
 	
 	public void testAdmin() throws Exception {
-		LoggerDispatcher.dispatcher = new LoggerDispatcher();
-		LoggerAdminImpl admin = new LoggerAdminImpl();
-		admin.setDaemon(false);
 		Map<String,Object> map = new HashMap<>();
 		map.put("level", Level.DEBUG);
-		admin.activate(map);
+		LoggerAdminImpl admin = admins.create(map);
 		
 		assertEquals( admin, LoggerDispatcher.dispatcher.admin);
 		
@@ -53,10 +65,8 @@ public class Slf4jTest extends TestCase {
 		logger.trace("Trace 1");
 		logger.debug("Debug 1");
 		
-		TimeUnit.MILLISECONDS.sleep(500);
-		
-		verify(log).log(LogService.LOG_ERROR, "test :: Error=1");
-		verify(log).log(LogService.LOG_DEBUG, "test :: Debug 1");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_ERROR, "test :: Error=1");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_DEBUG, "test :: Debug 1");
 		
 		reset(log);
 		
@@ -72,39 +82,300 @@ public class Slf4jTest extends TestCase {
 		logger.trace("Trace 2");
 		logger.debug("Debug 2");
 		
-		TimeUnit.MILLISECONDS.sleep(200);
-		
-		verify(log).log(LogService.LOG_ERROR, "test :: Error=2");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_ERROR, "test :: Error=2");
+		verifyNoMoreInteractions(log);
+	}
+
+	public void testBatchSink() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		map.put("linger", 100);
+		LoggerAdminImpl admin = admins.create(map);
+
+		final List<String> messages = new CopyOnWriteArrayList<>();
+		final List<Integer> sizes = new CopyOnWriteArrayList<>();
+		admin.addLogBatchSink(new LogBatchSink() {
+
+			@Override
+			public void log(List< ? extends Record> batch) throws Exception {
+				sizes.add(batch.size());
+				for (Record r : batch)
+					messages.add(r.message);
+			}
+		});
+
+		AbstractLogger logger = new AbstractLogger(null, "test");
+		logger.info("Info 1");
+		logger.info("Info 2");
+		logger.info("Info 3");
+
+		Admins.await(messages, 3);
+
+		assertEquals(Arrays.asList("test :: Info 1", "test :: Info 2", "test :: Info 3"), messages);
+		assertEquals(Arrays.asList(3), sizes);
+	}
+
+	public void testJavaUtilLogging() throws Exception {
+		java.util.logging.Logger jul = java.util.logging.Logger.getLogger("jul.test");
+		jul.setLevel(null);
+
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.WARN);
+		map.put("javaUtilLogging", true);
+		LoggerAdminImpl admin = admins.create(map);
+
+		LogService log = mock(LogService.class);
+		admin.addLogService(log);
+
+		assertEquals(java.util.logging.Level.WARNING, jul.getLevel());
+
+		Settings s = new Settings();
+		Control c = new Control();
+		c.pattern = "jul.*";
+		c.level = Level.INFO;
+		s.controls.add(c);
+		admin.setSettings(s);
+
+		assertEquals(java.util.logging.Level.INFO, jul.getLevel());
+		jul.info("Info 1");
+		jul.fine("Fine 1");
+
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "jul.test :: Info 1");
+
+		admin.deactivate();
+		assertNull(jul.getLevel());
+	}
+
+	/*
+	 * A JUL logger created after the settings inherits the level of the root
+	 * logger, which must not be more restrictive than its control
+	 */
+	public void testJavaUtilLoggingLateLogger() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.WARN);
+		map.put("javaUtilLogging", true);
+		LoggerAdminImpl admin = admins.create(map);
+
+		LogService log = mock(LogService.class);
+		admin.addLogService(log);
+
+		Settings s = new Settings();
+		Control c = new Control();
+		c.pattern = "late.*";
+		c.level = Level.INFO;
+		s.controls.add(c);
+		admin.setSettings(s);
+
+		assertEquals(java.util.logging.Level.INFO, java.util.logging.Logger.getLogger("").getLevel());
+
+		java.util.logging.Logger late = java.util.logging.Logger.getLogger("late.test");
+		java.util.logging.Logger other = java.util.logging.Logger.getLogger("other.test");
+		assertNull(late.getLevel());
+
+		late.info("Info 1");
+		other.info("Info 2");
+		other.warning("Warning 1");
+
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "late.test :: Info 1");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_WARNING, "other.test :: Warning 1");
+		verifyNoMoreInteractions(log);
+	}
+
+	/*
+	 * A JUL logger created later under an existing intermediate logger
+	 * inherits the level of that logger, which must not be more restrictive
+	 * than the controls of its descendants
+	 */
+	public void testJavaUtilLoggingIntermediateLogger() throws Exception {
+		java.util.logging.Logger acme = java.util.logging.Logger.getLogger("jul.acme");
+		acme.setLevel(null);
+
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.WARN);
+		map.put("javaUtilLogging", true);
+		LoggerAdminImpl admin = admins.create(map);
+
+		LogService log = mock(LogService.class);
+		admin.addLogService(log);
+
+		Settings s = new Settings();
+		Control c = new Control();
+		c.pattern = "jul.acme.http.*";
+		c.level = Level.TRACE;
+		s.controls.add(c);
+		admin.setSettings(s);
+
+		assertEquals(java.util.logging.Level.ALL, acme.getLevel());
+
+		java.util.logging.Logger client = java.util.logging.Logger.getLogger("jul.acme.http.Client");
+		java.util.logging.Logger other = java.util.logging.Logger.getLogger("jul.acme.other");
+		assertNull(client.getLevel());
+
+		client.fine("Fine 1");
+		acme.info("Info 1");
+		other.info("Info 2");
+
+		verify(log, timeout(Admins.DEADLINE)).log(LoggerAdminImpl.LOG_TRACE, "jul.acme.http.Client :: Fine 1");
 		verifyNoMoreInteractions(log);
+
+		admin.deactivate();
+		assertNull(acme.getLevel());
+	}
+
+	public void testMDC() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		LoggerAdminImpl admin = admins.create(map);
+
+		LogService log = mock(LogService.class);
+		admin.addLogService(log);
+
+		AbstractLogger logger = new AbstractLogger(null, "test");
+		MDC.put("requestId", "42");
+		Map<String,String> before = MDCAdapterImpl.mdc.snapshot();
+		logger.info("Info 1");
+		MDC.put("user", "bob");
+		logger.info("Info 2");
+		MDC.clear();
+		logger.info("Info 3");
+
+		assertEquals(1, before.size());
+		assertNull(MDC.get("requestId"));
+
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "test :: Info 1 {requestId=42}");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "test :: Info 2 {requestId=42, user=bob}");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "test :: Info 3");
+	}
+
+	public void testMarkers() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.WARN);
+		LoggerAdminImpl admin = admins.create(map);
+
+		LogService log = mock(LogService.class);
+		admin.addLogService(log);
+
+		Settings s = new Settings();
+		Control c = new Control();
+		c.pattern = "com.acme.*@SQL";
+		c.level = Level.DEBUG;
+		s.controls.add(c);
+		admin.setSettings(s);
+
+		Marker sql = MarkerFactory.getMarker("SQL");
+		Marker http = MarkerFactory.getMarker("HTTP");
+		assertSame(sql, MarkerFactory.getMarker("SQL"));
+
+		AbstractLogger logger = new AbstractLogger(null, "com.acme.Foo");
+		assertFalse(logger.isDebugEnabled());
+		assertTrue(logger.isDebugEnabled(sql));
+		assertFalse(logger.isDebugEnabled(http));
+		assertFalse(logger.isTraceEnabled(sql));
+
+		logger.debug("Debug 1");
+		logger.debug(sql, "Debug {}", 2);
+		logger.debug(http, "Debug 3");
+		logger.info(sql, "Info 4");
+
+		Marker query = MarkerFactory.getDetachedMarker("QUERY");
+		query.add(sql);
+		logger.debug(query, "Debug 5");
+
+		AbstractLogger other = new AbstractLogger(null, "org.acme.Foo");
+		assertFalse(other.isDebugEnabled(sql));
+
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_DEBUG, "com.acme.Foo :: Debug 2");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "com.acme.Foo :: Info 4");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_DEBUG, "com.acme.Foo :: Debug 5");
+		verifyNoMoreInteractions(log);
+	}
+
+	public void testEpoch() throws Exception {
+		AbstractLogger logger = new AbstractLogger(null, "test");
+		assertFalse(logger.isInfoEnabled());
+		AbstractLogger.State state = logger.state;
+
+		assertFalse(logger.isInfoEnabled());
+		assertSame(state, logger.state);
+
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		LoggerAdminImpl admin = admins.create(map);
+
+		assertSame("lazy, only on next use", state, logger.state);
+		assertTrue(logger.isInfoEnabled());
+		assertNotSame(state, logger.state);
+		assertEquals(Level.INFO, logger.state.level);
+
+		admin.deactivate();
+		assertFalse(logger.isInfoEnabled());
+
+		logger.close();
+		LoggerDispatcher.dispatcher.refresh();
+		assertFalse(logger.isErrorEnabled());
+	}
+
+	public void testDeferred() throws Exception {
+		LoggerDispatcher.dispatcher.deferred = true;
+
+		AbstractLogger l = new AbstractLogger(null, "test");
+		StringBuilder mutable = new StringBuilder("a");
+		l.error("Error {} {} {}", mutable, 1, new int[] {
+				1, 2
+		});
+		mutable.append("b");
+
+		Entry entry = LoggerDispatcher.dispatcher.queue.take();
+		assertNull(entry.message);
+		assertEquals("Error {} {} {}", entry.format);
+		assertEquals("a", entry.arguments[0]);
+		assertEquals(1, entry.arguments[1]);
+		assertEquals("test :: Error a 1 [1, 2]", AbstractLogger.render(entry));
+	}
+
+	/*
+	 * A deferred entry that cannot be rendered must not stop the admin
+	 */
+	public void testDeferredRenderFails() throws Exception {
+		LoggerDispatcher.dispatcher.deferred = true;
+
+		AbstractLogger l = new AbstractLogger(null, "test");
+		l.error(null, new Exception());
+		Entry entry = LoggerDispatcher.dispatcher.queue.take();
+		assertEquals("test :: null", LoggerAdminImpl.render(entry));
+
+		entry = new Entry();
+		entry.name = "test";
+		entry.format = "Error {}";
+		entry.arguments = new Object[] {
+			new Object() {
+				public String toString() {
+					throw new IllegalStateException("bad");
+				}
+			}
+		};
+		String message = LoggerAdminImpl.render(entry);
+		assertTrue(message.startsWith("test :: Error "));
+		assertTrue(message.endsWith("(java.lang.IllegalStateException: bad)"));
 	}
 
 	public void testSimple() {
-		LoggerDispatcher.dispatcher = new LoggerDispatcher();
 		AbstractLogger logger = (AbstractLogger) LoggerFactory.getLogger("test");
 
-		// By default not initialized, all flags true
-		assertTrue(logger.debug);
-		assertTrue(logger.error);
-		assertTrue(logger.warn);
-		assertTrue(logger.info);
-		assertTrue(logger.trace);
-		assertFalse(logger.init);
-		assertFalse(logger.registered);
+		// By default not initialized
+		assertSame(AbstractLogger.State.INITIAL, logger.state);
 
-		// Should not be registered yet
-		assertEquals(0, LoggerDispatcher.dispatcher.loggers.size());
+		// Registered when created
+		assertEquals(1, LoggerDispatcher.dispatcher.loggers.size());
 
 		logger.trace("Trace");
 		assertEquals("Trace disables, so no msg in queue", 0, LoggerDispatcher.dispatcher.queue.size());
-		assertEquals("By default, trace is disabled but should register anyway", 1,
-				LoggerDispatcher.dispatcher.loggers.size());
-		assertFalse(logger.debug);
-		assertFalse(logger.info);
-		assertFalse(logger.trace);
-		assertTrue(logger.error);
-		assertTrue(logger.warn);
-		assertTrue(logger.init);
-		assertTrue(logger.registered);
+		assertFalse(logger.isDebugEnabled());
+		assertFalse(logger.isInfoEnabled());
+		assertFalse(logger.isTraceEnabled());
+		assertTrue(logger.isErrorEnabled());
+		assertTrue(logger.isWarnEnabled());
+		assertEquals(LoggerDispatcher.dispatcher.epoch, logger.state.epoch);
 
 		logger.error("Error");
 		assertEquals(1, LoggerDispatcher.dispatcher.queue.size());
@@ -113,4 +384,19 @@ public class Slf4jTest extends TestCase {
 		assertEquals("No more loggers", 0, LoggerDispatcher.dispatcher.loggers.size());
 
 	}
+
+	public void testCanonical() {
+		Bundle a = mock(Bundle.class);
+		Bundle b = mock(Bundle.class);
+
+		AbstractLogger logger = LoggerDispatcher.dispatcher.getLogger(a, "test");
+		assertSame(logger, LoggerDispatcher.dispatcher.getLogger(a, "test"));
+		assertNotSame(logger, LoggerDispatcher.dispatcher.getLogger(b, "test"));
+		assertNotSame(logger, LoggerDispatcher.dispatcher.getLogger(a, "other"));
+		assertEquals(3, LoggerDispatcher.dispatcher.loggers.size());
+
+		LoggerDispatcher.dispatcher.uninstalled(a);
+		assertEquals(1, LoggerDispatcher.dispatcher.loggers.size());
+		assertNotSame(logger, LoggerDispatcher.dispatcher.getLogger(a, "test"));
+	}
 }
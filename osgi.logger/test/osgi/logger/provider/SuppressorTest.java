@@ -0,0 +1,93 @@
+package osgi.logger.provider;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.osgi.service.log.LogService;
+
+import osgi.enroute.logger.api.Level;
+
+public class SuppressorTest extends TestCase {
+	Admins	admins;
+
+	@Override
+	protected void setUp() throws Exception {
+		admins = new Admins();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		admins.close();
+	}
+
+	public void testBurst() throws Exception {
+		Suppressor suppressor = new Suppressor(Suppress.FORMAT, 1, 3, 64, 1);
+		AbstractLogger logger = new AbstractLogger(null, "test");
+
+		assertTrue(suppressor.allow(logger, LogService.LOG_ERROR, "Error {}", new Object[] {1}));
+		assertTrue(suppressor.allow(logger, LogService.LOG_ERROR, "Error {}", new Object[] {2}));
+		assertTrue(suppressor.allow(logger, LogService.LOG_ERROR, "Error {}", new Object[] {3}));
+		assertFalse(suppressor.allow(logger, LogService.LOG_ERROR, "Error {}", new Object[] {4}));
+		assertFalse(suppressor.allow(logger, LogService.LOG_ERROR, "Error {}", new Object[] {5}));
+
+		assertTrue("other format", suppressor.allow(logger, LogService.LOG_ERROR, "Other", new Object[0]));
+		assertTrue("other level", suppressor.allow(logger, LogService.LOG_WARNING, "Error {}", new Object[] {6}));
+
+		TimeUnit.MILLISECONDS.sleep(1100);
+		assertTrue("refilled", suppressor.allow(logger, LogService.LOG_ERROR, "Error {}", new Object[] {7}));
+
+		List<Entry> batch = new ArrayList<>();
+		suppressor.report(batch);
+		assertEquals(1, batch.size());
+		assertEquals("test :: Suppressed 2 similar messages: Error {}", batch.get(0).message);
+		assertEquals(LogService.LOG_ERROR, batch.get(0).level);
+
+		batch.clear();
+		TimeUnit.MILLISECONDS.sleep(2);
+		suppressor.report(batch);
+		assertEquals(0, batch.size());
+	}
+
+	public void testThrowable() throws Exception {
+		Suppressor suppressor = new Suppressor(Suppress.THROWABLE, 1, 1, 64, 1);
+		AbstractLogger logger = new AbstractLogger(null, "test");
+
+		assertTrue(suppressor.allow(logger, LogService.LOG_ERROR, "A", new Object[] {new IllegalStateException()}));
+		assertFalse(suppressor.allow(logger, LogService.LOG_ERROR, "B", new Object[] {new IllegalStateException()}));
+		assertTrue(suppressor.allow(logger, LogService.LOG_ERROR, "C", new Object[] {new IllegalArgumentException()}));
+
+		List<Entry> batch = new ArrayList<>();
+		TimeUnit.MILLISECONDS.sleep(2);
+		suppressor.report(batch);
+		assertEquals("test :: Suppressed 1 similar messages: java.lang.IllegalStateException", batch.get(0).message);
+	}
+
+	public void testAdmin() throws Exception {
+		Map<String,Object> map = new HashMap<>();
+		map.put("level", Level.INFO);
+		map.put("suppress", Suppress.FORMAT);
+		map.put("suppressRate", 1);
+		map.put("suppressBurst", 2);
+		map.put("suppressInterval", 100);
+		LoggerAdminImpl admin = admins.create(map);
+
+		LogService log = mock(LogService.class);
+		admin.addLogService(log);
+
+		AbstractLogger logger = new AbstractLogger(null, "test");
+		for (int i = 0; i < 10; i++)
+			logger.info("Info {}", i);
+
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "test :: Info 0");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "test :: Info 1");
+		verify(log, timeout(Admins.DEADLINE)).log(LogService.LOG_INFO, "test :: Suppressed 8 similar messages: Info {}");
+		verifyNoMoreInteractions(log);
+	}
+}